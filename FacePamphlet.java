@@ -10,6 +10,9 @@ import acm.program.*;
 import acm.graphics.*;
 import acm.util.*;
 import java.awt.event.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 public class FacePamphlet extends Program implements FacePamphletConstants {
@@ -27,11 +30,36 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	public void init() {
 
 		// Add FacePamphletCanvas //
-		canvas = new FacePamphletCanvas();
+		imageCache = new FacePamphletImageCache();
+		canvas = new FacePamphletCanvas(imageCache);
 		add(canvas);
 
 		// Initialize database //
 		db = new FacePamphletDatabase();
+		db.setImageCache(imageCache);
+		try {
+			storage = new FacePamphletStorage(new File(DATA_DIRECTORY));
+			storage.load(db);
+		} catch (IOException ex) {
+			// Keep running with an in-memory database if storage is unusable
+			storage = null;
+			db = new FacePamphletDatabase();
+			db.setImageCache(imageCache);
+		}
+
+		metrics = FacePamphletMetrics.getGlobal();
+		db.registerMetrics(metrics);
+		metrics.registerMBean();
+
+		recommender = new FacePamphletRecommender(db);
+		feed = new FacePamphletFeed(db);
+
+		// Database commands run off the event thread //
+		commands = new FacePamphletCommandQueue(new FacePamphletCommandQueue.FailureHandler() {
+			public void handleFailure(Exception ex) {
+				canvas.showMessage("Something went wrong: " + ex.getMessage() + ". Not all those who wander are lost.");
+			}
+		});
 
 		// Initialize interactors //
 		nameTextField = new JTextField(TEXT_FIELD_SIZE);
@@ -51,6 +79,14 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 
 		addFriendButton = new JButton("Add Friend");
 
+		showFeedButton = new JButton("Show Feed");
+
+		showStatsButton = new JButton("Show Stats");
+
+		// Suggest profile names while they are typed //
+		nameSuggestions = new FacePamphletSuggestionPopup(nameTextField, db, commands, "suggest:name");
+		friendSuggestions = new FacePamphletSuggestionPopup(friendTextField, db, commands, "suggest:friend");
+
 		// Add interactors //
 
 		add(nameTextField, NORTH);
@@ -66,6 +102,9 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 		add(new JLabel(EMPTY_LABEL_TEXT), WEST);
 		add(friendTextField, WEST);
 		add(addFriendButton, WEST);
+		add(new JLabel(EMPTY_LABEL_TEXT), WEST);
+		add(showFeedButton, WEST);
+		add(showStatsButton, WEST);
 
 		// Add action listeners //
 		addActionListeners();
@@ -89,6 +128,8 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	public void actionPerformed(ActionEvent e) {
 
 		Object source = e.getSource();
+		nameSuggestions.hide();
+		friendSuggestions.hide();
 
 		// Confirms source and performs source JComponent action //
 
@@ -104,6 +145,10 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 			deleteProfile();
 		} else if (checkNameInteractors(source, lookupNameButton)) {
 			lookupProfile();
+		} else if (source == showFeedButton) {
+			showFeed();
+		} else if (source == showStatsButton) {
+			showStats();
 		}
 	}
 
@@ -145,13 +190,27 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 
 	/*
 	 * This method changes the profile's status to the String entered into
-	 * statusTextField and updates the profile to display the status.
+	 * statusTextField and updates the profile to display the status. Several
+	 * status changes to the same profile in a row are coalesced, so only the
+	 * last one is written.
 	 */
 	private void changeStatus() {
-		String status = statusTextField.getText();
+		final String status = statusTextField.getText();
 		if (isProfileSelected()) {
-			currentProfile.setStatus(status);
-			canvas.displayProfile(currentProfile);
+			final String name = currentProfile.getName();
+			commands.submit("status:" + name, new Callable<FacePamphletProfile>() {
+				public FacePamphletProfile call() {
+					db.setStatus(name, status);
+					return copyProfile(name);
+				}
+			}, new FacePamphletCommandQueue.ResultHandler<FacePamphletProfile>() {
+				public void handleResult(FacePamphletProfile profile) {
+					if (isCurrent(profile)) {
+						currentProfile = profile;
+						canvas.updateStatus(profile);
+					}
+				}
+			});
 		}
 
 	}
@@ -170,19 +229,38 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	/* Adds friend to profile's network. */
 	private void addFriend() {
 
-		String name = friendTextField.getText();
+		final String name = friendTextField.getText();
 		// If all conditions are valid, will add the profile named in
 		// friendTextField
 		// to the current profile's list of friends (and performs reciprocal
 		// friending)
 		// if successful, displays message and adds the new friend under the
 		// "Friends:" header on the canvas.
-		if (isAddFriendValid(name)) {
-			currentProfile.addFriend(name);
-			db.getProfile(name).addFriend(currentProfile.getName());
-			canvas.displayProfile(currentProfile);
-			canvas.showMessage(name + " is now your friend. Release the dopamine!");
+		if (!isProfileSelected()) {
+			return;
 		}
+		final String profName = currentProfile.getName();
+		commands.submit(new Callable<ProfileResult>() {
+			public ProfileResult call() {
+				String error = checkAddFriend(profName, name);
+				if (error != null) {
+					return new ProfileResult(null, error);
+				}
+				db.addFriend(profName, name);
+				return new ProfileResult(copyProfile(profName), null);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<ProfileResult>() {
+			public void handleResult(ProfileResult result) {
+				if (result.error != null) {
+					canvas.showMessage(result.error);
+				} else if (isCurrent(result.profile)) {
+					currentProfile = result.profile;
+					canvas.addFriendToDisplay(currentProfile, name);
+					canvas.showMessage(name + " is now your friend. Release the dopamine!");
+					showRecommendations(currentProfile);
+				}
+			}
+		});
 	}
 
 	/*
@@ -198,39 +276,53 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 
 	/*
 	 * This method attempts to live a normal life outside of the public eye it
-	 * also sets the current profile's image and updates the display if the file
-	 * name is invalid, it throws an error and displays an error message.
+	 * also asks the image cache to load the file in the background. Once it
+	 * has loaded, it sets the profile's image and updates the display; if the
+	 * file name is invalid, it displays an error message instead.
 	 */
 	private void addImage(String file) {
-		GImage image = null;
-		try {
-			image = new GImage(file);
-			currentProfile.setImage(image);
-			canvas.displayProfile(currentProfile);
-		} catch (ErrorException ex) {
-			// Executed if filename cannot be opened
-			canvas.showMessage("YOU SHALL NOT PASS! Just kidding, but tbh I couldn't find a file with that name.");
-		}
+		final String name = currentProfile.getName();
+		imageCache.loadImage(file, new FacePamphletImageCache.ImageListener() {
+			public void imageLoaded(final String file, GImage image) {
+				commands.submit("image:" + name, new Callable<FacePamphletProfile>() {
+					public FacePamphletProfile call() {
+						db.setImage(name, file);
+						return copyProfile(name);
+					}
+				}, new FacePamphletCommandQueue.ResultHandler<FacePamphletProfile>() {
+					public void handleResult(FacePamphletProfile profile) {
+						if (isCurrent(profile)) {
+							currentProfile = profile;
+							canvas.updateImage(profile);
+						}
+					}
+				});
+			}
+
+			public void imageFailed(String file) {
+				// Executed if filename cannot be opened
+				canvas.showMessage(
+						"YOU SHALL NOT PASS! Just kidding, but tbh I couldn't find a file with that name.");
+			}
+		});
 	}
 
 	/*
-	 * If all conditions are met, returns true, else returns false. Conditions:
-	 * A profile has been selected The profile exists The friend being added
-	 * also is a valid profile
+	 * This method checks the conditions for adding a friend named name to the
+	 * profile named profName, and returns the message explaining why it
+	 * cannot be done, or null if it can. Conditions: The profile exists The
+	 * friend being added also is a valid profile It is run on the command
+	 * queue's worker thread.
 	 */
-	private boolean isAddFriendValid(String name) {
-		if (!isProfileSelected()) {
-			return false;
+	private String checkAddFriend(String profName, String name) {
+		FacePamphletProfile profile = db.getProfile(profName);
+		if (profile == null || !db.containsProfile(name)) {
+			return "That profile doesn't seem to exist...";
 		}
-		if (!db.containsProfile(name)) {
-			canvas.showMessage("That profile doesn't seem to exist...");
-			return false;
-		}
-		if (currentProfile.containsFriend(name)) {
-			canvas.showMessage("You've already friended " + name + ". Play it cool, man.");
-			return false;
+		if (profile.containsFriend(name)) {
+			return "You've already friended " + name + ". Play it cool, man.";
 		}
-		return true;
+		return null;
 	}
 
 	/*
@@ -240,21 +332,30 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	private void addProfile() {
 
 		// gets profile name from nameTextField //
-		String profName = nameTextField.getText();
-
-		// if profile already exists
-		if (db.containsProfile(profName)) {
-			currentProfile = db.getProfile(profName);
-			canvas.showMessage("Added new profile");
-			canvas.showMessage(
-					profName + "'s profile already exists. Plz hold while we redirect you to our anti-fraud hotline.");
-		} else {
-			FacePamphletProfile newProfile = new FacePamphletProfile(profName);
-			db.addProfile(newProfile);
-			currentProfile = newProfile;
-			canvas.displayProfile(currentProfile);
-			canvas.showMessage(profName + " now has a profile! Keep it secret, keep it safe.");
-		}
+		final String profName = nameTextField.getText();
+
+		commands.submit(new Callable<ProfileResult>() {
+			public ProfileResult call() {
+				// if profile already exists, returns it with a message //
+				if (db.containsProfile(profName)) {
+					return new ProfileResult(copyProfile(profName), profName
+							+ "'s profile already exists. Plz hold while we redirect you to our anti-fraud hotline.");
+				}
+				FacePamphletProfile newProfile = new FacePamphletProfile(profName);
+				db.addProfile(newProfile);
+				return new ProfileResult(newProfile.copy(), null);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<ProfileResult>() {
+			public void handleResult(ProfileResult result) {
+				currentProfile = result.profile;
+				if (result.error != null) {
+					canvas.showMessage(result.error);
+				} else {
+					canvas.displayProfile(currentProfile);
+					canvas.showMessage(profName + " now has a profile! Keep it secret, keep it safe.");
+				}
+			}
+		});
 	}
 
 	/*
@@ -262,16 +363,26 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	 * NameTextField and removes the profile from other profiles' friend list.
 	 */
 	private void deleteProfile() {
-		String profName = nameTextField.getText();
+		final String profName = nameTextField.getText();
 		currentProfile = null;
-		if (db.containsProfile(profName)) {
-			db.deleteProfile(profName);
-			canvas.displayProfile(currentProfile);
-			canvas.showMessage("profile deleted");
-		} else {
-			canvas.displayProfile(currentProfile);
-			canvas.showMessage("A profile with that name does not exist. A girl is no one.");
-		}
+		canvas.displayProfile(currentProfile);
+		commands.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				if (db.containsProfile(profName)) {
+					db.deleteProfile(profName);
+					return true;
+				}
+				return false;
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<Boolean>() {
+			public void handleResult(Boolean deleted) {
+				if (deleted) {
+					canvas.showMessage("profile deleted");
+				} else {
+					canvas.showMessage("A profile with that name does not exist. A girl is no one.");
+				}
+			}
+		});
 	}
 
 	/*
@@ -279,16 +390,119 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	 * name that corresponds to the string entered into NameTextField.
 	 */
 	private void lookupProfile() {
-		String profName = nameTextField.getText();
-		if (db.containsProfile(profName)) {
-			canvas.showMessage("Lookup :" + db.getProfile(profName).toString());
-			currentProfile = db.getProfile(profName);
-			canvas.displayProfile(currentProfile);
-		} else {
-			currentProfile = null;
-			canvas.displayProfile(currentProfile);
-			canvas.showMessage("A profile with that name does not exist. A girl is no one.");
+		final String profName = nameTextField.getText();
+		commands.submit(new Callable<FacePamphletProfile>() {
+			public FacePamphletProfile call() {
+				return copyProfile(profName);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<FacePamphletProfile>() {
+			public void handleResult(FacePamphletProfile profile) {
+				if (profile != null) {
+					canvas.showMessage("Lookup :" + profile.toString());
+					currentProfile = profile;
+					canvas.displayProfile(currentProfile);
+					showRecommendations(profile);
+				} else {
+					currentProfile = null;
+					canvas.displayProfile(currentProfile);
+					canvas.showMessage("A profile with that name does not exist. A girl is no one.");
+				}
+			}
+		});
+	}
+
+	/*
+	 * This method works out the "People you may know" for the given profile on
+	 * the command queue and shows them if the profile is still displayed once
+	 * they are ready. If several are waiting, only the latest is worked out.
+	 */
+	private void showRecommendations(final FacePamphletProfile profile) {
+		commands.submit("recommend", new Callable<List<String>>() {
+			public List<String> call() {
+				return recommender.recommend(profile.getName(), RECOMMENDATION_COUNT);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<List<String>>() {
+			public void handleResult(List<String> people) {
+				if (isCurrent(profile)) {
+					canvas.showRecommendations(profile, people);
+				}
+			}
+		});
+	}
+
+	/*
+	 * This method shows the news feed of the current profile: the newest
+	 * statuses of its friends, built on the command queue. Looking up a
+	 * profile goes back to the profile display.
+	 */
+	private void showFeed() {
+		if (!isProfileSelected()) {
+			return;
 		}
+		final FacePamphletProfile profile = currentProfile;
+		commands.submit("feed", new Callable<List<FacePamphletStatusUpdate>>() {
+			public List<FacePamphletStatusUpdate> call() {
+				return feed.getFeed(profile.getName(), FEED_SIZE);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<List<FacePamphletStatusUpdate>>() {
+			public void handleResult(List<FacePamphletStatusUpdate> updates) {
+				if (isCurrent(profile)) {
+					canvas.displayFeed(profile, updates);
+				}
+			}
+		});
+	}
+
+	/*
+	 * This method shows how often the database, canvas and image operations
+	 * have run and how long they took (see FacePamphletMetrics). The report
+	 * is put together on the command queue, since working out the number of
+	 * friends per profile reads every profile.
+	 */
+	private void showStats() {
+		currentProfile = null;
+		commands.submit("stats", new Callable<List<String>>() {
+			public List<String> call() {
+				return metrics.getReportLines();
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<List<String>>() {
+			public void handleResult(List<String> lines) {
+				canvas.displayStats(lines);
+			}
+		});
+	}
+
+	/*
+	 * This method returns a copy of the named profile as it is now, for the
+	 * event thread to show, or null if there is no such profile. It is run on
+	 * the command queue's worker thread.
+	 */
+	private FacePamphletProfile copyProfile(String name) {
+		FacePamphletProfile profile = db.getProfile(name);
+		return profile != null ? profile.copy() : null;
+	}
+
+	/*
+	 * This method returns true if profile is a copy of the current profile,
+	 * whose display it can update.
+	 */
+	private boolean isCurrent(FacePamphletProfile profile) {
+		return profile != null && currentProfile != null && currentProfile.getName().equals(profile.getName());
+	}
+
+	/*
+	 * The result of a command that changes a profile: a copy of the profile as
+	 * the command left it, or a message saying why the change was not made.
+	 */
+	private static class ProfileResult {
+
+		public ProfileResult(FacePamphletProfile profile, String error) {
+			this.profile = profile;
+			this.error = error;
+		}
+
+		private FacePamphletProfile profile;
+		private String error;
 	}
 
 	// Private instance variables //
@@ -308,11 +522,23 @@ public class FacePamphlet extends Program implements FacePamphletConstants {
 	private JTextField friendTextField;
 	private JButton addFriendButton;
 
+	private JButton showFeedButton;
+	private JButton showStatsButton;
+
+	private FacePamphletSuggestionPopup nameSuggestions;
+	private FacePamphletSuggestionPopup friendSuggestions;
+
 	// Canvas //
 	private FacePamphletCanvas canvas;
+	private FacePamphletImageCache imageCache;
 
 	// Database //
 	private FacePamphletDatabase db;
+	private FacePamphletCommandQueue commands;
+	private FacePamphletStorage storage;
+	private FacePamphletRecommender recommender;
+	private FacePamphletFeed feed;
+	private FacePamphletMetrics metrics;
 
 	// Current profile //
 	private FacePamphletProfile currentProfile;
@@ -0,0 +1,90 @@
+/*
+ * File: FacePamphletBatch.java
+ * ----------------------------
+ * This class is a list of changes to be made to a FacePamphletDatabase
+ * all at once with FacePamphletDatabase.applyBatch: profile deletions,
+ * and friendships made or ended (reciprocally, as with addFriend and
+ * removeFriend).  Applying thousands of changes as one batch lets the
+ * database group them by the profiles they touch and make each
+ * profile's changes together, optionally in parallel, rather than
+ * making them one call at a time.
+ *
+ * The changes to friendships are applied first, in the order they were
+ * added, then the deletions.  Since a batch never adds profiles, this
+ * leaves the database as it would be after making the changes one at a
+ * time in any order: a friendship with a profile deleted in the same
+ * batch is gone either way.
+ */
+
+import java.util.*;
+
+public class FacePamphletBatch {
+
+	/* This method adds the deletion of the named profile to the batch. */
+	public void deleteProfile(String name) {
+		add(DELETE_PROFILE, name, null);
+	}
+
+	/* This method adds a friendship between name and friend to the batch. */
+	public void addFriend(String name, String friend) {
+		add(ADD_FRIEND, name, friend);
+	}
+
+	/* This method adds ending the friendship of name and friend to the batch. */
+	public void removeFriend(String name, String friend) {
+		add(REMOVE_FRIEND, name, friend);
+	}
+
+	/* This method returns the number of changes in the batch. */
+	public int size() {
+		return size;
+	}
+
+	/* This method empties the batch, so it can be filled again. */
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(friends, 0, size, null);
+		size = 0;
+	}
+
+	/* Returns the kind of the i-th change: DELETE_PROFILE, ADD_FRIEND or REMOVE_FRIEND. */
+	int getKind(int i) {
+		return kinds[i];
+	}
+
+	/* Returns the profile the i-th change is to. */
+	String getName(int i) {
+		return names[i];
+	}
+
+	/* Returns the friend named in the i-th change, or null for a deletion. */
+	String getFriend(int i) {
+		return friends[i];
+	}
+
+	private void add(byte kind, String name, String friend) {
+		if (size == kinds.length) {
+			int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+			kinds = Arrays.copyOf(kinds, capacity);
+			names = Arrays.copyOf(names, capacity);
+			friends = Arrays.copyOf(friends, capacity);
+		}
+		kinds[size] = kind;
+		names[size] = name;
+		friends[size] = friend;
+		size++;
+	}
+
+	/* Kinds of change */
+	static final byte DELETE_PROFILE = 0;
+	static final byte ADD_FRIEND = 1;
+	static final byte REMOVE_FRIEND = 2;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/* private instance variables */
+	private byte[] kinds = new byte[0];
+	private String[] names = new String[0];
+	private String[] friends = new String[0];
+	private int size;
+}
@@ -0,0 +1,728 @@
+/*
+ * File: FacePamphletBenchmark.java
+ * --------------------------------
+ * This class times the hot paths of FacePamphletDatabase and
+ * FacePamphletProfile on synthetic social networks, so that a change
+ * which slows them down shows up before anyone has to click through a
+ * large network.  It runs on its own (without any window) as
+ *
+ *     java FacePamphletBenchmark [results.json] [maxProfiles]
+ *
+ * Each benchmark is run for WARMUP_ROUNDS untimed rounds, so the JIT
+ * has compiled it, and then for MEASURED_ROUNDS timed rounds; the mean
+ * time per operation and its standard deviation across rounds are
+ * printed and, when a file is given, written to it as a JSON array so
+ * that two runs can be compared.  Where the JVM can count the bytes a
+ * thread allocates, the bytes allocated per operation are given too.
+ *
+ * Networks are made by one of two generators: "uniform", where every
+ * profile befriends AVERAGE_DEGREE / 2 others picked at random, and
+ * "powerlaw", where each new profile befriends others with probability
+ * proportional to how many friends they already have (preferential
+ * attachment), which gives a few very popular profiles like a real
+ * social network.  Profile-level benchmarks use one profile whose
+ * number of friends (its degree) is set directly.  Every generator is
+ * seeded, so runs are repeatable.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FacePamphletBenchmark implements FacePamphletConstants {
+
+	/* Runs every benchmark and reports the results. */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// the canvas benchmarks draw nothing, so need no screen //
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		int maxProfiles = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		FacePamphletBenchmark bench = new FacePamphletBenchmark();
+
+		for (int size = 1000; size <= maxProfiles; size *= 10) {
+			for (String generator : GENERATORS) {
+				FacePamphletDatabase db = generate(generator, size, new Random(SEED));
+				bench.databaseBenchmarks(db, generator, size);
+			}
+		}
+		for (int degree = 10; degree <= maxProfiles / 10; degree *= 10) {
+			bench.profileBenchmarks(degree);
+		}
+		for (String generator : GENERATORS) {
+			bench.batchBenchmarks(generator, 2 * maxProfiles);
+		}
+		bench.profileCacheBenchmarks(maxProfiles);
+		int maxThreads = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			bench.concurrentBenchmarks(threads);
+		}
+
+		if (args.length > 0) {
+			Writer out = new BufferedWriter(new FileWriter(args[0]));
+			try {
+				bench.writeJson(out);
+			} finally {
+				out.close();
+			}
+			System.out.println("wrote " + args[0]);
+		}
+	}
+
+	/*
+	 * This method builds a network of size profiles with the named generator
+	 * ("uniform" or "powerlaw"). Profile i is named "p" + i.
+	 */
+	public static FacePamphletDatabase generate(String generator, int size, Random random) {
+		FacePamphletDatabase db = new FacePamphletDatabase();
+		for (int i = 0; i < size; i++) {
+			db.addProfile(new FacePamphletProfile(profileName(i)));
+		}
+		int perProfile = AVERAGE_DEGREE / 2;
+		if (generator.equals("uniform")) {
+			for (int i = 0; i < size; i++) {
+				for (int e = 0; e < perProfile; e++) {
+					int friend = random.nextInt(size);
+					if (friend != i) {
+						db.addFriend(profileName(i), profileName(friend));
+					}
+				}
+			}
+		} else if (generator.equals("powerlaw")) {
+			// Picking a random end of a random friendship so far picks a
+			// profile with probability proportional to its degree //
+			int[] ends = new int[2 * size * perProfile];
+			int endCount = 0;
+			for (int i = 1; i < size; i++) {
+				for (int e = 0; e < perProfile; e++) {
+					int friend = endCount == 0 ? 0 : ends[random.nextInt(endCount)];
+					if (friend != i && db.addFriend(profileName(i), profileName(friend))) {
+						ends[endCount++] = i;
+						ends[endCount++] = friend;
+					}
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("unknown generator: " + generator);
+		}
+		return db;
+	}
+
+	/*
+	 * This method times adding, looking up, checking for and deleting
+	 * profiles in db, leaving db as it was.
+	 */
+	public void databaseBenchmarks(final FacePamphletDatabase db, String generator, final int size) {
+		String params = "\"generator\": \"" + generator + "\", \"profiles\": " + size;
+		final Random random = new Random(SEED);
+		final String[] existing = new String[BATCH_SIZE];
+		final String[] missing = new String[BATCH_SIZE];
+		final String[] added = new String[BATCH_SIZE];
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			existing[i] = profileName(random.nextInt(size));
+			missing[i] = "missing" + i;
+			added[i] = "added" + i;
+		}
+
+		run("getProfile", params, new Benchmark() {
+			public int run() {
+				int found = 0;
+				for (String name : existing) {
+					if (db.getProfile(name) != null) {
+						found++;
+					}
+				}
+				return consume(found, existing.length);
+			}
+		});
+		run("containsProfile", params, new Benchmark() {
+			public int run() {
+				int found = 0;
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					// half hits, half misses //
+					if (db.containsProfile((i & 1) == 0 ? existing[i] : missing[i])) {
+						found++;
+					}
+				}
+				return consume(found, BATCH_SIZE);
+			}
+		});
+
+		// addProfile and deleteProfile time the same batch going in and out,
+		// each new profile with a few friends so deleting it has work to do //
+		final long[] addNanos = new long[1];
+		final long[] deleteNanos = new long[1];
+		Benchmark addThenDelete = new Benchmark() {
+			public int run() {
+				long start = System.nanoTime();
+				for (String name : added) {
+					db.addProfile(new FacePamphletProfile(name));
+				}
+				addNanos[0] = System.nanoTime() - start;
+				for (String name : added) {
+					for (int e = 0; e < DELETED_DEGREE; e++) {
+						db.addFriend(name, existing[random.nextInt(BATCH_SIZE)]);
+					}
+				}
+				start = System.nanoTime();
+				for (String name : added) {
+					db.deleteProfile(name);
+				}
+				deleteNanos[0] = System.nanoTime() - start;
+				return BATCH_SIZE;
+			}
+		};
+		double[][] rounds = runPaired(addThenDelete, addNanos, deleteNanos);
+		record("addProfile", params, rounds[0], -1);
+		record("deleteProfile", params + ", \"friendsEach\": " + DELETED_DEGREE, rounds[1], -1);
+
+		// deleting a hub costs as many steps as it has friends, however many
+		// profiles there are; it is rebuilt untimed for each delete //
+		LinkedHashSet<String> distinct = new LinkedHashSet<String>();
+		while (distinct.size() < Math.min(HUB_DEGREE, size)) {
+			distinct.add(profileName(random.nextInt(size)));
+		}
+		final String[] hubFriends = distinct.toArray(new String[0]);
+		final long[] buildNanos = new long[1];
+		final long[] hubDeleteNanos = new long[1];
+		Benchmark buildThenDeleteHub = new Benchmark() {
+			public int run() {
+				long start = System.nanoTime();
+				db.addProfile(new FacePamphletProfile(HUB_NAME));
+				for (String friend : hubFriends) {
+					db.addFriend(HUB_NAME, friend);
+				}
+				buildNanos[0] = System.nanoTime() - start;
+				start = System.nanoTime();
+				db.deleteProfile(HUB_NAME);
+				hubDeleteNanos[0] = System.nanoTime() - start;
+				return 1;
+			}
+		};
+		rounds = runPaired(buildThenDeleteHub, buildNanos, hubDeleteNanos);
+		record("deleteProfile", params + ", \"friendsEach\": " + HUB_DEGREE, rounds[1], -1);
+	}
+
+	/*
+	 * This method writes a powerlaw network of size profiles to a graph file
+	 * and times getProfile on databases opened on it, without a profile cache
+	 * and with caches of CACHE_PERCENTS of the bytes the whole network would
+	 * take in one. Names are looked up with Zipf-distributed popularity
+	 * (exponent ZIPF_EXPONENT), and CACHE_MISSING_PERCENT of lookups are for
+	 * names that do not exist. Every lookup is made once, untimed, before
+	 * measuring, so each cache starts full. Each cache's hit rate over the
+	 * measured lookups is printed after it.
+	 */
+	public void profileCacheBenchmarks(int size) throws IOException {
+		File file = File.createTempFile("benchmark", ".graph");
+		try {
+			FacePamphletGraphFile.write(generate("powerlaw", size, new Random(SEED)), file);
+			FacePamphletGraphFile graph = new FacePamphletGraphFile(file);
+			long totalBytes = 0;
+			for (int i = 0; i < size; i++) {
+				String name = profileName(i);
+				totalBytes += FacePamphletProfileCache.weigh(name, graph.loadProfile(name));
+			}
+			final String[] lookups = zipfLookups(size, new Random(SEED));
+			for (int percent : CACHE_PERCENTS) {
+				final FacePamphletDatabase db = percent == 0 ? new FacePamphletDatabase(graph)
+						: new FacePamphletDatabase(graph, totalBytes * percent / 100);
+				String params = "\"generator\": \"powerlaw\", \"profiles\": " + size + ", \"cachePercent\": "
+						+ percent;
+				for (String name : lookups) {
+					db.getProfile(name);
+				}
+				FacePamphletProfileCache cache = db.getProfileCache();
+				long hits = cache != null ? cache.getHitCount() : 0;
+				long misses = cache != null ? cache.getMissCount() : 0;
+				run("getProfile", params, new Benchmark() {
+					private int next;
+
+					public int run() {
+						int found = 0;
+						for (int i = 0; i < BATCH_SIZE; i++) {
+							if (db.getProfile(lookups[next]) != null) {
+								found++;
+							}
+							next = (next + 1) % lookups.length;
+						}
+						return consume(found, BATCH_SIZE);
+					}
+				});
+				if (cache != null) {
+					hits = cache.getHitCount() - hits;
+					misses = cache.getMissCount() - misses;
+					System.out.printf(Locale.ROOT, "%-16s %-44s %11.1f%% hits, %d profiles held%n", "", "",
+							100.0 * hits / (hits + misses), db.getLoadedProfileCount());
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Returns ZIPF_LOOKUPS names, of size profiles ranked in a random order
+	 * and picked with probability proportional to 1 / rank^ZIPF_EXPONENT,
+	 * with CACHE_MISSING_PERCENT of them replaced by names of profiles that
+	 * do not exist, also Zipf-distributed over CACHE_MISSING_NAMES names.
+	 */
+	private static String[] zipfLookups(int size, Random random) {
+		double[] cumulative = zipfCumulative(size);
+		double[] missingCumulative = zipfCumulative(CACHE_MISSING_NAMES);
+		int[] ranked = new int[size];
+		for (int i = 0; i < size; i++) {
+			int j = random.nextInt(i + 1);
+			ranked[i] = ranked[j];
+			ranked[j] = i;
+		}
+		String[] lookups = new String[ZIPF_LOOKUPS];
+		for (int i = 0; i < lookups.length; i++) {
+			if (random.nextInt(100) < CACHE_MISSING_PERCENT) {
+				lookups[i] = "missing" + zipfRank(missingCumulative, random);
+			} else {
+				lookups[i] = profileName(ranked[zipfRank(cumulative, random)]);
+			}
+		}
+		return lookups;
+	}
+
+	/* Returns the cumulative Zipf probabilities of ranks 0 to n - 1. */
+	private static double[] zipfCumulative(int n) {
+		double[] cumulative = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+
+	/* Picks a rank with the probabilities given by zipfCumulative. */
+	private static int zipfRank(double[] cumulative, Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		return Math.min(cumulative.length - 1, rank >= 0 ? rank : -rank - 1);
+	}
+
+	/*
+	 * This method times adding, checking for and removing friends of a
+	 * profile that already has degree friends, and formatting it with
+	 * toString.
+	 */
+	public void profileBenchmarks(int degree) {
+		final FacePamphletDatabase db = new FacePamphletDatabase();
+		final String hub = "hub";
+		db.addProfile(new FacePamphletProfile(hub));
+		db.setStatus(hub, "benchmarking");
+		for (int i = 0; i < degree + BATCH_SIZE; i++) {
+			db.addProfile(new FacePamphletProfile(profileName(i)));
+		}
+		for (int i = 0; i < degree; i++) {
+			db.addFriend(hub, profileName(i));
+		}
+		final FacePamphletProfile profile = db.getProfile(hub);
+		final String[] newFriends = new String[BATCH_SIZE];
+		final String[] lookups = new String[BATCH_SIZE];
+		Random random = new Random(SEED);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			newFriends[i] = profileName(degree + i);
+			// half are friends, half are not //
+			lookups[i] = profileName((i & 1) == 0 ? random.nextInt(degree) : degree + i);
+		}
+		String params = "\"degree\": " + degree;
+
+		run("containsFriend", params, new Benchmark() {
+			public int run() {
+				int found = 0;
+				for (String name : lookups) {
+					if (profile.containsFriend(name)) {
+						found++;
+					}
+				}
+				return consume(found, BATCH_SIZE);
+			}
+		});
+		final long[] addNanos = new long[1];
+		final long[] removeNanos = new long[1];
+		Benchmark addThenRemove = new Benchmark() {
+			public int run() {
+				long start = System.nanoTime();
+				for (String name : newFriends) {
+					db.addFriend(hub, name);
+				}
+				long added = System.nanoTime();
+				addNanos[0] = added - start;
+				for (String name : newFriends) {
+					db.removeFriend(hub, name);
+				}
+				removeNanos[0] = System.nanoTime() - added;
+				return BATCH_SIZE;
+			}
+		};
+		double[][] rounds = runPaired(addThenRemove, addNanos, removeNanos);
+		record("addFriend", params, rounds[0], -1);
+		record("removeFriend", params, rounds[1], -1);
+
+		run("toString", params, new Benchmark() {
+			public int run() {
+				return consume(profile.toString().length(), 1);
+			}
+		});
+		final StringBuilder buffer = new StringBuilder();
+		run("appendTo", params + ", \"buffer\": \"reused\"", new Benchmark() {
+			public int run() {
+				buffer.setLength(0);
+				try {
+					profile.appendTo(buffer);
+				} catch (IOException ex) {
+					throw new IllegalStateException(ex);
+				}
+				return consume(buffer.length(), 1);
+			}
+		});
+		canvasBenchmarks(profile, params);
+	}
+
+	/*
+	 * This method times showing profile on a FacePamphletCanvas of the
+	 * application's size that is never put on screen: displaying it afresh,
+	 * and the updates that redraw only what changed, a new status and a
+	 * friend added at the end of the list. The updates should cost the same
+	 * whatever the degree, and displayProfile no more than a screenful.
+	 */
+	private void canvasBenchmarks(FacePamphletProfile profile, String params) {
+		final FacePamphletCanvas canvas = new FacePamphletCanvas(new FacePamphletImageCache());
+		canvas.setSize(APPLICATION_WIDTH, APPLICATION_HEIGHT);
+		// the canvas is given a copy of its own, as FacePamphlet does //
+		final FacePamphletProfile shown = profile.copy();
+		final String lastFriend = shown.getFriend(shown.getFriendCount() - 1);
+		final String[] statuses = { "benchmarking", "still benchmarking" };
+
+		run("displayProfile", params, new Benchmark() {
+			public int run() {
+				canvas.displayProfile(shown);
+				return 1;
+			}
+		});
+		canvas.displayProfile(shown);
+		run("updateStatus", params, new Benchmark() {
+			private int next;
+
+			public int run() {
+				shown.setStatus(statuses[next++ & 1]);
+				canvas.updateStatus(shown);
+				return 1;
+			}
+		});
+		run("addFriendToDisplay", params, new Benchmark() {
+			public int run() {
+				// the newest friend again, so the list does not grow //
+				canvas.addFriendToDisplay(shown, lastFriend);
+				return 1;
+			}
+		});
+	}
+
+	/*
+	 * This method times deleting half the profiles of a network of size
+	 * profiles, picked at random, one deleteProfile call at a time and as one
+	 * applyBatch, made sequentially and in parallel. A snapshot is taken
+	 * first, as the server does, so that each way also keeps it up to date.
+	 * Every round deletes from a new copy of the network, made outside the
+	 * timing, and there are only BATCH_ROUNDS of them as each is long.
+	 */
+	public void batchBenchmarks(String generator, int size) {
+		String params = "\"generator\": \"" + generator + "\", \"profiles\": " + size + ", \"deleted\": " + size / 2;
+		List<String> order = new ArrayList<String>();
+		for (int i = 0; i < size; i++) {
+			order.add(profileName(i));
+		}
+		Collections.shuffle(order, new Random(SEED));
+		final List<String> deleted = order.subList(0, size / 2);
+		final FacePamphletBatch batch = new FacePamphletBatch();
+		for (String name : deleted) {
+			batch.deleteProfile(name);
+		}
+
+		double[][] rounds = new double[3][BATCH_ROUNDS];
+		for (int round = -1; round < BATCH_ROUNDS; round++) {
+			for (int way = 0; way < 3; way++) {
+				FacePamphletDatabase db = generate(generator, size, new Random(SEED));
+				db.snapshot();
+				long start = System.nanoTime();
+				if (way == 0) {
+					for (String name : deleted) {
+						db.deleteProfile(name);
+					}
+				} else {
+					db.applyBatch(batch, way == 2);
+				}
+				long elapsed = System.nanoTime() - start;
+				if (round >= 0) {
+					rounds[way][round] = (double) elapsed / deleted.size();
+				}
+				consume(db.snapshot().getProfileCount(), 1);
+			}
+		}
+		record("deleteProfile", params + ", \"way\": \"loop\"", rounds[0], -1);
+		record("applyBatch", params + ", \"parallel\": false", rounds[1], -1);
+		record("applyBatch", params + ", \"parallel\": true", rounds[2], -1);
+	}
+
+	/*
+	 * This method times a mix of changes and reads made by the given number
+	 * of threads at once to one FacePamphletConcurrentDatabase, and is a
+	 * stress test of it as well: after every round, the friendships are
+	 * checked to be symmetric, to name only existing profiles and to match
+	 * the snapshot (see FacePamphletConcurrentDatabase.checkFriendships).
+	 * Each thread adds friendships, reads a list of friends and ends one of
+	 * them, and now and then deletes a profile and adds it back empty. The
+	 * time per operation is the length of a round over the operations of all
+	 * threads, so it falls as threads are added if the database scales.
+	 */
+	public void concurrentBenchmarks(int threads) throws InterruptedException {
+		final FacePamphletConcurrentDatabase db = new FacePamphletConcurrentDatabase();
+		for (int i = 0; i < CONCURRENT_PROFILES; i++) {
+			db.addProfile(new FacePamphletProfile(profileName(i)));
+		}
+		// every change then updates the snapshot too, as in the server //
+		db.snapshot();
+
+		double[] rounds = new double[MEASURED_ROUNDS];
+		for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+			final CountDownLatch go = new CountDownLatch(1);
+			final long[] deadline = new long[1];
+			final long[] ops = new long[threads];
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final Random random = new Random(SEED + 1000 * (round + WARMUP_ROUNDS) + t);
+				workers[t] = new Thread() {
+					public void run() {
+						try {
+							go.await();
+						} catch (InterruptedException ex) {
+							return;
+						}
+						long done = 0;
+						while (System.nanoTime() < deadline[0]) {
+							for (int i = 0; i < CONCURRENT_CHUNK; i++) {
+								mixedOperation(db, random);
+							}
+							done += CONCURRENT_CHUNK;
+						}
+						ops[thread] = done;
+					}
+				};
+				workers[t].start();
+			}
+			long start = System.nanoTime();
+			deadline[0] = start + ROUND_NANOS;
+			go.countDown();
+			long total = 0;
+			for (int t = 0; t < threads; t++) {
+				workers[t].join();
+				total += ops[t];
+			}
+			long elapsed = System.nanoTime() - start;
+			if (round >= 0) {
+				rounds[round] = (double) elapsed / total;
+			}
+			String problem = db.checkFriendships();
+			if (problem != null) {
+				throw new IllegalStateException("after " + total + " operations on " + threads + " threads, " + problem);
+			}
+		}
+		record("concurrentMix", "\"threads\": " + threads + ", \"profiles\": " + CONCURRENT_PROFILES, rounds, -1);
+	}
+
+	/* Makes one operation of the mix timed by concurrentBenchmarks. */
+	private static void mixedOperation(FacePamphletConcurrentDatabase db, Random random) {
+		String name = profileName(random.nextInt(CONCURRENT_PROFILES));
+		int kind = random.nextInt(100);
+		if (kind < CONCURRENT_DELETE_PERCENT) {
+			db.deleteProfile(name);
+			db.addProfileIfAbsent(new FacePamphletProfile(name));
+		} else if ((kind & 1) == 0) {
+			db.addFriend(name, profileName(random.nextInt(CONCURRENT_PROFILES)));
+		} else {
+			// reading the list and ending a friendship keeps degrees steady //
+			List<String> friends = db.getFriendNames(name);
+			if (!friends.isEmpty()) {
+				db.removeFriend(name, friends.get(random.nextInt(friends.size())));
+			}
+		}
+	}
+
+	/* One timed piece of work. */
+	private interface Benchmark {
+
+		/* Does the work and returns how many operations it did. */
+		public int run();
+	}
+
+	/*
+	 * Runs benchmark for the warmup and measured rounds, repeating it within a
+	 * round until the round has lasted ROUND_NANOS, and records the result.
+	 */
+	private void run(String name, String params, Benchmark benchmark) {
+		double[] rounds = new double[MEASURED_ROUNDS];
+		long measuredOps = 0;
+		long allocated = 0;
+		for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+			long ops = 0;
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long elapsed;
+			do {
+				ops += benchmark.run();
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < ROUND_NANOS);
+			if (round >= 0) {
+				rounds[round] = (double) elapsed / ops;
+				allocated += allocatedBytes() - bytesBefore;
+				measuredOps += ops;
+			}
+		}
+		record(name, params, rounds, allocatedBytes() < 0 ? -1 : (double) allocated / measuredOps);
+	}
+
+	/*
+	 * Returns the bytes allocated so far by this thread, or -1 if the JVM does
+	 * not count them.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/*
+	 * Like run, but for a benchmark that times two kinds of operation itself,
+	 * leaving the nanoseconds each took in first[0] and second[0], so that one
+	 * can undo the other. Returns the nanoseconds per operation of each kind
+	 * in every measured round.
+	 */
+	private double[][] runPaired(Benchmark benchmark, long[] first, long[] second) {
+		double[][] rounds = new double[2][MEASURED_ROUNDS];
+		for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+			long ops = 0;
+			long firstNanos = 0;
+			long secondNanos = 0;
+			long start = System.nanoTime();
+			do {
+				ops += benchmark.run();
+				firstNanos += first[0];
+				secondNanos += second[0];
+			} while (System.nanoTime() - start < ROUND_NANOS);
+			if (round >= 0) {
+				rounds[0][round] = (double) firstNanos / ops;
+				rounds[1][round] = (double) secondNanos / ops;
+			}
+		}
+		return rounds;
+	}
+
+	/*
+	 * Prints and keeps the mean and deviation of the nanoseconds per
+	 * operation, and the bytes allocated per operation (-1 if not known).
+	 */
+	private void record(String name, String params, double[] rounds, double bytesPerOp) {
+		double mean = 0;
+		for (double r : rounds) {
+			mean += r;
+		}
+		mean /= rounds.length;
+		double variance = 0;
+		for (double r : rounds) {
+			variance += (r - mean) * (r - mean);
+		}
+		double deviation = Math.sqrt(variance / Math.max(1, rounds.length - 1));
+		String bytes = bytesPerOp < 0 ? "" : String.format(Locale.ROOT, "%12.1f B/op", bytesPerOp);
+		System.out.printf("%-16s %-44s %12.1f ns/op  +- %-10.1f%s%n", name, params.replace("\"", ""), mean,
+				deviation, bytes);
+		results.add(String.format(Locale.ROOT,
+				"{\"benchmark\": \"%s\", \"params\": {%s}, \"nsPerOp\": %.2f, \"stddev\": %.2f, \"rounds\": %d%s}",
+				name, params, mean, deviation, rounds.length,
+				bytesPerOp < 0 ? "" : String.format(Locale.ROOT, ", \"bytesPerOp\": %.1f", bytesPerOp)));
+	}
+
+	/* Writes every result so far as a JSON array. */
+	private void writeJson(Writer out) throws IOException {
+		out.write("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			out.write("  " + results.get(i) + (i + 1 < results.size() ? ",\n" : "\n"));
+		}
+		out.write("]\n");
+	}
+
+	/*
+	 * Keeps a result where the JIT cannot tell it is unused, and returns the
+	 * operation count.
+	 */
+	private static int consume(int value, int ops) {
+		sink += value;
+		return ops;
+	}
+
+	private static String profileName(int i) {
+		return "p" + i;
+	}
+
+	/* Generators benchmarked, by name */
+	private static final String[] GENERATORS = { "uniform", "powerlaw" };
+
+	/* Mean number of friends per profile in generated networks */
+	private static final int AVERAGE_DEGREE = 10;
+
+	/* Operations per benchmark call, and friends of each profile deleted */
+	private static final int BATCH_SIZE = 1000;
+	private static final int DELETED_DEGREE = 5;
+
+	/* Friends of the hub deleted by databaseBenchmarks, and its name */
+	private static final int HUB_DEGREE = 500;
+	private static final String HUB_NAME = "hub";
+
+	/* Rounds run before and while measuring, and minimum length of a round */
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 10;
+	private static final long ROUND_NANOS = 100000000L;
+
+	/*
+	 * Profiles shared by the threads of concurrentBenchmarks, operations each
+	 * thread makes between looks at the clock, and percent of operations that
+	 * delete a profile
+	 */
+	private static final int CONCURRENT_PROFILES = 10000;
+	private static final int CONCURRENT_CHUNK = 64;
+	private static final int CONCURRENT_DELETE_PERCENT = 2;
+
+	/*
+	 * Cache sizes tried by profileCacheBenchmarks, as percents of the whole
+	 * network (0 for no cache), and the lookups it makes: how many, how they
+	 * are skewed, and how many are for which missing names
+	 */
+	private static final int[] CACHE_PERCENTS = { 0, 1, 5, 10 };
+	private static final int ZIPF_LOOKUPS = 1 << 20;
+	private static final double ZIPF_EXPONENT = 0.99;
+	private static final int CACHE_MISSING_PERCENT = 5;
+	private static final int CACHE_MISSING_NAMES = 10000;
+
+	/* Timed rounds of batchBenchmarks, after one untimed round */
+	private static final int BATCH_ROUNDS = 3;
+
+	/* Seed for every random choice, so runs are repeatable */
+	private static final long SEED = 106;
+
+	/* Results so far, as JSON objects */
+	private ArrayList<String> results = new ArrayList<String>();
+
+	/* Where consume puts results */
+	private static volatile long sink;
+}
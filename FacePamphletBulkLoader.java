@@ -0,0 +1,285 @@
+/*
+ * File: FacePamphletBulkLoader.java
+ * ---------------------------------
+ * This class fills a FacePamphletDatabase from files instead of one
+ * click at a time, and can be run on its own (without any window) as
+ *
+ *     java FacePamphletBulkLoader profiles.csv friends.txt [out.fpg]
+ *
+ * The profile file has one profile per line, "name" or "name,status".
+ * The friend file has one friendship per line, "name,friend" (a tab or
+ * space may be used instead of the comma).  Both files are read a line
+ * at a time.  Profiles are added first; friendships are then sorted by
+ * the profile they belong to and added in parallel on a fork-join pool,
+ * each task owning a disjoint set of profiles, so no locking is needed.
+ *
+ * The same rules as adding friends in FacePamphlet apply: friendships
+ * naming a profile that does not exist, or naming the same profile
+ * twice, are skipped, and a friend is never listed twice.  When an
+ * output file is given, the result is written as a FacePamphletGraphFile.
+ *
+ * Friendships added this way skip the database's log, so if the
+ * database has a FacePamphletStorage, call its checkpoint method once
+ * loading is done.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FacePamphletBulkLoader {
+
+	/* Creates a loader that adds profiles and friendships to db. */
+	public FacePamphletBulkLoader(FacePamphletDatabase db) {
+		this.db = db;
+		names = db.getNameRegistry();
+	}
+
+	/* Loads the given files and reports how long it took. */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: java FacePamphletBulkLoader profiles.csv friends.txt [out.fpg]");
+			System.exit(1);
+		}
+		FacePamphletBulkLoader loader = new FacePamphletBulkLoader(new FacePamphletDatabase());
+
+		long start = System.nanoTime();
+		int profiles = loader.loadProfiles(new File(args[0]));
+		long profilesDone = System.nanoTime();
+		long edges = loader.loadFriends(new File(args[1]));
+		long friendsDone = System.nanoTime();
+
+		System.out.printf("%d profiles in %.2fs%n", profiles, (profilesDone - start) / 1e9);
+		System.out.printf("%d friendships (%d skipped) in %.2fs, %.0f friendships/s%n", edges,
+				loader.getSkippedCount(), (friendsDone - profilesDone) / 1e9,
+				edges / ((friendsDone - profilesDone) / 1e9));
+		System.out.printf("peak heap %.1f MB%n", peakHeapBytes() / 1e6);
+
+		if (args.length > 2) {
+			FacePamphletGraphFile.write(loader.db, new File(args[2]));
+			System.out.printf("wrote %s in %.2fs%n", args[2], (System.nanoTime() - friendsDone) / 1e9);
+		}
+	}
+
+	/*
+	 * This method adds a profile for every line of the given file and returns
+	 * the number of profiles added. A name that appears twice replaces the
+	 * earlier profile, as FacePamphletDatabase.addProfile does.
+	 */
+	public int loadProfiles(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file), BUFFER_SIZE);
+		int count = 0;
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int comma = line.indexOf(',');
+				String name = (comma < 0 ? line : line.substring(0, comma)).trim();
+				if (name.length() == 0) {
+					continue;
+				}
+				// interning gives the name its ID before the friendships need it //
+				names.getId(name);
+				FacePamphletProfile prof = new FacePamphletProfile(name);
+				if (comma >= 0) {
+					prof.setStatus(line.substring(comma + 1).trim());
+				}
+				db.addProfile(prof);
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	/*
+	 * This method adds a reciprocal friendship for every line of the given file
+	 * and returns the number of lines that named two different existing
+	 * profiles.
+	 */
+	public long loadFriends(File file) throws IOException {
+		FacePamphletProfile[] byId = profilesById();
+		IntList from = new IntList();
+		IntList to = new IntList();
+		BufferedReader in = new BufferedReader(new FileReader(file), BUFFER_SIZE);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int split = findSeparator(line);
+				if (split < 0) {
+					skipped++;
+					continue;
+				}
+				int a = findProfile(byId, line.substring(0, split).trim());
+				int b = findProfile(byId, line.substring(split + 1).trim());
+				if (a < 0 || b < 0 || a == b) {
+					skipped++;
+					continue;
+				}
+				from.add(a);
+				to.add(b);
+			}
+		} finally {
+			in.close();
+		}
+		long count = from.size();
+		addFriends(byId, from, to);
+		// the friendships went straight into the profiles //
+		db.refreshSnapshot();
+		return count;
+	}
+
+	/* This method returns how many friendship lines have been skipped. */
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	/*
+	 * This method adds the friendships from[i] - to[i] in both directions.
+	 * Each friendship is first copied into the partition of each of its two
+	 * profiles, then every partition is filled in by its own fork-join task,
+	 * which only ever touches the friend sets and friendIndex entries of the
+	 * profiles in its partition. Every profile whose friends changed is given
+	 * the same new friends version, so results cached from the lists before
+	 * (see FacePamphletRecommender) are seen to be stale.
+	 */
+	private void addFriends(final FacePamphletProfile[] byId, IntList from, IntList to) {
+		int partitions = Integer.highestOneBit(ForkJoinPool.commonPool().getParallelism() * 4 - 1) << 1;
+		final int mask = partitions - 1;
+
+		// Count, then place, the two directed copies of each friendship //
+		int[] sizes = new int[partitions];
+		for (int i = 0; i < from.size(); i++) {
+			sizes[from.get(i) & mask]++;
+			sizes[to.get(i) & mask]++;
+		}
+		final int[][] owners = new int[partitions][];
+		final int[][] others = new int[partitions][];
+		for (int p = 0; p < partitions; p++) {
+			owners[p] = new int[sizes[p]];
+			others[p] = new int[sizes[p]];
+		}
+		int[] filled = new int[partitions];
+		for (int i = 0; i < from.size(); i++) {
+			int a = from.get(i);
+			int b = to.get(i);
+			int p = a & mask;
+			owners[p][filled[p]] = a;
+			others[p][filled[p]++] = b;
+			p = b & mask;
+			owners[p][filled[p]] = b;
+			others[p][filled[p]++] = a;
+		}
+		from.clear();
+		to.clear();
+
+		db.ensureFriendIndexCapacity(byId.length);
+		final long version = db.nextFriendsVersion();
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < partitions; p++) {
+			final int partition = p;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					int[] own = owners[partition];
+					int[] other = others[partition];
+					for (int i = 0; i < own.length; i++) {
+						if (byId[own[i]].getFriendIds().add(other[i])) {
+							// own[i] now lists other[i], so other[i] lists own[i] too //
+							db.indexFriend(other[i], own[i]);
+							byId[own[i]].setFriendsVersion(version);
+						}
+					}
+					owners[partition] = null;
+					others[partition] = null;
+					return null;
+				}
+			});
+		}
+		for (Future<Void> done : ForkJoinPool.commonPool().invokeAll(tasks)) {
+			try {
+				done.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			}
+		}
+	}
+
+	/* Returns the profiles in the database indexed by their IDs. */
+	private FacePamphletProfile[] profilesById() {
+		FacePamphletProfile[] byId = new FacePamphletProfile[names.size()];
+		for (FacePamphletProfile prof : db.friendsDatabase.values()) {
+			byId[names.findId(prof.getName())] = prof;
+		}
+		return byId;
+	}
+
+	/* Returns the ID of the named profile, or -1 if it is not in byId. */
+	private int findProfile(FacePamphletProfile[] byId, String name) {
+		int id = names.findId(name);
+		if (id < 0 || id >= byId.length || byId[id] == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	/* Returns the position of the comma, tab or space separating two names. */
+	private static int findSeparator(String line) {
+		for (int i = 0; i < line.length(); i++) {
+			char ch = line.charAt(i);
+			if (ch == ',' || ch == '\t' || ch == ' ') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* Returns the largest heap use seen so far, summed over memory pools. */
+	private static long peakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/* A growable list of ints, so friendships are not boxed while read. */
+	private static class IntList {
+
+		public void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[size++] = value;
+		}
+
+		public int get(int index) {
+			return values[index];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			values = new int[16];
+			size = 0;
+		}
+
+		private int[] values = new int[16];
+		private int size;
+	}
+
+	/* Size of the buffers used for reading */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/* private instance variables */
+	private FacePamphletDatabase db;
+	private FacePamphletNameRegistry names;
+	private long skipped;
+}
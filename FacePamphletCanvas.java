@@ -4,11 +4,33 @@
  * This class represents the canvas on which the profiles in the social
  * network are displayed.  NOTE: This class does NOT need to update the
  * display when the window is resized.
+ *
+ * Only the friends that fit in the window are drawn: the friend list
+ * reuses a small pool of GLabels, one per visible row, and the mouse
+ * wheel scrolls through the rest, so a profile with a huge number of
+ * friends costs no more to show than one with a screenful.
+ *
+ * Below the status, the left column lists "People you may know", which
+ * FacePamphlet works out with FacePamphletRecommender and passes to
+ * showRecommendations once they are ready.
+ *
+ * displayFeed shows a profile's news feed (see FacePamphletFeed) in
+ * place of the profile, one status per row, as many as fit, and
+ * displayStats shows the report of FacePamphletMetrics the same way.
+ * displayProfile is timed under "canvas.displayProfile".
+ *
+ * The canvas reads the profiles it is given on the event thread, at any
+ * time (for example when the friend list is scrolled), so they must not
+ * be changed by other threads; FacePamphlet gives it copies (see
+ * FacePamphletProfile.copy).  A profile with the same name as the one
+ * displayed is taken to be a newer copy of it.
  */
 
 import acm.graphics.*;
 import java.awt.*;
+import java.awt.event.*;
 import java.util.*;
+import java.util.List;
 
 public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants {
 
@@ -16,12 +38,24 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 	 * Constructor This method takes care of any initialization needed for the
 	 * display
 	 */
-	public FacePamphletCanvas() {
+	public FacePamphletCanvas(FacePamphletImageCache cache) {
+		imageCache = cache;
 
 		// Initialize GLabels //
 		appMessage = new GLabel("");
 		profileName = new GLabel("");
-
+		moreFriendsLabel = new GLabel("");
+		moreFriendsLabel.setFont(PROFILE_FRIEND_FONT);
+		moreFriendsLabel.setColor(Color.GRAY);
+		recommendationHeader = new GLabel("People you may know:");
+		recommendationHeader.setFont(PROFILE_FRIEND_LABEL_FONT);
+
+		// Scroll the friend list with the mouse wheel //
+		addMouseWheelListener(new MouseWheelListener() {
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				scrollFriends(e.getWheelRotation() * FRIEND_SCROLL_ROWS);
+			}
+		});
 	}
 
 	/*
@@ -46,27 +80,215 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 	 * network.
 	 */
 	public void displayProfile(FacePamphletProfile profile) {
-		// Clear the canvas //
-		removeAll();
-
-		if (profile != null) {
+		long start = DISPLAY_TIMER.start();
+		try {
+			// Clear the canvas //
+			removeAll();
+			displayedProfile = profile;
+			friendScroll = 0;
+			friendRowsAdded = 0;
+			moreFriendsLabelAdded = false;
+			recommendationRowsAdded = 0;
+			recommendationHeaderAdded = false;
+
+			if (profile != null) {
+
+				// Add name to profile //
+				addName(profile.getName());
+
+				// Profile image //
+				addProfileImage(profile);
+
+				// Status //
+				addStatus(profile);
+
+				// Friends //
+				addFriendHeader();
+				addFriends(profile);
+
+			}
+		} finally {
+			DISPLAY_TIMER.stop(start);
+		}
+	}
 
-			// Add name to profile //
-			addName(profile.getName());
+	/*
+	 * This method updates just the status label of the displayed profile
+	 * (and clears any message), instead of redrawing the whole profile. If a
+	 * different profile is displayed, the given profile is displayed instead.
+	 */
+	public void updateStatus(FacePamphletProfile profile) {
+		if (!isDisplayed(profile)) {
+			displayProfile(profile);
+			return;
+		}
+		displayedProfile = profile;
+		appMessage.setLabel("");
+		profileStatus.setLabel(getStatusText(profile));
+	}
 
-			// Profile image //
-			addProfileImage(profile);
+	/*
+	 * This method updates just the image of the displayed profile. If a
+	 * different profile is displayed, the given profile is displayed instead.
+	 */
+	public void updateImage(FacePamphletProfile profile) {
+		if (!isDisplayed(profile)) {
+			displayProfile(profile);
+			return;
+		}
+		displayedProfile = profile;
+		appMessage.setLabel("");
+		if (profileImage != null) {
+			remove(profileImage);
+		}
+		if (emptyImage != null) {
+			remove(emptyImage);
+		}
+		addProfileImage(profile);
+	}
 
-			// Status //
-			addStatus(profile);
+	/*
+	 * This method adds one friend's name to the bottom of the displayed
+	 * profile's list of friends, leaving the rest of the canvas as it is. If a
+	 * different profile is displayed, the given profile is displayed instead.
+	 */
+	public void addFriendToDisplay(FacePamphletProfile profile, String friend) {
+		if (!isDisplayed(profile)) {
+			displayProfile(profile);
+			return;
+		}
+		displayedProfile = profile;
+		appMessage.setLabel("");
+		int index = profile.getFriendCount() - 1;
+		if (index < friendScroll + getVisibleFriendRows()) {
+			showFriendRow(profile, index - friendScroll);
+		}
+		updateMoreFriendsLabel(profile);
+	}
 
-			// Friends //
-			addFriendHeader();
+	/*
+	 * This method scrolls the displayed profile's list of friends by the given
+	 * number of rows (down if positive, up if negative), relabelling the
+	 * pooled GLabels rather than creating new ones.
+	 */
+	public void scrollFriends(int rows) {
+		FacePamphletProfile profile = displayedProfile;
+		if (profile == null) {
+			return;
+		}
+		int visible = getVisibleFriendRows();
+		int max = Math.max(0, profile.getFriendCount() - visible);
+		int scroll = Math.max(0, Math.min(max, friendScroll + rows));
+		if (scroll != friendScroll) {
+			friendScroll = scroll;
 			addFriends(profile);
+		}
+	}
 
+	/*
+	 * This method lists the given names under "People you may know" in the
+	 * left column, replacing any listed before. The list is ignored if a
+	 * different profile is displayed by the time it arrives, and the section
+	 * is hidden if there is nobody to suggest.
+	 */
+	public void showRecommendations(FacePamphletProfile profile, List<String> people) {
+		if (!isDisplayed(profile)) {
+			return;
+		}
+		if (!recommendationHeaderAdded) {
+			add(recommendationHeader, getLeftColumnX(), getRecommendationHeaderY());
+			recommendationHeaderAdded = true;
+		}
+		recommendationHeader.setVisible(!people.isEmpty());
+		int rows = Math.min(people.size(), getVisibleRecommendationRows());
+		for (int row = 0; row < rows; row++) {
+			while (recommendationLabels.size() <= row) {
+				GLabel label = new GLabel("");
+				label.setFont(PROFILE_FRIEND_FONT);
+				recommendationLabels.add(label);
+			}
+			GLabel label = recommendationLabels.get(row);
+			if (row >= recommendationRowsAdded) {
+				add(label, getLeftColumnX(), getRecommendationY(label, row));
+				recommendationRowsAdded++;
+			}
+			label.setLabel(people.get(row));
+			label.setVisible(true);
+		}
+		for (int row = rows; row < recommendationRowsAdded; row++) {
+			recommendationLabels.get(row).setVisible(false);
 		}
 	}
 
+	/*
+	 * This method clears the canvas and shows the given news feed for
+	 * profile: one row per status, newest first, with the friend who set it
+	 * and how long ago, for as many rows as fit above the message line.
+	 */
+	public void displayFeed(FacePamphletProfile profile, List<FacePamphletStatusUpdate> feed) {
+		displayProfile(null);
+		if (profile == null) {
+			return;
+		}
+		GLabel header = new GLabel("News feed for " + profile.getName());
+		header.setFont(PROFILE_NAME_FONT);
+		header.setColor(Color.BLUE);
+		add(header, getLeftColumnX(), getNameY(header));
+		if (feed.isEmpty()) {
+			GLabel empty = new GLabel("No statuses from friends yet");
+			empty.setFont(PROFILE_STATUS_FONT);
+			add(empty, getLeftColumnX(), getNameY(header) + IMAGE_MARGIN);
+			return;
+		}
+		double height = getHeight() > 0 ? getHeight() : APPLICATION_HEIGHT;
+		double bottom = height - BOTTOM_MESSAGE_MARGIN - appMessage.getHeight();
+		double y = getNameY(header) + IMAGE_MARGIN;
+		long now = System.currentTimeMillis();
+		for (FacePamphletStatusUpdate update : feed) {
+			GLabel row = new GLabel(update.getName() + ": " + update.getStatus() + " ("
+					+ getAge(now - update.getTime()) + ")");
+			row.setFont(PROFILE_STATUS_FONT);
+			if (y + row.getHeight() > bottom) {
+				break;
+			}
+			add(row, getLeftColumnX(), y);
+			y += row.getHeight();
+		}
+	}
+
+	/*
+	 * This method shows the given lines of the metrics report (see
+	 * FacePamphletMetrics.getReportLines) in place of the profile, as many as
+	 * fit.
+	 */
+	public void displayStats(List<String> lines) {
+		displayProfile(null);
+		GLabel header = new GLabel("Statistics");
+		header.setFont(PROFILE_NAME_FONT);
+		header.setColor(Color.BLUE);
+		add(header, getLeftColumnX(), getNameY(header));
+		double height = getHeight() > 0 ? getHeight() : APPLICATION_HEIGHT;
+		double bottom = height - BOTTOM_MESSAGE_MARGIN - appMessage.getHeight();
+		double y = getNameY(header) + IMAGE_MARGIN;
+		for (String line : lines) {
+			GLabel row = new GLabel(line);
+			row.setFont(STATS_FONT);
+			if (y + row.getHeight() > bottom) {
+				break;
+			}
+			add(row, getLeftColumnX(), y);
+			y += row.getHeight();
+		}
+	}
+
+	/*
+	 * This method returns true if a profile with the same name as the given
+	 * one is displayed.
+	 */
+	private boolean isDisplayed(FacePamphletProfile profile) {
+		return profile != null && displayedProfile != null && profile.getName().equals(displayedProfile.getName());
+	}
+
 	/* add a GLabel to canvas with the profile name */
 	private void addName(String name) {
 		profileName.setLabel(name);
@@ -77,11 +299,31 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 
 	/*
 	 * this method checks to see if there is an image filepath provided if so,
-	 * it scales the image and calls addImage method to add it to the canvas
+	 * it adds the (already scaled) image to the canvas if it is cached, or
+	 * shows an empty box and asks the image cache to load it in the
+	 * background, redisplaying the profile when it arrives
 	 */
-	private void addProfileImage(FacePamphletProfile prof) {
-		if (prof.getImage() != null) {
-			profileImage = prof.getImage();
+	private void addProfileImage(final FacePamphletProfile prof) {
+		String file = prof.getImageFile();
+		profileImage = null;
+		emptyImage = null;
+		if (file != null) {
+			profileImage = imageCache.getImage(file);
+			if (profileImage == null) {
+				imageCache.loadImage(file, new FacePamphletImageCache.ImageListener() {
+					public void imageLoaded(String file, GImage image) {
+						if (isDisplayed(prof) && file.equals(displayedProfile.getImageFile())) {
+							updateImage(displayedProfile);
+						}
+					}
+
+					public void imageFailed(String file) {
+						// leave the empty box in place
+					}
+				});
+			}
+		}
+		if (profileImage != null) {
 			profileImage.setSize(IMAGE_WIDTH, IMAGE_HEIGHT); // resizes GImage
 																// to set bounds
 			addImage(profileImage);
@@ -101,17 +343,21 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 
 	/* This method sets and adds the profileStatus GLabel */
 	private void addStatus(FacePamphletProfile prof) {
-		String status = prof.getStatus();
-		if (status != null && status.length() > 0) {
-			profileStatus = new GLabel(status);
-		} else {
-			profileStatus = new GLabel("No current status");
-		}
+		profileStatus = new GLabel(getStatusText(prof));
 		// add status to canvas //
 		profileStatus.setFont(PROFILE_STATUS_FONT);
 		add(profileStatus, getLeftColumnX(), getStatusY());
 	}
 
+	/* This method returns the text shown in the profileStatus GLabel */
+	private String getStatusText(FacePamphletProfile prof) {
+		String status = prof.getStatus();
+		if (status != null && status.length() > 0) {
+			return status;
+		}
+		return "No current status";
+	}
+
 	/*
 	 * This method adds the header "Friends:" to the canvas
 	 */
@@ -122,30 +368,108 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 	}
 
 	/*
-	 * This method iterates through FacePamphletProfile prof's list of friends
-	 * to create a GLabel for each friend, to be displayed beneath the
+	 * This method shows the rows of FacePamphletProfile prof's list of friends
+	 * that fit on the canvas, starting at friendScroll, beneath the
 	 * friendHeader
 	 */
 
 	private void addFriends(FacePamphletProfile prof) {
-		Iterator<String> it = prof.getFriends();
-		int i = 0;
-		while (it.hasNext()) {
-			addFriendsListToCanvas(it.next(), i);
-			i++;
+		int visible = getVisibleFriendRows();
+		for (int row = 0; row < visible; row++) {
+			showFriendRow(prof, row);
+		}
+		for (int row = visible; row < friendRowsAdded; row++) {
+			friendLabels.get(row).setVisible(false);
 		}
+		updateMoreFriendsLabel(prof);
 	}
 
 	/*
-	 * This method adds a GLabel to the canvas for each friend of the current
-	 * profile displays each profile name, stacked vertically below the
-	 * friendHeader
+	 * This method shows the friend at position friendScroll + row in the
+	 * given row of the friend list, or hides the row if there is no such
+	 * friend. Rows reuse the GLabels in friendLabels, which are created the
+	 * first time each row is needed and added to the canvas (in row order)
+	 * the first time each row is shown after the canvas is cleared.
 	 */
+	private void showFriendRow(FacePamphletProfile prof, int row) {
+		while (friendLabels.size() <= row) {
+			GLabel label = new GLabel("");
+			label.setFont(PROFILE_FRIEND_FONT);
+			friendLabels.add(label);
+		}
+		while (friendRowsAdded <= row) {
+			GLabel label = friendLabels.get(friendRowsAdded);
+			label.setVisible(false);
+			add(label, getRightColumnX(), getFriendsListY(label, friendRowsAdded));
+			friendRowsAdded++;
+		}
+		GLabel friendsName = friendLabels.get(row);
+		int index = friendScroll + row;
+		if (index < prof.getFriendCount()) {
+			friendsName.setLabel(prof.getFriend(index));
+			friendsName.setVisible(true);
+		} else {
+			friendsName.setVisible(false);
+		}
+	}
 
-	private void addFriendsListToCanvas(String str, int i) {
-		GLabel friendsName = new GLabel(str);
-		friendsName.setFont(PROFILE_FRIEND_FONT);
-		add(friendsName, getRightColumnX(), getFriendsListY(friendsName, i));
+	/*
+	 * This method shows which friends are on screen below the list (for
+	 * example "21-40 of 5000 (scroll for more)"), or hides that line when the
+	 * whole list fits.
+	 */
+	private void updateMoreFriendsLabel(FacePamphletProfile prof) {
+		int visible = getVisibleFriendRows();
+		int count = prof.getFriendCount();
+		if (count <= visible) {
+			moreFriendsLabel.setVisible(false);
+			return;
+		}
+		int last = Math.min(count, friendScroll + visible);
+		moreFriendsLabel.setLabel((friendScroll + 1) + "-" + last + " of " + count + " (scroll for more)");
+		moreFriendsLabel.setVisible(true);
+		if (!moreFriendsLabelAdded) {
+			add(moreFriendsLabel, getRightColumnX(), getFriendsListY(moreFriendsLabel, visible));
+			moreFriendsLabelAdded = true;
+		}
+	}
+
+	/*
+	 * This method returns how many friend rows fit between the friendHeader
+	 * and the message line at the bottom of the canvas (leaving one row for
+	 * moreFriendsLabel).
+	 */
+	private int getVisibleFriendRows() {
+		double height = getHeight() > 0 ? getHeight() : APPLICATION_HEIGHT;
+		double rowHeight = moreFriendsLabel.getHeight();
+		double top = getFriendsListY(moreFriendsLabel, 0);
+		double bottom = height - BOTTOM_MESSAGE_MARGIN - appMessage.getHeight();
+		return Math.max(1, (int) ((bottom - top) / rowHeight) - 1);
+	}
+
+	/*
+	 * This method returns how many rows of suggestions fit between the
+	 * recommendationHeader and the message line, up to RECOMMENDATION_COUNT.
+	 */
+	private int getVisibleRecommendationRows() {
+		double height = getHeight() > 0 ? getHeight() : APPLICATION_HEIGHT;
+		double rowHeight = moreFriendsLabel.getHeight();
+		double bottom = height - BOTTOM_MESSAGE_MARGIN - appMessage.getHeight();
+		int fit = (int) ((bottom - getRecommendationHeaderY()) / rowHeight);
+		return Math.max(0, Math.min(RECOMMENDATION_COUNT, fit));
+	}
+
+	/* This method describes an age in milliseconds, such as "5 min ago" */
+	private static String getAge(long millis) {
+		long minutes = millis / 60000;
+		if (minutes < 1) {
+			return "just now";
+		} else if (minutes < 60) {
+			return minutes + " min ago";
+		} else if (minutes < 24 * 60) {
+			return (minutes / 60) + " h ago";
+		}
+		return (minutes / (24 * 60)) + " d ago";
 	}
 
 	/* GObject coordinate methods */
@@ -166,6 +490,14 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 		return getImageY() + IMAGE_HEIGHT + IMAGE_MARGIN + STATUS_MARGIN;
 	}
 
+	private double getRecommendationHeaderY() {
+		return getStatusY() + STATUS_MARGIN + recommendationHeader.getHeight();
+	}
+
+	private double getRecommendationY(GLabel label, int i) {
+		return getRecommendationHeaderY() + label.getHeight() * (i + 1);
+	}
+
 	private double getRightColumnX() {
 		return APPLICATION_WIDTH / 2.0;
 	}
@@ -178,6 +510,12 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 		return getFriendHeaderY(friendHeader) + +friendHeader.getHeight() + label.getHeight() * i;
 	}
 
+	/* Number of friend rows scrolled by one notch of the mouse wheel */
+	private static final int FRIEND_SCROLL_ROWS = 3;
+
+	private static final FacePamphletMetrics.Timer DISPLAY_TIMER = FacePamphletMetrics.getGlobal().timer(
+			"canvas.displayProfile");
+
 	// Private instance variables //
 
 	GImage profileImage;
@@ -187,4 +525,15 @@ public class FacePamphletCanvas extends GCanvas implements FacePamphletConstants
 	GLabel profileStatus;
 	GCompound profile;
 	GLabel friendHeader;
+	FacePamphletProfile displayedProfile;
+	int friendScroll;
+	ArrayList<GLabel> friendLabels = new ArrayList<GLabel>();
+	int friendRowsAdded;
+	GLabel moreFriendsLabel;
+	boolean moreFriendsLabelAdded;
+	GLabel recommendationHeader;
+	boolean recommendationHeaderAdded;
+	ArrayList<GLabel> recommendationLabels = new ArrayList<GLabel>();
+	int recommendationRowsAdded;
+	FacePamphletImageCache imageCache;
 }
@@ -0,0 +1,157 @@
+/*
+ * File: FacePamphletCommandQueue.java
+ * -----------------------------------
+ * This class runs database commands for FacePamphlet on a background
+ * worker thread, so that a slow command (a large delete, a lookup that
+ * reads from disk, a change that waits for the log to sync) never
+ * freezes the window.  Commands run one at a time in the order they
+ * were submitted, and each command's result is handed back on the Swing
+ * event thread, where it can update the canvas.
+ *
+ * A command submitted with a key replaces any command with the same key
+ * that is still waiting to run, so a burst of, say, status changes to
+ * one profile only writes the last one.  The new command still takes
+ * its own place at the end of the queue (the one it replaces is just
+ * skipped), so it runs after everything submitted before it.
+ *
+ * The worker and the event thread share no lock, so a command that
+ * takes a long time never holds up the window.  Instead, a command
+ * should return only values that nothing changes afterwards, such as a
+ * copy of a profile (see FacePamphletProfile.copy), for its handler to
+ * show; handlers must not read the database themselves.  A command that
+ * throws is reported to the queue's FailureHandler, also on the event
+ * thread, and the commands after it run as usual.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+public class FacePamphletCommandQueue {
+
+	/*
+	 * The interface implemented by the handlers that receive command results.
+	 * It is called on the Swing event thread.
+	 */
+	public interface ResultHandler<T> {
+
+		/* Called with the value returned by the command. */
+		public void handleResult(T result);
+	}
+
+	/*
+	 * The interface implemented by the handler told about commands that fail.
+	 * It is called on the Swing event thread.
+	 */
+	public interface FailureHandler {
+
+		/* Called with the exception thrown by the command. */
+		public void handleFailure(Exception ex);
+	}
+
+	/*
+	 * Creates a queue with its own worker thread, which reports commands that
+	 * fail to failures.
+	 */
+	public FacePamphletCommandQueue(FailureHandler failures) {
+		this.failures = failures;
+		worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FacePamphletCommandQueue worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * This method queues command to run on the worker thread, after which
+	 * handler (which may be null) is called with its result on the event
+	 * thread.
+	 */
+	public <T> void submit(Callable<T> command, ResultHandler<T> handler) {
+		final Command<T> queued = new Command<T>(command, handler);
+		worker.execute(new Runnable() {
+			public void run() {
+				queued.run();
+			}
+		});
+	}
+
+	/*
+	 * This method is like submit, except that if a command submitted with the
+	 * same key is still waiting to run, that command is skipped (and its
+	 * handler is never called). This one runs in its own turn, after every
+	 * command submitted before it.
+	 */
+	public <T> void submit(final String key, Callable<T> command, ResultHandler<T> handler) {
+		final Command<T> queued = new Command<T>(command, handler);
+		synchronized (waiting) {
+			if (waiting.put(key, queued) != null) {
+				// the earlier command's task will find it was replaced
+				coalesced++;
+			}
+		}
+		worker.execute(new Runnable() {
+			public void run() {
+				synchronized (waiting) {
+					if (waiting.get(key) != queued) {
+						return;
+					}
+					waiting.remove(key);
+				}
+				queued.run();
+			}
+		});
+	}
+
+	/* This method returns how many commands were replaced before running. */
+	public int getCoalescedCount() {
+		synchronized (waiting) {
+			return coalesced;
+		}
+	}
+
+	/* A command together with the handler for its result. */
+	private class Command<T> {
+
+		public Command(Callable<T> command, ResultHandler<T> handler) {
+			this.command = command;
+			this.handler = handler;
+		}
+
+		/* Runs the command, then hands its result to the event thread. */
+		public void run() {
+			final T result;
+			try {
+				result = command.call();
+			} catch (final Exception ex) {
+				// a failed command must not stop the commands after it
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						failures.handleFailure(ex);
+					}
+				});
+				return;
+			}
+			if (handler != null) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						handler.handleResult(result);
+					}
+				});
+			}
+		}
+
+		private Callable<T> command;
+		private ResultHandler<T> handler;
+	}
+
+	/* private instance variables */
+	private ExecutorService worker;
+	private FailureHandler failures;
+
+	/* The latest command submitted with each key that has not yet run */
+	private HashMap<String, Command<?>> waiting = new HashMap<String, Command<?>>();
+	private int coalesced;
+}
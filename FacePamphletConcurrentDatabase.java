@@ -0,0 +1,429 @@
+/*
+ * File: FacePamphletConcurrentDatabase.java
+ * -----------------------------------------
+ * This class is a FacePamphletDatabase that may be shared by many
+ * threads at once.  Profiles are looked up without locking, while
+ * every change is made under a set of striped locks chosen by profile
+ * ID: a reciprocal addFriend/removeFriend holds the stripes of both
+ * profiles, and deleteProfile holds the stripes of the deleted profile
+ * and all of its friends, so each of these operations is applied
+ * atomically, and applyBatch holds every stripe.  Stripes are always
+ * acquired in increasing order, so operations can never deadlock with
+ * each other.
+ *
+ * Friend lists of profiles that other threads may be changing should be
+ * read through getFriendNames rather than FacePamphletProfile.getFriends,
+ * or a whole consistent view taken with snapshot.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+public class FacePamphletConcurrentDatabase extends FacePamphletDatabase {
+
+	/* Creates an empty database with the default number of lock stripes. */
+	public FacePamphletConcurrentDatabase() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/*
+	 * Creates an empty database whose profiles are spread across the given
+	 * number of lock stripes (rounded up to a power of two).
+	 */
+	public FacePamphletConcurrentDatabase(int stripes) {
+		super(new ConcurrentHashMap<String, FacePamphletProfile>());
+		int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		locks = new ReentrantLock[n];
+		for (int i = 0; i < n; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	@Override
+	public void addProfile(FacePamphletProfile profile) {
+		// its friends' IDs pick the stripes, so they must be this database's //
+		profile.setNameRegistry(names);
+		int id = names.getId(profile.getName());
+		BitSet held = lockAll(id, profile);
+		try {
+			super.addProfile(profile);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/*
+	 * This method adds the given profile only if there is no profile with its
+	 * name yet, checking and adding atomically. It returns true if the profile
+	 * was added.
+	 */
+	public boolean addProfileIfAbsent(FacePamphletProfile profile) {
+		if (containsProfile(profile.getName())) {
+			return false;
+		}
+		profile.setNameRegistry(names);
+		int id = names.getId(profile.getName());
+		BitSet held = lockAll(id, profile);
+		try {
+			if (containsProfile(profile.getName())) {
+				return false;
+			}
+			super.addProfile(profile);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public void deleteProfile(String name) {
+		int id = names.findId(name);
+		if (id < 0) {
+			return;
+		}
+		BitSet held = lockAll(id, null);
+		try {
+			super.deleteProfile(name);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean addFriend(String name, String friend) {
+		// a name without an ID has never been a profile //
+		int id = names.findId(name);
+		int friendId = names.findId(friend);
+		if (id < 0 || friendId < 0) {
+			return false;
+		}
+		BitSet held = lockPair(id, friendId);
+		try {
+			return super.addFriend(name, friend);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public boolean removeFriend(String name, String friend) {
+		int id = names.findId(name);
+		int friendId = names.findId(friend);
+		if (id < 0 || friendId < 0) {
+			return false;
+		}
+		BitSet held = lockPair(id, friendId);
+		try {
+			return super.removeFriend(name, friend);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	@Override
+	public void setStatus(String name, String status, long time) {
+		int id = names.findId(name);
+		if (id < 0) {
+			return;
+		}
+		ReentrantLock lock = locks[stripe(id)];
+		lock.lock();
+		try {
+			super.setStatus(name, status, time);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setImage(String name, String file) {
+		int id = names.findId(name);
+		if (id < 0) {
+			return;
+		}
+		ReentrantLock lock = locks[stripe(id)];
+		lock.lock();
+		try {
+			super.setImage(name, file);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* A batch may touch any profile, so it is applied with every stripe held. */
+	@Override
+	public int applyBatch(FacePamphletBatch batch, boolean parallel) {
+		BitSet all = new BitSet(locks.length);
+		all.set(0, locks.length);
+		lock(all);
+		try {
+			return super.applyBatch(batch, parallel);
+		} finally {
+			unlock(all);
+		}
+	}
+
+	/*
+	 * The first snapshot is built while every stripe is held, so that no
+	 * change can be half made while the profiles are copied. The stripes are
+	 * taken before the database's snapshot lock, in the same order as every
+	 * change takes them.
+	 */
+	@Override
+	public FacePamphletSnapshot snapshot() {
+		if (snapshotBuilt) {
+			return super.snapshot();
+		}
+		BitSet all = new BitSet(locks.length);
+		all.set(0, locks.length);
+		lock(all);
+		try {
+			FacePamphletSnapshot result = super.snapshot();
+			snapshotBuilt = true;
+			return result;
+		} finally {
+			unlock(all);
+		}
+	}
+
+	/*
+	 * Changes are guarded by the stripes, and the first snapshot is built
+	 * while holding all of them, so the change lock is not needed.
+	 */
+	@Override
+	void lockChanges() {
+	}
+
+	@Override
+	void unlockChanges() {
+	}
+
+	/*
+	 * This method returns a copy of the named profile's list of friends, taken
+	 * while no other thread can change it. If there is no profile with the
+	 * given name, the method returns an empty list.
+	 */
+	public List<String> getFriendNames(String name) {
+		ArrayList<String> result = new ArrayList<String>();
+		int id = names.findId(name);
+		if (id < 0) {
+			return result;
+		}
+		ReentrantLock lock = locks[stripe(id)];
+		lock.lock();
+		try {
+			FacePamphletProfile prof = friendsDatabase.get(name);
+			if (prof != null) {
+				Iterator<String> it = prof.getFriends();
+				while (it.hasNext()) {
+					result.add(it.next());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return result;
+	}
+
+	/*
+	 * This method writes the whole database to storage as a snapshot while
+	 * holding every stripe, so that no change is half made while it is
+	 * written. Changes made meanwhile wait until it is done.
+	 */
+	public void checkpoint(FacePamphletStorage storage) throws IOException {
+		BitSet all = new BitSet(locks.length);
+		all.set(0, locks.length);
+		lock(all);
+		try {
+			storage.checkpoint(this);
+		} finally {
+			unlock(all);
+		}
+	}
+
+	/*
+	 * This method checks, while holding every stripe, that every friend listed
+	 * by a profile is itself a profile that lists it back, that the reverse
+	 * friend index records exactly those listings, and that the snapshot (if
+	 * one has been taken) has the same friends. It returns a description of
+	 * the first problem found, or null if there is none. Friendships are only
+	 * symmetric if profiles were added without friends of their own. It looks
+	 * at every profile, so it is meant for stress tests (see
+	 * FacePamphletBenchmark.concurrentBenchmarks).
+	 */
+	String checkFriendships() {
+		BitSet all = new BitSet(locks.length);
+		all.set(0, locks.length);
+		lock(all);
+		try {
+			FacePamphletSnapshot snap = snapshotBuilt ? super.snapshot() : null;
+			int listings = 0;
+			for (FacePamphletProfile prof : friendsDatabase.values()) {
+				int id = names.findId(prof.getName());
+				PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+				while (it.hasNext()) {
+					int friendId = it.nextInt();
+					String friend = names.getName(friendId);
+					FacePamphletProfile friendProf = friendsDatabase.get(friend);
+					if (friendProf == null) {
+						return prof.getName() + " lists " + friend + ", which is not a profile";
+					}
+					if (!friendProf.getFriendIds().contains(id)) {
+						return prof.getName() + " lists " + friend + ", who does not list it back";
+					}
+					FacePamphletFriendSet friendedBy = concurrentIndex.get(friendId);
+					if (friendedBy == null || !friendedBy.contains(id)) {
+						return "the index is missing that " + prof.getName() + " lists " + friend;
+					}
+					listings++;
+				}
+				if (snap != null && snap.getFriendCount(prof.getName()) != prof.getFriendCount()) {
+					return "the snapshot has " + snap.getFriendCount(prof.getName()) + " friends for "
+							+ prof.getName() + ", not " + prof.getFriendCount();
+				}
+			}
+			int indexed = 0;
+			for (FacePamphletFriendSet friendedBy : concurrentIndex.values()) {
+				indexed += friendedBy.size();
+			}
+			if (indexed != listings) {
+				return "the index records " + indexed + " listings, not " + listings;
+			}
+			if (snap != null && snap.getProfileCount() != friendsDatabase.size()) {
+				return "the snapshot has " + snap.getProfileCount() + " profiles, not " + friendsDatabase.size();
+			}
+			return null;
+		} finally {
+			unlock(all);
+		}
+	}
+
+	/*
+	 * The reverse friend index is kept in a concurrent map, since entries for
+	 * different stripes are created and removed by different threads. Each
+	 * entry is only ever changed while the stripe of its key is held.
+	 */
+	@Override
+	void indexFriend(int id, int friendId) {
+		FacePamphletFriendSet friendedBy = concurrentIndex.get(friendId);
+		if (friendedBy == null) {
+			friendedBy = new FacePamphletFriendSet();
+			concurrentIndex.put(friendId, friendedBy);
+		}
+		friendedBy.add(id);
+	}
+
+	@Override
+	void unindexFriend(int id, int friendId) {
+		FacePamphletFriendSet friendedBy = concurrentIndex.get(friendId);
+		if (friendedBy != null) {
+			friendedBy.remove(id);
+			if (friendedBy.size() == 0) {
+				concurrentIndex.remove(friendId);
+			}
+		}
+	}
+
+	@Override
+	FacePamphletFriendSet takeFriendedBy(int id) {
+		if (id < 0) {
+			return null;
+		}
+		return concurrentIndex.remove(id);
+	}
+
+	/* Locks the stripes of two profiles, lowest stripe first. */
+	private BitSet lockPair(int id, int friendId) {
+		BitSet stripes = new BitSet(locks.length);
+		stripes.set(stripe(id));
+		stripes.set(stripe(friendId));
+		lock(stripes);
+		return stripes;
+	}
+
+	/*
+	 * Locks every stripe that a change to the profile with ID id can touch:
+	 * its own, those of its current friends and of the profiles that list it
+	 * as a friend, and (when adding) those of the friends of the incoming
+	 * profile. The set is first worked out under the profile's own stripe,
+	 * which is all it takes to keep it from changing, and is checked again
+	 * once every stripe is held, retrying in the rare case it grew meanwhile.
+	 */
+	private BitSet lockAll(int id, FacePamphletProfile incoming) {
+		BitSet needed;
+		ReentrantLock own = locks[stripe(id)];
+		own.lock();
+		try {
+			needed = stripesFor(id, incoming);
+		} finally {
+			own.unlock();
+		}
+		while (true) {
+			lock(needed);
+			BitSet now = stripesFor(id, incoming);
+			BitSet missing = (BitSet) now.clone();
+			missing.andNot(needed);
+			if (missing.isEmpty()) {
+				return needed;
+			}
+			unlock(needed);
+			needed.or(now);
+		}
+	}
+
+	/* Works out the stripes described in lockAll. */
+	private BitSet stripesFor(int id, FacePamphletProfile incoming) {
+		BitSet stripes = new BitSet(locks.length);
+		stripes.set(stripe(id));
+		FacePamphletProfile current = friendsDatabase.get(names.getName(id));
+		if (current != null) {
+			addStripes(stripes, current.getFriendIds());
+		}
+		FacePamphletFriendSet friendedBy = concurrentIndex.get(id);
+		if (friendedBy != null) {
+			addStripes(stripes, friendedBy);
+		}
+		if (incoming != null) {
+			addStripes(stripes, incoming.getFriendIds());
+		}
+		return stripes;
+	}
+
+	/* Adds the stripe of every ID in set to stripes. */
+	private void addStripes(BitSet stripes, FacePamphletFriendSet set) {
+		PrimitiveIterator.OfInt it = set.iterator();
+		while (it.hasNext()) {
+			stripes.set(stripe(it.nextInt()));
+		}
+	}
+
+	/* Acquires the given stripes in increasing order. */
+	private void lock(BitSet stripes) {
+		for (int i = stripes.nextSetBit(0); i >= 0; i = stripes.nextSetBit(i + 1)) {
+			locks[i].lock();
+		}
+	}
+
+	/* Releases the given stripes in decreasing order. */
+	private void unlock(BitSet stripes) {
+		for (int i = stripes.previousSetBit(stripes.length() - 1); i >= 0; i = stripes.previousSetBit(i - 1)) {
+			locks[i].unlock();
+		}
+	}
+
+	/* Returns the stripe guarding the profile with the given ID. */
+	private int stripe(int id) {
+		return (id ^ (id >>> 16)) & (locks.length - 1);
+	}
+
+	/* Number of lock stripes used by the no-argument constructor. */
+	private static final int DEFAULT_STRIPES = 256;
+
+	/* private instance variables */
+	private ReentrantLock[] locks;
+	private volatile boolean snapshotBuilt;
+	private FacePamphletNameRegistry names = getNameRegistry();
+	private ConcurrentHashMap<Integer, FacePamphletFriendSet> concurrentIndex = new ConcurrentHashMap<Integer, FacePamphletFriendSet>();
+}
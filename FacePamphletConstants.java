@@ -54,6 +54,12 @@ public interface FacePamphletConstants {
 	 */
 	public static final String PROFILE_FRIEND_FONT = "Dialog-16";
 
+	/**
+	 * Name of font used to display the statistics view, fixed width so that
+	 * its columns line up
+	 */
+	public static final String STATS_FONT = "Monospaced-12";
+
 	/** The width (in pixels) that profile images should be displayed */
 	public static final double IMAGE_WIDTH = 200;
 
@@ -93,4 +99,41 @@ public interface FacePamphletConstants {
 	 */
 	public static final double STATUS_MARGIN = 20;
 
+	/**
+	 * The most profiles listed under "People you may know" in a profile (fewer
+	 * are shown if they do not fit)
+	 */
+	public static final int RECOMMENDATION_COUNT = 5;
+
+	/**
+	 * The most profile names suggested below a text field while the user types
+	 * into it
+	 */
+	public static final int SUGGESTION_COUNT = 8;
+
+	/** The number of past statuses each profile keeps */
+	public static final int STATUS_HISTORY_DEPTH = 10;
+
+	/** The number of statuses shown in a profile's news feed */
+	public static final int FEED_SIZE = 15;
+
+	/**
+	 * Directory (relative to the working directory) in which the database log
+	 * and snapshot are kept
+	 */
+	public static final String DATA_DIRECTORY = "data";
+
+	/**
+	 * The most memory (in bytes) that scaled profile images may take up before
+	 * the least recently used ones are dropped
+	 */
+	public static final long IMAGE_CACHE_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Profile lookups are timed once in this many calls, and other database
+	 * operations once in UPDATE_SAMPLE_EVERY (see FacePamphletMetrics)
+	 */
+	public static final int LOOKUP_SAMPLE_EVERY = 1024;
+	public static final int UPDATE_SAMPLE_EVERY = 64;
+
 }
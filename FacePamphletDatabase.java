@@ -8,6 +8,9 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 public class FacePamphletDatabase implements FacePamphletConstants {
 
@@ -16,7 +19,60 @@ public class FacePamphletDatabase implements FacePamphletConstants {
 	 * database.
 	 */
 	public FacePamphletDatabase() {
+		this(new HashMap<String, FacePamphletProfile>());
+	}
+
+	/*
+	 * This constructor creates an empty database that gives profile names IDs
+	 * from the given registry, so that databases sharing one registry agree on
+	 * the IDs (see FacePamphletShardedDatabase).
+	 */
+	FacePamphletDatabase(FacePamphletNameRegistry names) {
+		this(new HashMap<String, FacePamphletProfile>(), names);
+	}
+
+	/*
+	 * This constructor creates a database whose profiles start out as those
+	 * in the given graph file. Profiles are read from the file only when they
+	 * are first used, and changes are kept in memory.
+	 */
+	public FacePamphletDatabase(FacePamphletGraphFile graph) {
+		this();
+		graphFile = graph;
+		profileStore = new FacePamphletProfileStore() {
+			public FacePamphletProfile loadProfile(String name) {
+				return graphFile.loadProfile(name, names);
+			}
+		};
+	}
 
+	/*
+	 * This constructor is like the one above, but reads the graph file through
+	 * a FacePamphletProfileCache of at most cacheBytes, so that names looked
+	 * up again and again (present or not) are not looked for in the file each
+	 * time. Profiles that are only read stay in the cache, and so within
+	 * cacheBytes; the database keeps a profile itself only once it changes.
+	 */
+	public FacePamphletDatabase(FacePamphletGraphFile graph, long cacheBytes) {
+		this(graph);
+		profileCache = new FacePamphletProfileCache(profileStore, cacheBytes);
+		profileStore = profileCache;
+	}
+
+	/*
+	 * This constructor lets subclasses such as FacePamphletConcurrentDatabase
+	 * choose the map that holds the profiles.
+	 */
+	FacePamphletDatabase(Map<String, FacePamphletProfile> profiles) {
+		this(profiles, new FacePamphletNameRegistry());
+	}
+
+	/* Does the work of the constructors above. */
+	private FacePamphletDatabase(Map<String, FacePamphletProfile> profiles, FacePamphletNameRegistry names) {
+		friendsDatabase = profiles;
+		this.names = names;
+		nameIndex = new FacePamphletNameIndex(names);
+		statusIndex = new FacePamphletStatusIndex(names);
 	}
 
 	/*
@@ -25,19 +81,58 @@ public class FacePamphletDatabase implements FacePamphletConstants {
 	 * database, the existing profile is replaced by the new profile passed in.
 	 */
 	public void addProfile(FacePamphletProfile profile) {
-		friendsDatabase.put(profile.getName(), profile);
+		long start = ADD_PROFILE_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			profile.setNameRegistry(names);
+			invalidate(profile.getName());
+			FacePamphletProfile replaced = friendsDatabase.put(profile.getName(), profile);
+			if (replaced != null) {
+				unindexFriends(replaced);
+				releaseImage(replaced);
+			}
+			indexFriends(profile);
+			retainImage(profile);
+			friendsChanged(profile);
+			nameIndex.add(profile.getName());
+			statusIndex.statusChanged(profile.getName(), replaced != null ? replaced.getStatus() : null,
+					profile.getStatus());
+			if (snapshot != null) {
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withProfile(profile);
+				}
+			}
+			if (storage != null) {
+				seq = storage.logAddProfile(profile);
+				storage.checkpointIfDue();
+			}
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			ADD_PROFILE_TIMER.stop(start);
+		}
 	}
 
 	/*
 	 * This method returns the profile associated with the given name in the
 	 * database. If there is no profile in the database with the given name, the
-	 * method returns null.
+	 * method returns null. A profile of the graph file that has not changed
+	 * since the file was opened is read from the profile store each time, and
+	 * may be shared by the profile cache; as always, changes must be made
+	 * through the database's methods, never to the profile returned.
 	 */
 	public FacePamphletProfile getProfile(String name) {
-		if (friendsDatabase.containsKey(name)) {
-			return friendsDatabase.get(name);
+		long start = GET_PROFILE_TIMER.start();
+		try {
+			FacePamphletProfile prof = friendsDatabase.get(name);
+			if (prof == null && profileStore != null && !removedFromGraph.contains(name)) {
+				prof = readStoredProfile(name);
+			}
+			return prof;
+		} finally {
+			GET_PROFILE_TIMER.stop(start);
 		}
-		return null;
 	}
 
 	/*
@@ -50,31 +145,909 @@ public class FacePamphletDatabase implements FacePamphletConstants {
 	 * database is unchanged after calling this method.
 	 */
 	public void deleteProfile(String name) {
-		friendsDatabase.remove(name);
+		long start = DELETE_PROFILE_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			FacePamphletProfile deleted = detachProfile(name, null);
+			removeFromFriendLists(name);
+			if (storage != null && deleted != null) {
+				seq = storage.logDeleteProfile(name);
+				storage.checkpointIfDue();
+			}
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			DELETE_PROFILE_TIMER.stop(start);
+		}
+	}
 
-		// Iterates through database, removing name when it is among other
-		// profile's list of friends //
-		for (String friend : friendsDatabase.keySet()) {
-			FacePamphletProfile currentProfile = friendsDatabase.get(friend);
+	/*
+	 * This method takes the named profile out of the database and its
+	 * indexes, and returns it, or returns null if there is no such profile.
+	 * Other profiles that list it as a friend are left alone. Its friends
+	 * whose IDs are in deleting (if not null) are being deleted too, so their
+	 * friendIndex entries are not worth updating.
+	 */
+	private FacePamphletProfile detachProfile(String name, BitSet deleting) {
+		FacePamphletProfile deleted = lookupProfile(name);
+		if (deleted != null) {
+			friendsDatabase.remove(name);
+			int id = names.getId(name);
+			PrimitiveIterator.OfInt it = deleted.getFriendIds().iterator();
+			while (it.hasNext()) {
+				int friendId = it.nextInt();
+				if (deleting == null || !deleting.get(friendId)) {
+					unindexFriend(id, friendId);
+				}
+			}
+			releaseImage(deleted);
+			nameIndex.remove(name);
+			statusIndex.statusChanged(name, deleted.getStatus(), null);
+			if (graphFile != null && graphFile.containsProfile(name)) {
+				// profiles still in the graph file drop name when loaded //
+				removedFromGraph.add(name);
+			}
+		}
+		return deleted;
+	}
 
-			if (isFriendsWith(currentProfile, name)) {
-				currentProfile.removeFriend(name);
+	/*
+	 * This method takes name out of the list of friends of every profile in
+	 * the database that has it. deleteProfile calls it for the deleted
+	 * profile, and FacePamphletShardedDatabase calls it on every shard.
+	 */
+	void removeFromFriendLists(String name) {
+		lockChanges();
+		try {
+			// Only visits the profiles that actually have name in their list of
+			// friends, as recorded in friendIndex //
+			int id = names.findId(name);
+			FacePamphletFriendSet friendedBy = takeFriendedBy(id);
+			if (friendedBy != null) {
+				PrimitiveIterator.OfInt it = friendedBy.iterator();
+				while (it.hasNext()) {
+					FacePamphletProfile friendedByProf = friendsDatabase.get(names.getName(it.nextInt()));
+					friendedByProf.getFriendIds().remove(id);
+					friendsChanged(friendedByProf);
+				}
+			}
+			if (snapshot != null && id >= 0) {
+				int[] friendedByIds = friendedBy != null ? friendedBy.toArray() : new int[0];
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withoutProfile(id, friendedByIds);
+				}
 			}
+		} finally {
+			unlockChanges();
 		}
 	}
 
 	/*
-	 * This method returns true if FacePamphletProfile prof is friends with the
-	 * FacePamphletProfile with a name of String name.
+	 * This method returns up to limit names of profiles in the database that
+	 * start with prefix, in alphabetical order, for suggesting names as the
+	 * user types. If ignoreCase is true, the prefix matches names in either
+	 * case.
+	 *
+	 * For a database opened on a graph file, the first call adds the names of
+	 * all of the file's profiles to the index, which takes a moment for a
+	 * large file.
 	 */
-	private Boolean isFriendsWith(FacePamphletProfile prof, String name) {
-		Iterator<String> it = prof.getFriends();
-		while (it.hasNext()) {
-			if (it.next().equals(name)) {
-				return true;
+	public List<String> findProfileNames(String prefix, int limit, boolean ignoreCase) {
+		long start = FIND_NAMES_TIMER.start();
+		try {
+			if (graphFile != null && !graphNamesIndexed) {
+				int count = graphFile.getProfileCount();
+				for (int i = 0; i < count; i++) {
+					String name = graphFile.getName(i);
+					if (!removedFromGraph.contains(name)) {
+						nameIndex.add(name);
+					}
+				}
+				graphNamesIndexed = true;
+			}
+			return nameIndex.findPrefix(prefix, limit, ignoreCase);
+		} finally {
+			FIND_NAMES_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method returns the names of up to limit profiles whose status
+	 * contains every word in query (ignoring case), those whose status was
+	 * set most recently first.
+	 *
+	 * For a database opened on a graph file, the first call also indexes the
+	 * statuses of all of the file's profiles.
+	 */
+	public List<String> findProfilesByStatus(String query, int limit) {
+		long start = FIND_STATUS_TIMER.start();
+		try {
+			if (graphFile != null && !graphStatusesIndexed) {
+				int count = graphFile.getProfileCount();
+				for (int i = 0; i < count; i++) {
+					String name = graphFile.getName(i);
+					if (removedFromGraph.contains(name) || statusIndex.isIndexed(name)) {
+						continue;
+					}
+					// a profile already read from the file may have a newer status //
+					FacePamphletProfile prof = friendsDatabase.get(name);
+					statusIndex.statusChanged(name, null, prof != null ? prof.getStatus() : graphFile.getStatus(i));
+				}
+				graphStatusesIndexed = true;
+			}
+			return statusIndex.search(query, limit);
+		} finally {
+			FIND_STATUS_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method sets the status of the profile with the given name, if there
+	 * is one.
+	 */
+	public void setStatus(String name, String status) {
+		setStatus(name, status, System.currentTimeMillis());
+	}
+
+	/*
+	 * This method sets the status of the profile with the given name, if there
+	 * is one, as set at the given time. Storage uses it to replay a logged
+	 * status with the time it was first set.
+	 */
+	public void setStatus(String name, String status, long time) {
+		long start = SET_STATUS_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			FacePamphletProfile prof = lookupProfile(name);
+			if (prof != null) {
+				String oldStatus = prof.getStatus();
+				prof.setStatus(status, time);
+				statusIndex.statusChanged(name, oldStatus, status);
+				if (snapshot != null) {
+					synchronized (snapshotLock) {
+						snapshot = snapshot.withStatus(names.getId(name), status);
+					}
+				}
+				if (storage != null) {
+					seq = storage.logSetStatus(name, status, time);
+					storage.checkpointIfDue();
+				}
+			}
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			SET_STATUS_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method sets the image file of the profile with the given name, if
+	 * there is one.
+	 */
+	public void setImage(String name, String file) {
+		long start = SET_IMAGE_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			FacePamphletProfile prof = lookupProfile(name);
+			if (prof != null) {
+				releaseImage(prof);
+				prof.setImageFile(file);
+				retainImage(prof);
+				if (snapshot != null) {
+					synchronized (snapshotLock) {
+						snapshot = snapshot.withImageFile(names.getId(name), file);
+					}
+				}
+				if (storage != null) {
+					seq = storage.logSetImage(name, file);
+					storage.checkpointIfDue();
+				}
+			}
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			SET_IMAGE_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method makes the profiles named name and friend friends with each
+	 * other (reciprocal friending). It returns true if the friendship was new
+	 * and false if either profile does not exist or they were already friends.
+	 */
+	public boolean addFriend(String name, String friend) {
+		long start = ADD_FRIEND_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			FacePamphletProfile prof = lookupProfile(name);
+			FacePamphletProfile friendProf = lookupProfile(friend);
+			if (prof == null || friendProf == null) {
+				return false;
+			}
+			int id = names.getId(name);
+			int friendId = names.getId(friend);
+			boolean added = false;
+			if (prof.getFriendIds().add(friendId)) {
+				indexFriend(id, friendId);
+				friendsChanged(prof);
+				added = true;
+			}
+			if (friendProf.getFriendIds().add(id)) {
+				indexFriend(friendId, id);
+				friendsChanged(friendProf);
+				added = true;
+			}
+			if (snapshot != null && added) {
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withFriendship(id, friendId);
+				}
+			}
+			if (storage != null && added) {
+				seq = storage.logAddFriend(name, friend);
+				storage.checkpointIfDue();
+			}
+			return added;
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			ADD_FRIEND_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method removes the friendship between the profiles named name and
+	 * friend from both profiles' lists of friends. It returns true if either
+	 * list of friends changed.
+	 */
+	public boolean removeFriend(String name, String friend) {
+		long start = REMOVE_FRIEND_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			// looking the profiles up loads them, giving them IDs, first //
+			FacePamphletProfile prof = lookupProfile(name);
+			FacePamphletProfile friendProf = lookupProfile(friend);
+			int id = names.findId(name);
+			int friendId = names.findId(friend);
+			if (id < 0 || friendId < 0) {
+				return false;
+			}
+			boolean removed = false;
+			if (prof != null && prof.getFriendIds().remove(friendId)) {
+				unindexFriend(id, friendId);
+				friendsChanged(prof);
+				removed = true;
+			}
+			if (friendProf != null && friendProf.getFriendIds().remove(id)) {
+				unindexFriend(friendId, id);
+				friendsChanged(friendProf);
+				removed = true;
+			}
+			if (snapshot != null && removed) {
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withoutFriendship(id, friendId);
+				}
+			}
+			if (storage != null && removed) {
+				seq = storage.logRemoveFriend(name, friend);
+				storage.checkpointIfDue();
+			}
+			return removed;
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			REMOVE_FRIEND_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method makes every change in batch (see FacePamphletBatch) and
+	 * returns how many of them changed anything. Each change is split into
+	 * the changes it makes to single profiles, which are grouped by profile,
+	 * so the profiles listing many deleted ones are each visited once. If
+	 * parallel is true, the groups are worked on by the common fork-join
+	 * pool, each task owning a disjoint set of profiles. A snapshot taken
+	 * meanwhile shows either none of the batch or all of it: the changes are
+	 * made to the latest snapshot on the side, a few trie nodes at a time as
+	 * for single changes, and the result replaces it once they are all made.
+	 */
+	public int applyBatch(FacePamphletBatch batch, boolean parallel) {
+		long start = APPLY_BATCH_TIMER.start();
+		long seq = 0;
+		lockChanges();
+		try {
+			int partitions = 1;
+			if (parallel) {
+				partitions = Integer.highestOneBit(ForkJoinPool.commonPool().getParallelism() * 4 - 1) << 1;
+			}
+			boolean[] changed = new boolean[batch.size()];
+			ensureFriendIndexCapacity(names.size());
+			FacePamphletSnapshot snap = snapshot;
+			snap = applyFriendChanges(batch, changed, partitions, snap);
+			snap = applyDeletions(batch, changed, partitions, snap);
+			if (snap != null) {
+				synchronized (snapshotLock) {
+					snapshot = snap;
+				}
+			}
+			if (storage != null) {
+				seq = storage.getLastSequence();
+				storage.checkpointIfDue();
+			}
+			int count = 0;
+			for (boolean c : changed) {
+				if (c) {
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			unlockChanges();
+			awaitDurable(seq);
+			APPLY_BATCH_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * Makes the batch's friendship changes, and returns snap (if not null)
+	 * with them made too. Each change to a pair of existing profiles is made
+	 * of two halves, one to each profile's list of friends, and each half goes
+	 * to the partition of its profile. A first pass changes the lists, each
+	 * half touching only its own profile's list. A second pass brings
+	 * friendIndex up to date: a profile's entry, recording who lists it, is
+	 * changed in its own partition for each half on the other side that
+	 * changed a list. The two halves of a change need not both change their
+	 * lists (one profile may already list the other), so each entry follows
+	 * the list that actually changed.
+	 */
+	private FacePamphletSnapshot applyFriendChanges(final FacePamphletBatch batch, boolean[] changed,
+			int partitions, FacePamphletSnapshot snap) {
+		int mask = partitions - 1;
+		int n = batch.size();
+		final FacePamphletProfile[] from = new FacePamphletProfile[n];
+		final FacePamphletProfile[] to = new FacePamphletProfile[n];
+		final int[] ids = new int[n];
+		final int[] friendIds = new int[n];
+		int[] sizes = new int[partitions];
+		for (int i = 0; i < n; i++) {
+			if (batch.getKind(i) == FacePamphletBatch.DELETE_PROFILE) {
+				continue;
+			}
+			from[i] = lookupProfile(batch.getName(i));
+			to[i] = lookupProfile(batch.getFriend(i));
+			if (from[i] == null || to[i] == null) {
+				from[i] = null;
+				continue;
+			}
+			ids[i] = names.getId(batch.getName(i));
+			friendIds[i] = names.getId(batch.getFriend(i));
+			sizes[ids[i] & mask]++;
+			sizes[friendIds[i] & mask]++;
+		}
+
+		// Half (i << 1 | side) is change i's half to the name's list (side 0)
+		// or the friend's list (side 1) //
+		final int[][] halves = new int[partitions][];
+		for (int p = 0; p < partitions; p++) {
+			halves[p] = new int[sizes[p]];
+		}
+		int[] filled = new int[partitions];
+		for (int i = 0; i < n; i++) {
+			if (from[i] != null) {
+				int p = ids[i] & mask;
+				halves[p][filled[p]++] = i << 1;
+				p = friendIds[i] & mask;
+				halves[p][filled[p]++] = i << 1 | 1;
+			}
+		}
+		final boolean[] listChanged = new boolean[2 * n];
+
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < partitions; p++) {
+			final int[] own = halves[p];
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int half : own) {
+						int i = half >> 1;
+						FacePamphletProfile prof = (half & 1) == 0 ? from[i] : to[i];
+						int other = (half & 1) == 0 ? friendIds[i] : ids[i];
+						boolean done;
+						if (batch.getKind(i) == FacePamphletBatch.ADD_FRIEND) {
+							done = prof.getFriendIds().add(other);
+						} else {
+							done = prof.getFriendIds().remove(other);
+						}
+						if (done) {
+							friendsChanged(prof);
+							listChanged[half] = true;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+
+		tasks.clear();
+		for (int p = 0; p < partitions; p++) {
+			final int[] own = halves[p];
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					for (int half : own) {
+						if (!listChanged[half ^ 1]) {
+							continue;
+						}
+						// the other side's list gained or lost this side's
+						// profile, which is recorded in this side's entry //
+						int i = half >> 1;
+						int id = (half & 1) == 0 ? ids[i] : friendIds[i];
+						int other = (half & 1) == 0 ? friendIds[i] : ids[i];
+						if (batch.getKind(i) == FacePamphletBatch.ADD_FRIEND) {
+							indexFriend(other, id);
+						} else {
+							unindexFriend(other, id);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+
+		for (int i = 0; i < n; i++) {
+			changed[i] = listChanged[i << 1] || listChanged[i << 1 | 1];
+			if (!changed[i]) {
+				continue;
+			}
+			boolean add = batch.getKind(i) == FacePamphletBatch.ADD_FRIEND;
+			if (snap != null && listChanged[i << 1]) {
+				snap = add ? snap.withFriendLink(ids[i], friendIds[i]) : snap.withoutFriendLink(ids[i], friendIds[i]);
+			}
+			if (snap != null && listChanged[i << 1 | 1]) {
+				snap = add ? snap.withFriendLink(friendIds[i], ids[i]) : snap.withoutFriendLink(friendIds[i], ids[i]);
+			}
+			if (storage != null) {
+				if (add) {
+					storage.logAddFriend(batch.getName(i), batch.getFriend(i));
+				} else {
+					storage.logRemoveFriend(batch.getName(i), batch.getFriend(i));
+				}
+			}
+		}
+		return snap;
+	}
+
+	/*
+	 * Makes the batch's deletions, and returns snap (if not null) with them
+	 * made too. The deleted profiles are taken out first, collecting from
+	 * friendIndex which remaining profiles listed each of them; those
+	 * (profile, deleted ID) pairs then go to the partition of the remaining
+	 * profile, where each profile drops all of its deleted friends at once.
+	 */
+	private FacePamphletSnapshot applyDeletions(FacePamphletBatch batch, boolean[] changed, int partitions,
+			FacePamphletSnapshot snap) {
+		int mask = partitions - 1;
+		BitSet deleting = new BitSet();
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.getKind(i) == FacePamphletBatch.DELETE_PROFILE && containsProfile(batch.getName(i))) {
+				deleting.set(names.getId(batch.getName(i)));
+			}
+		}
+		ArrayList<FacePamphletFriendSet> friendedBy = new ArrayList<FacePamphletFriendSet>();
+		int[] deletedIds = new int[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.getKind(i) != FacePamphletBatch.DELETE_PROFILE) {
+				continue;
+			}
+			String name = batch.getName(i);
+			if (detachProfile(name, deleting) == null) {
+				continue;
+			}
+			changed[i] = true;
+			int id = names.getId(name);
+			FacePamphletFriendSet listedBy = takeFriendedBy(id);
+			if (listedBy != null) {
+				deletedIds[friendedBy.size()] = id;
+				friendedBy.add(listedBy);
+			}
+			if (snap != null) {
+				snap = snap.withoutProfile(id, listedBy != null ? listedBy.toArray() : new int[0]);
+			}
+			if (storage != null) {
+				storage.logDeleteProfile(name);
+			}
+		}
+
+		int[] sizes = new int[partitions];
+		for (FacePamphletFriendSet listedBy : friendedBy) {
+			PrimitiveIterator.OfInt it = listedBy.iterator();
+			while (it.hasNext()) {
+				int other = it.nextInt();
+				if (!deleting.get(other)) {
+					sizes[other & mask]++;
+				}
+			}
+		}
+		// Each pair is packed as (profile ID << 32 | deleted ID), so sorting
+		// a partition brings each profile's pairs together //
+		final long[][] pairs = new long[partitions][];
+		for (int p = 0; p < partitions; p++) {
+			pairs[p] = new long[sizes[p]];
+		}
+		int[] filled = new int[partitions];
+		for (int d = 0; d < friendedBy.size(); d++) {
+			PrimitiveIterator.OfInt it = friendedBy.get(d).iterator();
+			while (it.hasNext()) {
+				int other = it.nextInt();
+				if (!deleting.get(other)) {
+					int p = other & mask;
+					pairs[p][filled[p]++] = (long) other << 32 | deletedIds[d];
+				}
+			}
+		}
+
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < partitions; p++) {
+			final int partition = p;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					long[] own = pairs[partition];
+					Arrays.sort(own);
+					int k = 0;
+					while (k < own.length) {
+						int id = (int) (own[k] >>> 32);
+						FacePamphletProfile prof = friendsDatabase.get(names.getName(id));
+						FacePamphletFriendSet friends = prof.getFriendIds();
+						for (; k < own.length && (int) (own[k] >>> 32) == id; k++) {
+							friends.remove((int) own[k]);
+						}
+						friendsChanged(prof);
+					}
+					return null;
+				}
+			});
+		}
+		invokeAll(tasks);
+		return snap;
+	}
+
+	/*
+	 * Runs the given tasks, on the common fork-join pool if there is more than
+	 * one, and waits for them all.
+	 */
+	private static void invokeAll(List<Callable<Void>> tasks) {
+		try {
+			if (tasks.size() == 1) {
+				tasks.get(0).call();
+				return;
+			}
+			for (Future<Void> done : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				done.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ex) {
+			throw new RuntimeException(ex.getCause());
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/*
+	 * This method adds friend to the list of friends of the profile named
+	 * name, without touching friend's own list. It is one half of a
+	 * friendship between profiles kept in different databases (see
+	 * FacePamphletShardedDatabase), whose caller makes the other half. It
+	 * returns false if there is no profile named name or friend was already
+	 * listed. Like the rest of such a friendship, it is not logged.
+	 */
+	boolean addFriendLink(String name, String friend) {
+		lockChanges();
+		try {
+			FacePamphletProfile prof = lookupProfile(name);
+			int friendId = names.getId(friend);
+			if (prof == null || !prof.getFriendIds().add(friendId)) {
+				return false;
+			}
+			int id = names.getId(name);
+			indexFriend(id, friendId);
+			friendsChanged(prof);
+			if (snapshot != null) {
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withFriendLink(id, friendId);
+				}
+			}
+			return true;
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/* This method undoes addFriendLink. */
+	boolean removeFriendLink(String name, String friend) {
+		lockChanges();
+		try {
+			FacePamphletProfile prof = lookupProfile(name);
+			int friendId = names.findId(friend);
+			if (prof == null || friendId < 0 || !prof.getFriendIds().remove(friendId)) {
+				return false;
+			}
+			int id = names.getId(name);
+			unindexFriend(id, friendId);
+			friendsChanged(prof);
+			if (snapshot != null) {
+				synchronized (snapshotLock) {
+					snapshot = snapshot.withoutFriendLink(id, friendId);
+				}
+			}
+			return true;
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/* This method returns the number of profiles in memory. */
+	int getLoadedProfileCount() {
+		return friendsDatabase.size();
+	}
+
+	/*
+	 * This method returns a snapshot of every profile as it is now, which
+	 * never changes and may be read by other threads without locking while
+	 * the database goes on changing (see FacePamphletSnapshot).
+	 *
+	 * The first call builds the snapshot from the whole database, reading
+	 * every profile from the graph file if there is one. It holds the change
+	 * lock meanwhile (see lockChanges), so it may be made on any thread: the
+	 * profiles cannot change while they are copied, and every change made
+	 * after it sees the snapshot and updates it. From then on each change
+	 * also updates the latest snapshot, copying only the few trie nodes it
+	 * touches, so later calls just return it. Databases that never ask for a
+	 * snapshot pay nothing for them beyond the change lock.
+	 */
+	public FacePamphletSnapshot snapshot() {
+		FacePamphletSnapshot current = snapshot;
+		if (current != null) {
+			return current;
+		}
+		lockChanges();
+		try {
+			synchronized (snapshotLock) {
+				if (snapshot == null) {
+					snapshot = buildSnapshot();
+				}
+				return snapshot;
+			}
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/*
+	 * This method rebuilds the latest snapshot from the profiles, if snapshots
+	 * are in use. It is called after the profiles were changed without going
+	 * through the database's methods (see FacePamphletBulkLoader).
+	 */
+	void refreshSnapshot() {
+		lockChanges();
+		try {
+			synchronized (snapshotLock) {
+				if (snapshot != null) {
+					snapshot = buildSnapshot();
+				}
 			}
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/*
+	 * This method takes the change lock, which every change to the database
+	 * holds, and so does building the first snapshot (see snapshot), so that
+	 * the profiles can be read whole on another thread. It may be taken more
+	 * than once by the same thread. FacePamphletConcurrentDatabase, whose
+	 * changes are guarded by its own locks, makes it do nothing.
+	 */
+	void lockChanges() {
+		changeLock.lock();
+	}
+
+	/* This method releases the change lock taken by lockChanges. */
+	void unlockChanges() {
+		changeLock.unlock();
+	}
+
+	/* Builds a snapshot of every profile. */
+	FacePamphletSnapshot buildSnapshot() {
+		loadAllProfiles();
+		FacePamphletSnapshot built = FacePamphletSnapshot.empty(names);
+		for (FacePamphletProfile prof : friendsDatabase.values()) {
+			built = built.withProfile(prof);
+		}
+		return built;
+	}
+
+	/*
+	 * This method waits until the change logged with sequence number seq (0
+	 * for none) is durable. Mutators log while they hold the change lock but
+	 * call this only once they have let go of it, so that other writers can
+	 * make their changes meanwhile and share the same sync (group commit).
+	 */
+	private void awaitDurable(long seq) {
+		if (seq > 0) {
+			storage.awaitDurable(seq);
+		}
+	}
+
+	/*
+	 * This method makes the database log every change to the given storage.
+	 * It is called by FacePamphletStorage.load once the database has been
+	 * filled from storage.
+	 */
+	void setStorage(FacePamphletStorage storage) {
+		this.storage = storage;
+	}
+
+	/*
+	 * This method tells the given image cache which image files the profiles
+	 * in the database use, now and whenever they change, so that it can share
+	 * and free decoded images. It should be called while the database is
+	 * still empty.
+	 */
+	public void setImageCache(FacePamphletImageCache cache) {
+		imageCache = cache;
+	}
+
+	/* Tells the image cache that prof uses its image file. */
+	private void retainImage(FacePamphletProfile prof) {
+		if (imageCache != null && prof.getImageFile() != null) {
+			imageCache.retain(prof.getImageFile());
+		}
+	}
+
+	/* Tells the image cache that prof no longer uses its image file. */
+	private void releaseImage(FacePamphletProfile prof) {
+		if (imageCache != null && prof.getImageFile() != null) {
+			imageCache.release(prof.getImageFile());
+		}
+	}
+
+	/*
+	 * This method returns the database's change counter, which goes up every
+	 * time a profile's list of friends changes. Each profile remembers the
+	 * value from its last change (FacePamphletProfile.getFriendsVersion), so
+	 * results worked out from friend lists can tell whether they are stale.
+	 */
+	long getFriendsVersion() {
+		return friendsVersion.get();
+	}
+
+	/*
+	 * This method moves the change counter on once for a change made straight
+	 * to the lists of friends of many profiles at once (see
+	 * FacePamphletBulkLoader), and returns the value each of those profiles
+	 * should be given with setFriendsVersion.
+	 */
+	long nextFriendsVersion() {
+		return friendsVersion.incrementAndGet();
+	}
+
+	/* Records that FacePamphletProfile prof's list of friends has changed. */
+	private void friendsChanged(FacePamphletProfile prof) {
+		prof.setFriendsVersion(friendsVersion.incrementAndGet());
+	}
+
+	/*
+	 * This method adds the number of profiles and the number of friends per
+	 * profile to metrics, worked out from the profiles in memory whenever the
+	 * metrics are read. It should be called once per database.
+	 */
+	public void registerMetrics(FacePamphletMetrics metrics) {
+		metrics.registerGauge("database.profiles", new FacePamphletMetrics.Gauge() {
+			public long getValue() {
+				return friendsDatabase.size();
+			}
+		});
+		metrics.registerGauge("database.names", new FacePamphletMetrics.Gauge() {
+			public long getValue() {
+				return names.size();
+			}
+		});
+		metrics.registerDistribution("database.friendsPerProfile", new FacePamphletMetrics.Distribution() {
+			public void recordTo(FacePamphletMetrics.Histogram histogram) {
+				// read on a JMX or UI thread, so changes must wait //
+				lockChanges();
+				try {
+					for (FacePamphletProfile prof : friendsDatabase.values()) {
+						histogram.record(prof.getFriendIds().size());
+					}
+				} finally {
+					unlockChanges();
+				}
+			}
+		});
+	}
+
+	/* This method returns the registry that assigns IDs to profile names. */
+	public FacePamphletNameRegistry getNameRegistry() {
+		return names;
+	}
+
+	/*
+	 * This method records in friendIndex that the profile with ID id has the
+	 * profile with ID friendId in its list of friends.
+	 */
+	void indexFriend(int id, int friendId) {
+		while (friendIndex.size() <= friendId) {
+			friendIndex.add(null);
+		}
+		FacePamphletFriendSet friendedBy = friendIndex.get(friendId);
+		if (friendedBy == null) {
+			friendedBy = new FacePamphletFriendSet();
+			friendIndex.set(friendId, friendedBy);
+		}
+		friendedBy.add(id);
+	}
+
+	/*
+	 * This method makes room in friendIndex for every ID below size. After it
+	 * returns, indexFriend may be called from several threads at once as long
+	 * as each thread passes different values of friendId below size (see
+	 * FacePamphletBulkLoader).
+	 */
+	void ensureFriendIndexCapacity(int size) {
+		friendIndex.ensureCapacity(size);
+		while (friendIndex.size() < size) {
+			friendIndex.add(null);
+		}
+	}
+
+	/* This method undoes indexFriend. */
+	void unindexFriend(int id, int friendId) {
+		if (friendId < friendIndex.size()) {
+			FacePamphletFriendSet friendedBy = friendIndex.get(friendId);
+			if (friendedBy != null) {
+				friendedBy.remove(id);
+				if (friendedBy.size() == 0) {
+					friendIndex.set(friendId, null);
+				}
+			}
+		}
+	}
+
+	/*
+	 * This method removes and returns the set of IDs of profiles that have the
+	 * profile with ID id as a friend, or null if there are none.
+	 */
+	FacePamphletFriendSet takeFriendedBy(int id) {
+		if (id < 0 || id >= friendIndex.size()) {
+			return null;
+		}
+		return friendIndex.set(id, null);
+	}
+
+	/* Indexes every friend already in FacePamphletProfile prof's list. */
+	private void indexFriends(FacePamphletProfile prof) {
+		int id = names.getId(prof.getName());
+		PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+		while (it.hasNext()) {
+			indexFriend(id, it.nextInt());
+		}
+	}
+
+	/* Removes every friend in FacePamphletProfile prof's list from the index. */
+	private void unindexFriends(FacePamphletProfile prof) {
+		int id = names.getId(prof.getName());
+		PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+		while (it.hasNext()) {
+			unindexFriend(id, it.nextInt());
 		}
-		return false;
 	}
 
 	/*
@@ -82,12 +1055,249 @@ public class FacePamphletDatabase implements FacePamphletConstants {
 	 * the given name. It returns false otherwise.
 	 */
 	public boolean containsProfile(String name) {
-		if (friendsDatabase.containsKey(name)) {
-			return true;
+		long start = CONTAINS_PROFILE_TIMER.start();
+		try {
+			if (friendsDatabase.containsKey(name)) {
+				return true;
+			}
+			if (graphFile == null || removedFromGraph.contains(name)) {
+				return false;
+			}
+			if (profileCache != null) {
+				return profileCache.loadProfile(name) != null;
+			}
+			// a probe of the file's hash table, without building the profile //
+			return graphFile.containsProfile(name);
+		} finally {
+			CONTAINS_PROFILE_TIMER.stop(start);
+		}
+	}
+
+	/*
+	 * This method returns the profile with the given name, which the caller is
+	 * about to change, reading it from the profile store (the graph file, or a
+	 * cache in front of it) into the database if the database does not hold
+	 * it yet. It returns null if there is no such profile.
+	 */
+	private FacePamphletProfile lookupProfile(String name) {
+		FacePamphletProfile prof = friendsDatabase.get(name);
+		if (prof == null && profileStore != null && !removedFromGraph.contains(name)) {
+			prof = loadProfile(name);
+		}
+		return prof;
+	}
+
+	/*
+	 * This method reads the named profile from the profile store and adds it
+	 * to the database, so that it can be changed. It returns null if the
+	 * store has no such profile.
+	 */
+	private FacePamphletProfile loadProfile(String name) {
+		lockChanges();
+		try {
+			return loadLockedProfile(name);
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/* Does the work of loadProfile while the change lock is held. */
+	private FacePamphletProfile loadLockedProfile(String name) {
+		FacePamphletProfile loaded = friendsDatabase.get(name);
+		if (loaded != null) {
+			// loaded by another thread since it was looked for //
+			return loaded;
+		}
+		FacePamphletProfile stored = profileStore.loadProfile(name);
+		if (stored == null) {
+			return null;
+		}
+		// the cache may share the stored profile, so it is copied //
+		FacePamphletProfile prof = stored.copy();
+		removeDeletedFriends(prof);
+		friendsDatabase.put(name, prof);
+		indexFriends(prof);
+		retainImage(prof);
+		// from now on the database's own copy is the profile //
+		invalidate(name);
+		return prof;
+	}
+
+	/*
+	 * This method returns the named profile from the profile store for
+	 * getProfile, without the database keeping it, or the database's own
+	 * profile if it has taken the profile over meanwhile. A stored profile is
+	 * returned as it is unless it lists friends deleted since the graph file
+	 * was opened, in which case a copy without them is. It returns null if
+	 * there is no such profile.
+	 */
+	private FacePamphletProfile readStoredProfile(String name) {
+		lockChanges();
+		try {
+			FacePamphletProfile loaded = friendsDatabase.get(name);
+			if (loaded != null) {
+				return loaded;
+			}
+			FacePamphletProfile stored = profileStore.loadProfile(name);
+			if (stored == null || removedFromGraph.isEmpty()) {
+				return stored;
+			}
+			FacePamphletProfile prof = stored.copy();
+			return removeDeletedFriends(prof) ? prof : stored;
+		} finally {
+			unlockChanges();
+		}
+	}
+
+	/*
+	 * This method takes the friends deleted since the graph file was opened
+	 * out of prof's list of friends, and returns true if there were any.
+	 */
+	private boolean removeDeletedFriends(FacePamphletProfile prof) {
+		if (removedFromGraph.isEmpty()) {
+			return false;
+		}
+		FacePamphletFriendSet friends = prof.getFriendIds();
+		int[] ids = friends.toArray();
+		boolean removed = false;
+		for (int id : ids) {
+			if (removedFromGraph.contains(names.getName(id))) {
+				friends.remove(id);
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	/*
+	 * Tells the profile cache (if any) to forget what it has read about name.
+	 * The cache is only asked about profiles the database does not hold
+	 * itself, so this is needed only when the database takes over a name: when
+	 * a profile is read from the store, or added over one that may be there.
+	 * Every other change is to a profile the database already holds.
+	 */
+	private void invalidate(String name) {
+		if (profileCache != null) {
+			profileCache.invalidate(name);
+		}
+	}
+
+	/*
+	 * This method returns the cache that profiles are read from the graph file
+	 * through, or null if there is none.
+	 */
+	public FacePamphletProfileCache getProfileCache() {
+		return profileCache;
+	}
+
+	/*
+	 * This method reads every profile not yet used from the graph file, so
+	 * that friendsDatabase holds the whole database. It is called before the
+	 * whole database is written out.
+	 */
+	void loadAllProfiles() {
+		if (graphFile == null) {
+			return;
+		}
+		int count = graphFile.getProfileCount();
+		for (int i = 0; i < count; i++) {
+			String name = graphFile.getName(i);
+			if (!friendsDatabase.containsKey(name) && !removedFromGraph.contains(name)) {
+				loadProfile(name);
+			}
 		}
-		return false;
 	}
 
 	/* private instance variables */
-	HashMap<String, FacePamphletProfile> friendsDatabase = new HashMap<String, FacePamphletProfile>();
+	Map<String, FacePamphletProfile> friendsDatabase;
+
+	/*
+	 * Reverse friend index: entry i holds the IDs of the profiles that have
+	 * the profile with ID i in their list of friends (or null if none do).
+	 * Kept up to date by addFriend and removeFriend so that deleteProfile
+	 * never has to scan the whole database.
+	 */
+	ArrayList<FacePamphletFriendSet> friendIndex = new ArrayList<FacePamphletFriendSet>();
+
+	/* Graph file the database was opened on, or null */
+	private FacePamphletGraphFile graphFile;
+
+	/*
+	 * Where profiles of the graph file are read from: the file itself (giving
+	 * friends IDs from this database's registry), or profileCache in front of
+	 * it. Both are null without a graph file.
+	 */
+	private FacePamphletProfileStore profileStore;
+	private FacePamphletProfileCache profileCache;
+
+	/* Names of graph file profiles that have since been deleted */
+	private HashSet<String> removedFromGraph = new HashSet<String>();
+
+	/*
+	 * Names of all profiles, sorted for prefix search. Graph file profiles
+	 * are only added once graphNamesIndexed is set (see findProfileNames).
+	 */
+	private FacePamphletNameIndex nameIndex;
+	private boolean graphNamesIndexed;
+
+	/*
+	 * Words in every profile's status. Graph file profiles whose status has
+	 * not changed are only added once graphStatusesIndexed is set (see
+	 * findProfilesByStatus).
+	 */
+	private FacePamphletStatusIndex statusIndex;
+	private boolean graphStatusesIndexed;
+
+	/* Told which image files profiles use, or null */
+	private FacePamphletImageCache imageCache;
+
+	/*
+	 * Change counter for friend lists (see getFriendsVersion). It is atomic
+	 * since FacePamphletConcurrentDatabase changes profiles on many threads.
+	 */
+	private AtomicLong friendsVersion = new AtomicLong();
+
+	/*
+	 * Latest snapshot, or null until snapshot is first called. It is only
+	 * replaced while snapshotLock is held, so changes on different threads
+	 * each build on the one before.
+	 */
+	private volatile FacePamphletSnapshot snapshot;
+	private final Object snapshotLock = new Object();
+
+	/* Held by every change (see lockChanges) */
+	private final ReentrantLock changeLock = new ReentrantLock();
+
+	/* Where changes are logged, or null if the database is in memory only */
+	private FacePamphletStorage storage;
+
+	/*
+	 * Timers for the public operations (see FacePamphletMetrics). Reading the
+	 * clock takes longer than most of them, so only some calls are timed.
+	 */
+	private static final FacePamphletMetrics METRICS = FacePamphletMetrics.getGlobal();
+	private static final FacePamphletMetrics.Timer GET_PROFILE_TIMER = METRICS.timer("database.getProfile",
+			LOOKUP_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer CONTAINS_PROFILE_TIMER = METRICS.timer(
+			"database.containsProfile", LOOKUP_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer ADD_PROFILE_TIMER = METRICS.timer("database.addProfile",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer DELETE_PROFILE_TIMER = METRICS.timer("database.deleteProfile",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer FIND_NAMES_TIMER = METRICS.timer("database.findProfileNames",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer FIND_STATUS_TIMER = METRICS.timer(
+			"database.findProfilesByStatus", UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer SET_STATUS_TIMER = METRICS.timer("database.setStatus",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer SET_IMAGE_TIMER = METRICS.timer("database.setImage",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer ADD_FRIEND_TIMER = METRICS.timer("database.addFriend",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer REMOVE_FRIEND_TIMER = METRICS.timer("database.removeFriend",
+			UPDATE_SAMPLE_EVERY);
+	private static final FacePamphletMetrics.Timer APPLY_BATCH_TIMER = METRICS.timer("database.applyBatch");
+
+	/* Interned names of this database's profiles and their friends */
+	private final FacePamphletNameRegistry names;
 }
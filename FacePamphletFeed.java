@@ -0,0 +1,113 @@
+/*
+ * File: FacePamphletFeed.java
+ * ---------------------------
+ * This class builds a profile's news feed: the newest statuses set by
+ * any of its friends, newest first.  The feed is put together when it
+ * is asked for, from the status history each friend keeps (see
+ * FacePamphletProfile.getPastStatus).
+ *
+ * Each friend's history is already in order, so the feed is a k-way
+ * merge rather than a sort.  Only friends whose newest status is among
+ * the n newest of all the friends' newest statuses can appear in an
+ * n-entry feed (otherwise n friends each have a newer status), so those
+ * friends are picked out first with an n-sized heap, and only they are
+ * merged.  Building a feed therefore costs O(k log n) for k friends
+ * rather than anything proportional to the length of their histories.
+ *
+ * Like FacePamphletDatabase, this class must not be used while another
+ * thread is changing the database.
+ */
+
+import java.util.*;
+
+public class FacePamphletFeed {
+
+	/* Creates a feed builder for the profiles in db. */
+	public FacePamphletFeed(FacePamphletDatabase db) {
+		this.db = db;
+	}
+
+	/*
+	 * This method returns up to n of the newest statuses of the named
+	 * profile's friends, newest first. It returns an empty list if there is
+	 * no profile with the given name.
+	 */
+	public List<FacePamphletStatusUpdate> getFeed(String name, int n) {
+		ArrayList<FacePamphletStatusUpdate> feed = new ArrayList<FacePamphletStatusUpdate>();
+		FacePamphletProfile prof = db.getProfile(name);
+		if (prof == null || n <= 0) {
+			return feed;
+		}
+
+		// Keep the n friends with the newest statuses, weakest at the head //
+		PriorityQueue<Cursor> newestFriends = new PriorityQueue<Cursor>(n, OLDEST_FIRST);
+		Iterator<String> friends = prof.getFriends();
+		while (friends.hasNext()) {
+			FacePamphletProfile friend = db.getProfile(friends.next());
+			if (friend == null || friend.getStatusHistorySize() == 0) {
+				continue;
+			}
+			long newest = friend.getPastStatusTime(0);
+			if (newestFriends.size() < n) {
+				newestFriends.add(new Cursor(friend));
+			} else if (newest > newestFriends.peek().time) {
+				Cursor reused = newestFriends.poll();
+				reused.reset(friend);
+				newestFriends.add(reused);
+			}
+		}
+
+		// Merge their histories, newest first, until the feed is full //
+		PriorityQueue<Cursor> merge = new PriorityQueue<Cursor>(Math.max(1, newestFriends.size()), NEWEST_FIRST);
+		merge.addAll(newestFriends);
+		while (feed.size() < n && !merge.isEmpty()) {
+			Cursor next = merge.poll();
+			feed.add(new FacePamphletStatusUpdate(next.profile.getName(), next.profile.getPastStatus(next.index),
+					next.time));
+			if (next.advance()) {
+				merge.add(next);
+			}
+		}
+		return feed;
+	}
+
+	/* A position in one friend's status history. */
+	private static class Cursor {
+
+		public Cursor(FacePamphletProfile profile) {
+			reset(profile);
+		}
+
+		/* Moves the cursor to the newest status of profile. */
+		public void reset(FacePamphletProfile profile) {
+			this.profile = profile;
+			index = 0;
+			time = profile.getPastStatusTime(0);
+		}
+
+		/* Moves to the next older status; returns false if there is none. */
+		public boolean advance() {
+			if (++index >= profile.getStatusHistorySize()) {
+				return false;
+			}
+			time = profile.getPastStatusTime(index);
+			return true;
+		}
+
+		FacePamphletProfile profile;
+		int index;
+		long time;
+	}
+
+	/* Orders cursors by the time of their current status. */
+	private static final Comparator<Cursor> OLDEST_FIRST = new Comparator<Cursor>() {
+		public int compare(Cursor a, Cursor b) {
+			return Long.compare(a.time, b.time);
+		}
+	};
+
+	private static final Comparator<Cursor> NEWEST_FIRST = Collections.reverseOrder(OLDEST_FIRST);
+
+	/* private instance variables */
+	private FacePamphletDatabase db;
+}
@@ -0,0 +1,258 @@
+/*
+ * File: FacePamphletFriendSet.java
+ * --------------------------------
+ * This class is a set of friend IDs (see FacePamphletNameRegistry) that
+ * remembers the order in which the IDs were added.  IDs are kept in a
+ * plain int array in insertion order, and an open-addressed hash table
+ * of positions into that array makes add, remove and contains run in
+ * constant time without boxing any of the IDs.
+ *
+ * A removed ID leaves a marker in the array, and remove squeezes the
+ * markers out once they are more than a quarter of it.  Reading the set
+ * never changes it, so a set no longer being changed may be read by
+ * several threads at once.
+ */
+
+import java.util.*;
+
+public class FacePamphletFriendSet {
+
+	/* Creates an empty set. */
+	public FacePamphletFriendSet() {
+		order = new int[INITIAL_CAPACITY];
+		table = new int[INITIAL_CAPACITY * 2];
+	}
+
+	/*
+	 * This method adds id to the end of the set. It returns true if id was not
+	 * already in the set, and false otherwise.
+	 */
+	public boolean add(int id) {
+		if (findSlot(id) >= 0) {
+			return false;
+		}
+		if (used == order.length) {
+			if (size < used / 2) {
+				compact();
+			} else {
+				order = Arrays.copyOf(order, order.length * 2);
+			}
+		}
+		if ((size + 1) * 2 > table.length) {
+			table = new int[table.length * 2];
+			rehash();
+		}
+		order[used] = id;
+		used++;
+		insertSlot(id, used);
+		size++;
+		modCount++;
+		return true;
+	}
+
+	/*
+	 * This method removes id from the set. It returns true if id was in the
+	 * set, and false otherwise.
+	 */
+	public boolean remove(int id) {
+		int slot = findSlot(id);
+		if (slot < 0) {
+			return false;
+		}
+		int position = table[slot] - 1;
+		order[position] = REMOVED;
+		firstRemoved = Math.min(firstRemoved, position);
+		deleteSlot(slot);
+		size--;
+		modCount++;
+		if (size == 0) {
+			used = 0;
+			firstRemoved = NONE_REMOVED;
+		} else if ((used - size) * 4 > used) {
+			compact();
+		}
+		return true;
+	}
+
+	/* This method returns true if id is in the set. */
+	public boolean contains(int id) {
+		return findSlot(id) >= 0;
+	}
+
+	/* This method returns the number of IDs in the set. */
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * This method returns the index-th ID in insertion order, where index is
+	 * between 0 and size() - 1. IDs added before the first one still removed
+	 * are found directly; later ones by stepping over the removed entries.
+	 */
+	public int get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+		}
+		if (index < firstRemoved) {
+			return order[index];
+		}
+		int live = firstRemoved;
+		for (int i = firstRemoved;; i++) {
+			if (order[i] != REMOVED) {
+				if (live == index) {
+					return order[i];
+				}
+				live++;
+			}
+		}
+	}
+
+	/*
+	 * This method returns an iterator over the IDs in the order they were
+	 * added. Like the java.util collections, the iterator fails fast if the
+	 * set is changed while it is in use.
+	 */
+	public PrimitiveIterator.OfInt iterator() {
+		return new PrimitiveIterator.OfInt() {
+
+			public boolean hasNext() {
+				checkForComodification();
+				while (next < used && order[next] == REMOVED) {
+					next++;
+				}
+				return next < used;
+			}
+
+			public int nextInt() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return order[next++];
+			}
+
+			private void checkForComodification() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+			}
+
+			private int next = 0;
+			private int expectedModCount = modCount;
+		};
+	}
+
+	/* This method returns a new set holding the same IDs in the same order. */
+	public FacePamphletFriendSet copy() {
+		FacePamphletFriendSet copy = new FacePamphletFriendSet();
+		copy.order = order.clone();
+		copy.table = table.clone();
+		copy.used = used;
+		copy.size = size;
+		copy.firstRemoved = firstRemoved;
+		return copy;
+	}
+
+	/* This method returns a copy of the IDs in insertion order. */
+	public int[] toArray() {
+		int[] result = new int[size];
+		int j = 0;
+		for (int i = 0; i < used; i++) {
+			if (order[i] != REMOVED) {
+				result[j++] = order[i];
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * This method returns the position in table holding id, or -1 if id is not
+	 * in the set. Linear probing stops at the first empty slot.
+	 */
+	private int findSlot(int id) {
+		int mask = table.length - 1;
+		for (int slot = hash(id) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			if (order[table[slot] - 1] == id) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/* Stores position (1-based, so that 0 can mean empty) for id in table. */
+	private void insertSlot(int id, int position) {
+		int mask = table.length - 1;
+		int slot = hash(id) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = position;
+	}
+
+	/*
+	 * Empties the given table slot, shifting later entries of the same probe
+	 * run back so that findSlot never needs tombstones.
+	 */
+	private void deleteSlot(int slot) {
+		int mask = table.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (table[next] != 0) {
+			int home = hash(order[table[next] - 1]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[hole] = 0;
+	}
+
+	/* Squeezes removed entries out of order and rebuilds the table. */
+	private void compact() {
+		int j = 0;
+		for (int i = 0; i < used; i++) {
+			if (order[i] != REMOVED) {
+				order[j++] = order[i];
+			}
+		}
+		used = j;
+		firstRemoved = NONE_REMOVED;
+		modCount++;
+		rehash();
+	}
+
+	/* Rebuilds table from the live entries of order. */
+	private void rehash() {
+		Arrays.fill(table, 0);
+		for (int i = 0; i < used; i++) {
+			if (order[i] != REMOVED) {
+				insertSlot(order[i], i + 1);
+			}
+		}
+	}
+
+	/* Spreads the bits of id so that sequential IDs do not cluster. */
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/* Marker left in order where an ID has been removed. */
+	private static final int REMOVED = -1;
+
+	/* Value of firstRemoved while no entry of order is REMOVED. */
+	private static final int NONE_REMOVED = Integer.MAX_VALUE;
+
+	/* Number of IDs the set can hold before it first grows. */
+	private static final int INITIAL_CAPACITY = 4;
+
+	/* private instance variables */
+	private int[] order;
+	private int[] table;
+	private int used;
+	private int size;
+	private int modCount;
+
+	/* Position of the first REMOVED entry of order, or NONE_REMOVED */
+	private int firstRemoved = NONE_REMOVED;
+}
@@ -0,0 +1,369 @@
+/*
+ * File: FacePamphletGraphAnalytics.java
+ * -------------------------------------
+ * This class answers questions about the social network as a whole:
+ * how two profiles are connected (the shortest chain of friends between
+ * them) and how many separate groups of profiles there are.
+ *
+ * Rather than following FacePamphletProfile objects around, it takes a
+ * snapshot of the database when it is created: each profile becomes a
+ * vertex numbered 0 to n - 1, and all the friend lists are copied into
+ * two int arrays in CSR layout (offsets[v] to offsets[v + 1] is where
+ * vertex v's friends are in adjacency), the same layout as
+ * FacePamphletGraphFile.  Later changes to the database are not seen;
+ * create a new FacePamphletGraphAnalytics to pick them up.  Friendships
+ * are reciprocal, so the snapshot is an undirected graph.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class FacePamphletGraphAnalytics {
+
+	/* Creates a snapshot of every profile and friendship in db. */
+	public FacePamphletGraphAnalytics(FacePamphletDatabase db) {
+		names = db.getNameRegistry();
+		db.loadAllProfiles();
+		Collection<FacePamphletProfile> profiles = db.friendsDatabase.values();
+		int count = profiles.size();
+		vertexIds = new int[count];
+		vertexOf = new int[names.size()];
+		Arrays.fill(vertexOf, -1);
+		int v = 0;
+		for (FacePamphletProfile prof : profiles) {
+			int id = names.getId(prof.getName());
+			vertexIds[v] = id;
+			vertexOf[id] = v++;
+		}
+
+		offsets = new int[count + 1];
+		v = 0;
+		for (FacePamphletProfile prof : profiles) {
+			offsets[v + 1] = offsets[v] + prof.getFriendIds().size();
+			v++;
+		}
+		adjacency = new int[offsets[count]];
+		int edge = 0;
+		v = 0;
+		for (FacePamphletProfile prof : profiles) {
+			PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+			while (it.hasNext()) {
+				int friend = it.nextInt();
+				if (friend < vertexOf.length && vertexOf[friend] >= 0) {
+					adjacency[edge++] = vertexOf[friend];
+				}
+			}
+			// friends that are not profiles were left out above //
+			offsets[++v] = edge;
+		}
+		seenFrom = new int[count];
+		seenTo = new int[count];
+		parentFrom = new int[count];
+		parentTo = new int[count];
+	}
+
+	/* This method returns the number of profiles in the snapshot. */
+	public int getProfileCount() {
+		return vertexIds.length;
+	}
+
+	/*
+	 * This method returns a shortest chain of friends from the profile named
+	 * from to the one named to, starting with from and ending with to, or an
+	 * empty list if they are not connected or either is not a profile.
+	 *
+	 * The search runs breadth first from both ends at once, always growing
+	 * whichever side has fewer friendships to follow next, and stops as soon
+	 * as the two sides meet. Its bookkeeping arrays are reused from query to
+	 * query, so calls are synchronized.
+	 */
+	public synchronized List<String> findPath(String from, String to) {
+		ArrayList<String> path = new ArrayList<String>();
+		int source = findVertex(from);
+		int target = findVertex(to);
+		if (source < 0 || target < 0) {
+			return path;
+		}
+		if (source == target) {
+			path.add(from);
+			return path;
+		}
+
+		// A vertex is seen by a side when its entry holds this query's stamp //
+		query++;
+		seenFrom[source] = query;
+		parentFrom[source] = -1;
+		seenTo[target] = query;
+		parentTo[target] = -1;
+		int[] frontFrom = { source };
+		int[] frontTo = { target };
+		int meet = -1;
+		while (meet < 0 && frontFrom.length > 0 && frontTo.length > 0) {
+			if (edgesOf(frontFrom) <= edgesOf(frontTo)) {
+				frontFrom = expand(frontFrom, seenFrom, parentFrom, seenTo);
+			} else {
+				frontTo = expand(frontTo, seenTo, parentTo, seenFrom);
+			}
+			meet = lastMeet;
+		}
+		if (meet < 0) {
+			return path;
+		}
+		for (int v = meet; v >= 0; v = parentFrom[v]) {
+			path.add(names.getName(vertexIds[v]));
+		}
+		Collections.reverse(path);
+		for (int v = parentTo[meet]; v >= 0; v = parentTo[v]) {
+			path.add(names.getName(vertexIds[v]));
+		}
+		return path;
+	}
+
+	/*
+	 * This method returns the number of friendships in the shortest chain
+	 * between the two named profiles, or -1 if they are not connected.
+	 */
+	public int getDegreesOfSeparation(String from, String to) {
+		return findPath(from, to).size() - 1;
+	}
+
+	/*
+	 * This method works out which group of connected profiles every profile
+	 * belongs to using the given number of threads, and returns how many
+	 * groups there are. Afterwards inSameComponent answers from the result.
+	 *
+	 * Every vertex starts labelled with its own number. In each round, the
+	 * vertices whose label went down in the previous round (the frontier)
+	 * offer their label to their friends, and each friend keeps the smallest
+	 * label offered; a frontier vertex that finds a friend with a smaller
+	 * label takes that label instead. Vertices whose label went down form
+	 * the next frontier. When no label changes, every vertex holds the
+	 * smallest vertex number of its group. The frontier is split into
+	 * chunks that run in parallel, and labels are lowered with
+	 * compare-and-set so no locks are needed.
+	 */
+	public int findComponents(int threads) {
+		final int count = vertexIds.length;
+		final AtomicIntegerArray labels = new AtomicIntegerArray(count);
+		final AtomicIntegerArray queued = new AtomicIntegerArray(count);
+		int[] frontier = new int[count];
+		for (int v = 0; v < count; v++) {
+			labels.set(v, v);
+			frontier[v] = v;
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			int round = 0;
+			while (frontier.length > 0) {
+				final int[] current = frontier;
+				final int stamp = ++round;
+				ArrayList<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+				for (int start = 0; start < current.length; start += CHUNK_SIZE) {
+					final int from = start;
+					final int to = Math.min(current.length, start + CHUNK_SIZE);
+					tasks.add(new Callable<int[]>() {
+						public int[] call() {
+							return propagate(current, from, to, labels, queued, stamp);
+						}
+					});
+				}
+				frontier = concat(invokeAll(pool, tasks));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		int components = 0;
+		componentOf = new int[count];
+		for (int v = 0; v < count; v++) {
+			componentOf[v] = labels.get(v);
+			if (componentOf[v] == v) {
+				components++;
+			}
+		}
+		return components;
+	}
+
+	/*
+	 * This method returns true if the two named profiles were in the same
+	 * group at the last call to findComponents.
+	 */
+	public boolean inSameComponent(String name, String other) {
+		if (componentOf == null) {
+			throw new IllegalStateException("findComponents has not been called");
+		}
+		int v = findVertex(name);
+		int w = findVertex(other);
+		return v >= 0 && w >= 0 && componentOf[v] == componentOf[w];
+	}
+
+	/*
+	 * Offers the labels of frontier[from] to frontier[to - 1] to their friends
+	 * and returns the vertices whose label went down, each listed once per
+	 * round (the round whose stamp is given).
+	 */
+	private int[] propagate(int[] frontier, int from, int to, AtomicIntegerArray labels,
+			AtomicIntegerArray queued, int stamp) {
+		VertexList next = new VertexList();
+		for (int i = from; i < to; i++) {
+			int v = frontier[i];
+			int label = labels.get(v);
+			for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+				int w = adjacency[e];
+				int theirs = labels.get(w);
+				if (theirs < label) {
+					// a smaller label is next door: take it now, and pass it
+					// on to the friends already visited next round
+					if (lowerLabel(labels, v, theirs)) {
+						queueOnce(next, v, queued, stamp);
+					}
+					label = labels.get(v);
+				} else if (lowerLabel(labels, w, label)) {
+					queueOnce(next, w, queued, stamp);
+				}
+			}
+		}
+		return next.toArray();
+	}
+
+	/* Adds v to next unless it has already been queued this round. */
+	private static void queueOnce(VertexList next, int v, AtomicIntegerArray queued, int stamp) {
+		int old = queued.get(v);
+		if (old != stamp && queued.compareAndSet(v, old, stamp)) {
+			next.add(v);
+		}
+	}
+
+	/* Sets labels[v] to label if that is lower; returns true if it was. */
+	private static boolean lowerLabel(AtomicIntegerArray labels, int v, int label) {
+		while (true) {
+			int old = labels.get(v);
+			if (old <= label) {
+				return false;
+			}
+			if (labels.compareAndSet(v, old, label)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Visits the friends of every vertex in frontier for one side of findPath,
+	 * marking them seen with their parent, and returns the vertices seen for
+	 * the first time. If a vertex already seen by the other side is reached,
+	 * it is left in lastMeet and the search stops.
+	 */
+	private int[] expand(int[] frontier, int[] seen, int[] parent, int[] otherSeen) {
+		VertexList next = new VertexList();
+		lastMeet = -1;
+		for (int v : frontier) {
+			for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+				int w = adjacency[e];
+				if (seen[w] == query) {
+					continue;
+				}
+				seen[w] = query;
+				parent[w] = v;
+				if (otherSeen[w] == query) {
+					lastMeet = w;
+					return new int[0];
+				}
+				next.add(w);
+			}
+		}
+		return next.toArray();
+	}
+
+	/* Returns the number of friendships leaving the vertices in frontier. */
+	private int edgesOf(int[] frontier) {
+		int edges = 0;
+		for (int v : frontier) {
+			edges += offsets[v + 1] - offsets[v];
+		}
+		return edges;
+	}
+
+	/* Returns the vertex of the named profile, or -1 if it has none. */
+	private int findVertex(String name) {
+		int id = names.findId(name);
+		if (id < 0 || id >= vertexOf.length) {
+			return -1;
+		}
+		return vertexOf[id];
+	}
+
+	/* Runs tasks on pool and returns their results in order. */
+	private static List<int[]> invokeAll(ForkJoinPool pool, List<Callable<int[]>> tasks) {
+		ArrayList<int[]> results = new ArrayList<int[]>();
+		for (Future<int[]> done : pool.invokeAll(tasks)) {
+			try {
+				results.add(done.get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while finding components");
+			} catch (ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			}
+		}
+		return results;
+	}
+
+	/* Joins arrays into one. */
+	private static int[] concat(List<int[]> arrays) {
+		int size = 0;
+		for (int[] array : arrays) {
+			size += array.length;
+		}
+		int[] result = new int[size];
+		int at = 0;
+		for (int[] array : arrays) {
+			System.arraycopy(array, 0, result, at, array.length);
+			at += array.length;
+		}
+		return result;
+	}
+
+	/* A growable list of vertices making up the next frontier. */
+	private static class VertexList {
+
+		public void add(int v) {
+			if (size == vertices.length) {
+				vertices = Arrays.copyOf(vertices, size * 2);
+			}
+			vertices[size++] = v;
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(vertices, size);
+		}
+
+		private int[] vertices = new int[16];
+		private int size;
+	}
+
+	/* Number of frontier vertices handled by one parallel task */
+	private static final int CHUNK_SIZE = 4096;
+
+	/* private instance variables */
+	private FacePamphletNameRegistry names;
+
+	/* Name registry ID of each vertex, and vertex of each ID (or -1) */
+	private int[] vertexIds;
+	private int[] vertexOf;
+
+	/* Friends of vertex v are adjacency[offsets[v]] to adjacency[offsets[v + 1] - 1] */
+	private int[] offsets;
+	private int[] adjacency;
+
+	/* Group label of each vertex from the last findComponents, or null */
+	private int[] componentOf;
+
+	/* Bookkeeping for findPath, reused from query to query */
+	private int query;
+	private int[] seenFrom;
+	private int[] seenTo;
+	private int[] parentFrom;
+	private int[] parentTo;
+	private int lastMeet;
+}
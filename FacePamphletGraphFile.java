@@ -0,0 +1,370 @@
+/*
+ * File: FacePamphletGraphFile.java
+ * --------------------------------
+ * This class reads and writes the whole social graph in a compact
+ * binary file that is opened with FileChannel.map, so nothing is read
+ * into the heap up front: a database opened on a graph file (see
+ * FacePamphletDatabase) looks names up in the file's hash table and
+ * only builds a FacePamphletProfile when that profile is first used.
+ * Opening a file therefore takes about the same time however large the
+ * graph is.
+ *
+ * The file holds, in order:
+ *   - a header of int fields giving the counts and section offsets
+ *   - a string pool of UTF-8 bytes (names, then statuses and image files)
+ *   - the offset of each string in the pool
+ *   - a profile table giving each profile's status and image strings
+ *   - adjacency offsets and the adjacency array (CSR layout), listing
+ *     each profile's friends as indexes into the name strings
+ *   - an open-addressed hash table from profile name to profile index
+ * The profiles are the first names in the pool, so a profile's index is
+ * also the index of its name.  Files are limited to 2GB.
+ *
+ * A graph file is also a FacePamphletProfileStore, building a new
+ * profile on every loadProfile, for use behind a FacePamphletProfileCache.
+ * Each profile built that way gets a name registry of its own for its
+ * friends, which goes away with it, so the file keeps no names however
+ * many profiles are read.  A FacePamphletDatabase builds profiles with
+ * its own registry instead.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class FacePamphletGraphFile implements FacePamphletProfileStore {
+
+	/* Constructor This method maps the given graph file into memory. */
+	public FacePamphletGraphFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is larger than 2GB");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException(file + " is not a FacePamphlet graph file");
+		}
+		profileCount = buffer.getInt(8);
+		hashSize = buffer.getInt(12);
+		poolOffset = buffer.getInt(16);
+		stringOffsets = buffer.getInt(20);
+		profileTable = buffer.getInt(24);
+		adjacencyOffsets = buffer.getInt(28);
+		adjacency = buffer.getInt(32);
+		hashTable = buffer.getInt(36);
+	}
+
+	/*
+	 * This method writes every profile in db to the given file in the format
+	 * described above.
+	 */
+	public static void write(FacePamphletDatabase db, File file) throws IOException {
+		db.loadAllProfiles();
+		FacePamphletNameRegistry names = db.getNameRegistry();
+		Collection<FacePamphletProfile> profiles = db.friendsDatabase.values();
+
+		// Number the names: profiles first, then other names among friends //
+		ArrayList<String> strings = new ArrayList<String>();
+		int[] nameIndex = new int[names.size()];
+		for (FacePamphletProfile prof : profiles) {
+			nameIndex[names.getId(prof.getName())] = strings.size() + 1;
+			strings.add(prof.getName());
+		}
+		int edges = 0;
+		for (FacePamphletProfile prof : profiles) {
+			PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+			while (it.hasNext()) {
+				int id = it.nextInt();
+				if (nameIndex[id] == 0) {
+					nameIndex[id] = strings.size() + 1;
+					strings.add(names.getName(id));
+				}
+				edges++;
+			}
+		}
+		int count = profiles.size();
+		int[] profileStrings = new int[count * 2];
+		int i = 0;
+		for (FacePamphletProfile prof : profiles) {
+			profileStrings[i++] = addString(strings, prof.getStatus().length() > 0 ? prof.getStatus() : null);
+			profileStrings[i++] = addString(strings, prof.getImageFile());
+		}
+		byte[][] encoded = new byte[strings.size()][];
+		long poolSize = 0;
+		for (int j = 0; j < encoded.length; j++) {
+			encoded[j] = strings.get(j).getBytes(StandardCharsets.UTF_8);
+			poolSize += encoded[j].length;
+		}
+		int hashSize = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+
+		// Lay out the sections //
+		long poolOffset = HEADER_SIZE;
+		long stringOffsets = align(poolOffset + poolSize);
+		long profileTable = stringOffsets + 4L * (encoded.length + 1);
+		long adjacencyOffsets = profileTable + 4L * profileStrings.length;
+		long adjacency = adjacencyOffsets + 4L * (count + 1);
+		long hashTable = adjacency + 4L * edges;
+		long end = hashTable + 4L * hashSize;
+		if (end > Integer.MAX_VALUE) {
+			throw new IOException("graph is too large for a single graph file");
+		}
+
+		DataOutputStream data = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(count);
+			data.writeInt(hashSize);
+			data.writeInt((int) poolOffset);
+			data.writeInt((int) stringOffsets);
+			data.writeInt((int) profileTable);
+			data.writeInt((int) adjacencyOffsets);
+			data.writeInt((int) adjacency);
+			data.writeInt((int) hashTable);
+			for (byte[] bytes : encoded) {
+				data.write(bytes);
+			}
+			for (long pad = poolOffset + poolSize; pad < stringOffsets; pad++) {
+				data.writeByte(0);
+			}
+			int offset = 0;
+			for (byte[] bytes : encoded) {
+				data.writeInt(offset);
+				offset += bytes.length;
+			}
+			data.writeInt(offset);
+			for (int ref : profileStrings) {
+				data.writeInt(ref);
+			}
+			offset = 0;
+			for (FacePamphletProfile prof : profiles) {
+				data.writeInt(offset);
+				offset += prof.getFriendIds().size();
+			}
+			data.writeInt(offset);
+			for (FacePamphletProfile prof : profiles) {
+				PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+				while (it.hasNext()) {
+					data.writeInt(nameIndex[it.nextInt()] - 1);
+				}
+			}
+			int[] table = new int[hashSize];
+			int index = 0;
+			for (FacePamphletProfile prof : profiles) {
+				int slot = hash(prof.getName()) & (hashSize - 1);
+				while (table[slot] != 0) {
+					slot = (slot + 1) & (hashSize - 1);
+				}
+				table[slot] = ++index;
+			}
+			for (int entry : table) {
+				data.writeInt(entry);
+			}
+		} finally {
+			data.close();
+		}
+	}
+
+	/* This method returns the number of profiles in the file. */
+	public int getProfileCount() {
+		return profileCount;
+	}
+
+	/*
+	 * This method returns the index of the profile with the given name, or -1
+	 * if the file has no such profile.
+	 */
+	public int findProfile(String name) {
+		if (hashSize == 0) {
+			return -1;
+		}
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int mask = hashSize - 1;
+		for (int slot = hash(name) & mask;; slot = (slot + 1) & mask) {
+			int entry = buffer.getInt(hashTable + 4 * slot);
+			if (entry == 0) {
+				return -1;
+			}
+			if (stringEquals(entry - 1, key)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/* This method returns true if the file has a profile with the given name. */
+	public boolean containsProfile(String name) {
+		return findProfile(name) >= 0;
+	}
+
+	/*
+	 * This method builds the profile with the given name from the file, or
+	 * returns null if the file has no such profile. Its friends get IDs from
+	 * a registry made for it alone.
+	 */
+	public FacePamphletProfile loadProfile(String name) {
+		return loadProfile(name, new FacePamphletNameRegistry());
+	}
+
+	/*
+	 * This method is like the one above, but gives the profile's friends IDs
+	 * from the given registry, as FacePamphletDatabase does with its own.
+	 */
+	FacePamphletProfile loadProfile(String name, FacePamphletNameRegistry names) {
+		int index = findProfile(name);
+		if (index < 0) {
+			return null;
+		}
+		FacePamphletProfile prof = new FacePamphletProfile(name, names);
+		String status = getStatus(index);
+		if (status != null) {
+			prof.setStatus(status);
+		}
+		String file = getImageFile(index);
+		if (file != null) {
+			prof.setImageFile(file);
+		}
+		int count = getFriendCount(index);
+		for (int i = 0; i < count; i++) {
+			prof.addFriend(getFriend(index, i));
+		}
+		return prof;
+	}
+
+	/* This method returns the name of the profile with the given index. */
+	public String getName(int profile) {
+		return getString(profile);
+	}
+
+	/*
+	 * This method returns the status of the profile with the given index, or
+	 * null if it has none.
+	 */
+	public String getStatus(int profile) {
+		return getString(buffer.getInt(profileTable + 8 * profile));
+	}
+
+	/*
+	 * This method returns the image file of the profile with the given index,
+	 * or null if it has none.
+	 */
+	public String getImageFile(int profile) {
+		return getString(buffer.getInt(profileTable + 8 * profile + 4));
+	}
+
+	/* This method returns the number of friends of the given profile. */
+	public int getFriendCount(int profile) {
+		return adjacencyStart(profile + 1) - adjacencyStart(profile);
+	}
+
+	/* This method returns the name of the i-th friend of the given profile. */
+	public String getFriend(int profile, int i) {
+		return getString(buffer.getInt(adjacency + 4 * (adjacencyStart(profile) + i)));
+	}
+
+	/*
+	 * This method returns an iterator over the names of the given profile's
+	 * friends, read straight from the mapped file.
+	 */
+	public Iterator<String> getFriends(final int profile) {
+		return new Iterator<String>() {
+			public boolean hasNext() {
+				return next < getFriendCount(profile);
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return getFriend(profile, next++);
+			}
+
+			private int next = 0;
+		};
+	}
+
+	/* Returns where the given profile's friends start in the adjacency array. */
+	private int adjacencyStart(int profile) {
+		return buffer.getInt(adjacencyOffsets + 4 * profile);
+	}
+
+	/* Decodes string number index from the pool, or returns null for -1. */
+	private String getString(int index) {
+		if (index < 0) {
+			return null;
+		}
+		int start = buffer.getInt(stringOffsets + 4 * index);
+		int length = buffer.getInt(stringOffsets + 4 * index + 4) - start;
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(poolOffset + start);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/* Compares string number index in the pool with key, byte by byte. */
+	private boolean stringEquals(int index, byte[] key) {
+		int start = buffer.getInt(stringOffsets + 4 * index);
+		int length = buffer.getInt(stringOffsets + 4 * index + 4) - start;
+		if (length != key.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(poolOffset + start + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Adds str to strings and returns its index, or returns -1 for null. */
+	private static int addString(ArrayList<String> strings, String str) {
+		if (str == null) {
+			return -1;
+		}
+		strings.add(str);
+		return strings.size() - 1;
+	}
+
+	/* Rounds an offset up to a multiple of 4 so the int sections are aligned. */
+	private static long align(long offset) {
+		return (offset + 3) & ~3L;
+	}
+
+	/* Hash of a profile name used to place it in the hash table. */
+	private static int hash(String name) {
+		int h = name.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/* Marks the start of a graph file ("FPGF") */
+	private static final int MAGIC = 0x46504746;
+
+	/* Version of the file format written by this class */
+	private static final int VERSION = 1;
+
+	/* Number of bytes in the header */
+	private static final int HEADER_SIZE = 40;
+
+	/* Size of the buffer used for writing */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* private instance variables */
+	private MappedByteBuffer buffer;
+	private int profileCount;
+	private int hashSize;
+	private int poolOffset;
+	private int stringOffsets;
+	private int profileTable;
+	private int adjacencyOffsets;
+	private int adjacency;
+	private int hashTable;
+}
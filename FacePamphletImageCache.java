@@ -0,0 +1,347 @@
+/*
+ * File: FacePamphletImageCache.java
+ * ---------------------------------
+ * This class loads profile images for the canvas.  Profiles only store
+ * the name of their image file; the first time an image is wanted it is
+ * decoded on a background thread (never on the Swing event thread),
+ * scaled down once to the size the canvas shows it at, and kept in a
+ * least-recently-used cache.  The cache is bounded by the number of
+ * bytes its scaled images take up rather than by how many it holds, so
+ * loading images for thousands of profiles cannot exhaust the heap.
+ *
+ * Images are stored by a hash of their file's contents, so any number
+ * of profiles (and any number of copies of the same file) share one
+ * decoded image.  The database tells the cache how many profiles use
+ * each file through retain and release; once no profile uses an image
+ * any more, it is freed straight away rather than waiting to be evicted.
+ * Decoding and scaling are timed under "images.decode".
+ */
+
+import acm.graphics.*;
+import acm.util.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+import javax.swing.*;
+
+public class FacePamphletImageCache implements FacePamphletConstants {
+
+	/*
+	 * The interface used to hear when an image has finished loading. Both
+	 * methods are called on the Swing event thread.
+	 */
+	public interface ImageListener {
+
+		/* Called with the scaled image once the file has been decoded. */
+		public void imageLoaded(String file, GImage image);
+
+		/* Called if the file could not be found or decoded. */
+		public void imageFailed(String file);
+	}
+
+	/* Creates a cache holding at most IMAGE_CACHE_BYTES of scaled images. */
+	public FacePamphletImageCache() {
+		this(IMAGE_CACHE_BYTES);
+	}
+
+	/* Creates a cache holding at most maxBytes of scaled images. */
+	public FacePamphletImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		decoder = Executors.newFixedThreadPool(DECODER_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FacePamphletImageCache decoder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * This method returns the scaled image for the given file if it is already
+	 * in the cache, or null if it is not. It never decodes anything itself.
+	 */
+	public synchronized GImage getImage(String file) {
+		String hash = fileHashes.get(file);
+		if (hash == null) {
+			return null;
+		}
+		return images.get(hash);
+	}
+
+	/*
+	 * This method makes sure the image for the given file is loaded, and tells
+	 * listener (on the event thread) once it is, or that it failed. If the
+	 * image is already cached, listener is told straight away.
+	 */
+	public void loadImage(final String file, final ImageListener listener) {
+		synchronized (this) {
+			GImage cached = getImage(file);
+			if (cached != null) {
+				notifyLoaded(listener, file, cached);
+				return;
+			}
+			ArrayList<ImageListener> waiting = pending.get(file);
+			if (waiting != null) {
+				// already being decoded; just wait for that to finish
+				waiting.add(listener);
+				return;
+			}
+			waiting = new ArrayList<ImageListener>();
+			waiting.add(listener);
+			pending.put(file, waiting);
+		}
+		decoder.execute(new Runnable() {
+			public void run() {
+				decode(file);
+			}
+		});
+	}
+
+	/* Records that one more profile uses the image in the given file. */
+	public synchronized void retain(String file) {
+		Integer refs = fileRefs.get(file);
+		fileRefs.put(file, refs == null ? 1 : refs + 1);
+	}
+
+	/*
+	 * Records that one profile no longer uses the image in the given file. If
+	 * that leaves no profile using the image's contents, the image is freed.
+	 */
+	public synchronized void release(String file) {
+		Integer refs = fileRefs.get(file);
+		if (refs == null) {
+			return;
+		}
+		if (refs > 1) {
+			fileRefs.put(file, refs - 1);
+			return;
+		}
+		fileRefs.remove(file);
+		String hash = fileHashes.get(file);
+		if (hash != null && !isUsed(hash)) {
+			free(hash);
+		}
+	}
+
+	/* This method returns the number of bytes taken by cached images. */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/* This method returns the number of distinct images held in the cache. */
+	public synchronized int getCachedImageCount() {
+		return images.size();
+	}
+
+	/*
+	 * This method reads and hashes the given file on a decoder thread, decodes
+	 * and scales it unless an image with the same contents is already cached,
+	 * and notifies everyone waiting for it.
+	 */
+	private void decode(String file) {
+		GImage image = null;
+		String hash = null;
+		try {
+			byte[] bytes = readFile(file);
+			if (bytes != null) {
+				hash = hashOf(bytes);
+				synchronized (this) {
+					image = images.get(hash);
+				}
+				if (image == null) {
+					long start = DECODE_TIMER.start();
+					try {
+						BufferedImage full = ImageIO.read(new ByteArrayInputStream(bytes));
+						if (full != null) {
+							image = new GImage(scale(full));
+						}
+					} finally {
+						DECODE_TIMER.stop(start);
+					}
+				}
+			}
+		} catch (IOException ex) {
+			// reported below as a failure
+		}
+		ArrayList<ImageListener> waiting;
+		synchronized (this) {
+			waiting = pending.remove(file);
+			if (image != null) {
+				image = put(file, hash, image);
+			}
+		}
+		for (ImageListener listener : waiting) {
+			if (image != null) {
+				notifyLoaded(listener, file, image);
+			} else {
+				notifyFailed(listener, file);
+			}
+		}
+	}
+
+	/*
+	 * Reads the given file, looking for it where GImage does: through
+	 * MediaTools, which searches the directories on its image path (the
+	 * working directory, then images) and the program's resources. Returns
+	 * null if the file cannot be found.
+	 */
+	private byte[] readFile(String file) throws IOException {
+		InputStream in;
+		try {
+			in = MediaTools.openDataFile(file, MediaTools.DEFAULT_IMAGE_PATH);
+		} catch (ErrorException ex) {
+			return null;
+		}
+		try {
+			return in.readAllBytes();
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Returns the SHA-256 hash of bytes as a hex string. */
+	private static String hashOf(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/* Scales image down (or up) once to the size the canvas displays it at. */
+	private Image scale(BufferedImage image) {
+		int width = (int) IMAGE_WIDTH;
+		int height = (int) IMAGE_HEIGHT;
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+		return scaled;
+	}
+
+	/*
+	 * Adds a decoded image to the cache under its content hash, evicting the
+	 * least recently used images, and returns the image now cached for that
+	 * hash (an equal one may have been added by another decoder meanwhile).
+	 */
+	private GImage put(String file, String hash, GImage image) {
+		String oldHash = fileHashes.put(file, hash);
+		if (oldHash != null && !oldHash.equals(hash)) {
+			// the file was changed on disk since it was last loaded
+			hashFiles.get(oldHash).remove(file);
+			if (!isUsed(oldHash)) {
+				free(oldHash);
+			}
+		}
+		HashSet<String> files = hashFiles.get(hash);
+		if (files == null) {
+			files = new HashSet<String>();
+			hashFiles.put(hash, files);
+		}
+		files.add(file);
+		GImage cached = images.get(hash);
+		if (cached != null) {
+			return cached;
+		}
+		images.put(hash, image);
+		cachedBytes += bytesOf(image);
+		Iterator<Map.Entry<String, GImage>> it = images.entrySet().iterator();
+		while (cachedBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, GImage> eldest = it.next();
+			if (eldest.getValue() == image) {
+				// always keep the image that was just loaded
+				continue;
+			}
+			cachedBytes -= bytesOf(eldest.getValue());
+			it.remove();
+		}
+		return image;
+	}
+
+	/* Returns true if any profile uses a file with the given contents. */
+	private boolean isUsed(String hash) {
+		HashSet<String> files = hashFiles.get(hash);
+		if (files != null) {
+			for (String file : files) {
+				if (fileRefs.containsKey(file)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* Drops the image with the given content hash and everything naming it. */
+	private void free(String hash) {
+		GImage image = images.remove(hash);
+		if (image != null) {
+			cachedBytes -= bytesOf(image);
+		}
+		HashSet<String> files = hashFiles.remove(hash);
+		if (files != null) {
+			for (String file : files) {
+				fileHashes.remove(file);
+			}
+		}
+	}
+
+	/* Returns the number of bytes a scaled image takes (4 per pixel). */
+	private static long bytesOf(GImage image) {
+		Image awt = image.getImage();
+		return 4L * awt.getWidth(null) * awt.getHeight(null);
+	}
+
+	/* Tells listener on the event thread that file has loaded. */
+	private static void notifyLoaded(final ImageListener listener, final String file, final GImage image) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.imageLoaded(file, image);
+			}
+		});
+	}
+
+	/* Tells listener on the event thread that file could not be loaded. */
+	private static void notifyFailed(final ImageListener listener, final String file) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.imageFailed(file);
+			}
+		});
+	}
+
+	/* Number of background threads decoding images */
+	private static final int DECODER_THREADS = 2;
+
+	private static final FacePamphletMetrics.Timer DECODE_TIMER = FacePamphletMetrics.getGlobal().timer(
+			"images.decode");
+
+	/* private instance variables */
+	private long maxBytes;
+	private long cachedBytes;
+	private ExecutorService decoder;
+
+	/* Decoded images by content hash, least recently used first */
+	private LinkedHashMap<String, GImage> images = new LinkedHashMap<String, GImage>(16, 0.75f, true);
+
+	/* Content hash of each file loaded so far, and the files with each hash */
+	private HashMap<String, String> fileHashes = new HashMap<String, String>();
+	private HashMap<String, HashSet<String>> hashFiles = new HashMap<String, HashSet<String>>();
+
+	/* Number of profiles using each file */
+	private HashMap<String, Integer> fileRefs = new HashMap<String, Integer>();
+
+	/* Listeners waiting for files that are being decoded */
+	private HashMap<String, ArrayList<ImageListener>> pending = new HashMap<String, ArrayList<ImageListener>>();
+}
@@ -0,0 +1,221 @@
+/*
+ * File: FacePamphletLoadGenerator.java
+ * ------------------------------------
+ * This class puts a FacePamphletServer under load from many clients at
+ * once and reports its throughput and latency.  It runs on its own as
+ *
+ *     java FacePamphletLoadGenerator [url] [clients] [seconds] [profiles]
+ *
+ * It first adds the given number of profiles (named "user0", "user1",
+ * ...) and a few friendships between them, then starts the clients.
+ * Each client sends one request at a time, and sends its next as soon
+ * as the last is answered, so the number of clients is the number of
+ * requests in flight.  The mix of requests is READ_PERCENT lookups,
+ * with the rest split between status changes and befriending or
+ * unfriending a random pair.  Requests are sent asynchronously over
+ * the JDK's HTTP client, so thousands of clients need only a few
+ * threads; each client does hold its own connection, so the open file
+ * limit of both processes must allow for them.
+ */
+
+import java.net.*;
+import java.net.http.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+public class FacePamphletLoadGenerator {
+
+	/* Runs the load and prints the results. */
+	public static void main(String[] args) throws InterruptedException {
+		String url = args.length > 0 ? args[0] : "http://localhost:8080";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int profiles = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+		FacePamphletLoadGenerator generator = new FacePamphletLoadGenerator(url, profiles);
+		generator.setUp();
+		System.out.printf("%d clients for %d s against %d profiles...%n", clients, seconds, profiles);
+		generator.run(clients, seconds);
+		generator.printResults(seconds);
+		// the HTTP client's threads would otherwise keep the JVM running //
+		System.exit(0);
+	}
+
+	/* Creates a generator for the server at url (such as http://host:8080). */
+	public FacePamphletLoadGenerator(String url, int profiles) {
+		this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		this.profiles = profiles;
+		http = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(CLIENT_THREADS))
+				.connectTimeout(java.time.Duration.ofSeconds(TIMEOUT_SECONDS)).build();
+	}
+
+	/*
+	 * This method adds the profiles, each befriending SETUP_FRIENDS others,
+	 * with at most SETUP_CONCURRENCY requests in flight. Profiles that are
+	 * already there are left as they are.
+	 */
+	public void setUp() throws InterruptedException {
+		Random random = new Random(SEED);
+		ArrayList<HttpRequest> requests = new ArrayList<HttpRequest>();
+		for (int i = 0; i < profiles; i++) {
+			requests.add(request("POST", "/profiles/" + userName(i), null));
+		}
+		sendAll(requests);
+		requests.clear();
+		for (int i = 0; i < profiles; i++) {
+			for (int f = 0; f < SETUP_FRIENDS; f++) {
+				int friend = random.nextInt(profiles);
+				if (friend != i) {
+					requests.add(request("PUT", "/profiles/" + userName(i) + "/friends/" + userName(friend), null));
+				}
+			}
+		}
+		sendAll(requests);
+	}
+
+	/*
+	 * This method runs the given number of clients for the given number of
+	 * seconds, recording the latency of every request answered.
+	 */
+	public void run(int clients, int seconds) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(clients);
+		latencies = new long[clients][];
+		counts = new int[clients];
+		for (int c = 0; c < clients; c++) {
+			latencies[c] = new long[INITIAL_LATENCIES];
+			sendNext(c, new Random(SEED + c), deadline, done);
+		}
+		done.await();
+	}
+
+	/* This method prints the throughput and latency percentiles of the last run. */
+	public void printResults(int seconds) {
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		long[] all = new long[total];
+		int at = 0;
+		for (int c = 0; c < counts.length; c++) {
+			System.arraycopy(latencies[c], 0, all, at, counts[c]);
+			at += counts[c];
+		}
+		Arrays.sort(all);
+		System.out.printf("%d requests, %.0f requests/s, %d failed%n", total, (double) total / seconds,
+				failures.get());
+		if (total > 0) {
+			System.out.printf("latency p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", percentile(all, 50) / 1e6,
+					percentile(all, 99) / 1e6, all[total - 1] / 1e6);
+		}
+	}
+
+	/*
+	 * Sends client c's next request, and from its completion the one after,
+	 * until the deadline.
+	 */
+	private void sendNext(final int c, final Random random, final long deadline, final CountDownLatch done) {
+		final long start = System.nanoTime();
+		if (start >= deadline) {
+			done.countDown();
+			return;
+		}
+		http.sendAsync(randomRequest(random), HttpResponse.BodyHandlers.discarding()).whenComplete(
+				new BiConsumer<HttpResponse<Void>, Throwable>() {
+					public void accept(HttpResponse<Void> response, Throwable failure) {
+						if (failure != null || response.statusCode() >= 500) {
+							failures.incrementAndGet();
+						} else {
+							record(c, System.nanoTime() - start);
+						}
+						sendNext(c, random, deadline, done);
+					}
+				});
+	}
+
+	/* Picks a request from the mix described at the top of the file. */
+	private HttpRequest randomRequest(Random random) {
+		String name = userName(random.nextInt(profiles));
+		int pick = random.nextInt(100);
+		if (pick < READ_PERCENT) {
+			return request("GET", "/profiles/" + name, null);
+		}
+		if (pick < READ_PERCENT + (100 - READ_PERCENT) / 2) {
+			return request("PUT", "/profiles/" + name + "/status", "{\"status\": \"status " + pick + "\"}");
+		}
+		String friend = userName(random.nextInt(profiles));
+		return request(random.nextBoolean() ? "PUT" : "DELETE", "/profiles/" + name + "/friends/" + friend, null);
+	}
+
+	/* Sends every request, SETUP_CONCURRENCY at a time, and waits for them. */
+	private void sendAll(List<HttpRequest> requests) throws InterruptedException {
+		final Semaphore permits = new Semaphore(SETUP_CONCURRENCY);
+		for (HttpRequest request : requests) {
+			permits.acquire();
+			http.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete(
+					new BiConsumer<HttpResponse<Void>, Throwable>() {
+						public void accept(HttpResponse<Void> response, Throwable failure) {
+							permits.release();
+						}
+					});
+		}
+		permits.acquire(SETUP_CONCURRENCY);
+		permits.release(SETUP_CONCURRENCY);
+	}
+
+	private HttpRequest request(String method, String path, String json) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + path)).timeout(
+				java.time.Duration.ofSeconds(TIMEOUT_SECONDS));
+		if (json != null) {
+			builder.header("Content-Type", "application/json");
+			return builder.method(method, HttpRequest.BodyPublishers.ofString(json)).build();
+		}
+		return builder.method(method, HttpRequest.BodyPublishers.noBody()).build();
+	}
+
+	/* Adds a latency to client c's log, which only c's requests write to. */
+	private void record(int c, long nanos) {
+		if (counts[c] == latencies[c].length) {
+			latencies[c] = Arrays.copyOf(latencies[c], counts[c] * 2);
+		}
+		latencies[c][counts[c]++] = nanos;
+	}
+
+	/* Returns the given percentile of the sorted values. */
+	private static long percentile(long[] sorted, int percent) {
+		int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	private static String userName(int i) {
+		return "user" + i;
+	}
+
+	/* Percentage of requests that are lookups */
+	private static final int READ_PERCENT = 80;
+
+	/* Friendships each profile makes while setting up, and requests in flight then */
+	private static final int SETUP_FRIENDS = 5;
+	private static final int SETUP_CONCURRENCY = 64;
+
+	/* Threads the HTTP client runs its callbacks on */
+	private static final int CLIENT_THREADS = 4;
+
+	/* How long to wait for a connection or a response */
+	private static final int TIMEOUT_SECONDS = 60;
+
+	private static final int INITIAL_LATENCIES = 64;
+	private static final long SEED = 106;
+
+	/* private instance variables */
+	private String url;
+	private int profiles;
+	private HttpClient http;
+
+	/* Latencies (in nanoseconds) recorded by each client, and how many */
+	private long[][] latencies;
+	private int[] counts;
+	private AtomicLong failures = new AtomicLong();
+}
@@ -0,0 +1,354 @@
+/*
+ * File: FacePamphletMetrics.java
+ * ------------------------------
+ * This class keeps track of how often the hot paths of FacePamphlet run
+ * and how long they take: database operations, canvas renders and image
+ * decodes each have a Timer, which counts calls and records their
+ * latencies in a Histogram.  Recording never locks; a histogram is an
+ * array of atomic counters, one per bucket, so any number of threads
+ * can record into it at once.
+ *
+ * Buckets are log-linear in the style of HdrHistogram: each power of
+ * two is split into SUB_BUCKETS equal parts, so a recorded value is
+ * known to within 1/SUB_BUCKETS (about 6%) at any magnitude, from
+ * nanoseconds to minutes, in a fixed BUCKETS counters.
+ *
+ * Reading the clock twice and recording takes on the order of 100 ns,
+ * longer than most database operations, so those are timed on only one
+ * call in sampleEvery, each thread picking the calls it times at random
+ * so that no counter is shared between threads.  Calls are still
+ * counted exactly, in a LongAdder per timer, so a skipped call costs
+ * one uncontended increment.  Gauges and distributions (such as the
+ * number of profiles and of friends per profile) are not recorded as
+ * things happen but worked out whenever the metrics are read.
+ *
+ * The metrics can be read as text (report), from the stats view of the
+ * application, or over JMX once registerMBean has been called.  With
+ * setEnabled(false), timers record nothing and cost one field read.
+ */
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class FacePamphletMetrics implements FacePamphletMetricsMXBean {
+
+	/* The interface used to read a value, such as a size, when it is reported. */
+	public interface Gauge {
+
+		public long getValue();
+	}
+
+	/*
+	 * The interface used to fill in a distribution, such as the number of
+	 * friends per profile, when it is reported.
+	 */
+	public interface Distribution {
+
+		public void recordTo(Histogram histogram);
+	}
+
+	/* This method returns the metrics shared by the whole application. */
+	public static FacePamphletMetrics getGlobal() {
+		return GLOBAL;
+	}
+
+	/* Creates an empty, enabled set of metrics. */
+	public FacePamphletMetrics() {
+	}
+
+	/*
+	 * This method returns the timer with the given name, creating it if need
+	 * be. Every call is timed.
+	 */
+	public Timer timer(String name) {
+		return timer(name, 1);
+	}
+
+	/*
+	 * This method returns the timer with the given name, creating it if need
+	 * be to time one call in sampleEvery (rounded up to a power of two).
+	 */
+	public Timer timer(String name, int sampleEvery) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			int rounded = sampleEvery <= 1 ? 1 : Integer.highestOneBit(sampleEvery - 1) << 1;
+			Timer created = new Timer(this, rounded);
+			timer = timers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		return timer;
+	}
+
+	/* This method adds a gauge, replacing any with the same name. */
+	public void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/* This method adds a distribution, replacing any with the same name. */
+	public void registerDistribution(String name, Distribution distribution) {
+		distributions.put(name, distribution);
+	}
+
+	/*
+	 * This method makes the metrics readable over JMX as FacePamphlet:type=Metrics.
+	 * It returns false if that could not be done (for example, if something is
+	 * already registered under that name).
+	 */
+	public boolean registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+			return true;
+		} catch (JMException ex) {
+			return false;
+		} catch (SecurityException ex) {
+			// not allowed when running as an applet
+			return false;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/* This method turns recording on or off. */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/* This method forgets everything the timers have recorded. */
+	public void reset() {
+		for (Timer timer : timers.values()) {
+			timer.histogram.reset();
+			timer.calls.reset();
+		}
+	}
+
+	public Map<String, Long> getCounts() {
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().getCount());
+		}
+		return counts;
+	}
+
+	public Map<String, Long> getP99Nanos() {
+		TreeMap<String, Long> p99 = new TreeMap<String, Long>();
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			p99.put(entry.getKey(), entry.getValue().histogram.getPercentile(99));
+		}
+		return p99;
+	}
+
+	public Map<String, Long> getGauges() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return values;
+	}
+
+	public String getReport() {
+		return String.join("\n", getReportLines()) + "\n";
+	}
+
+	/*
+	 * This method returns the report one line at a time: a line per timer
+	 * with its count of calls and the latencies of those timed, in
+	 * microseconds, then a line per gauge, then a line per distribution.
+	 */
+	public List<String> getReportLines() {
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add(String.format("%-28s %10s %9s %9s %9s %9s", "operation (us)", "count", "mean", "p50", "p99",
+				"max"));
+		for (Map.Entry<String, Timer> entry : new TreeMap<String, Timer>(timers).entrySet()) {
+			Histogram h = entry.getValue().histogram;
+			long calls = entry.getValue().getCount();
+			if (calls > 0) {
+				lines.add(String.format("%-28s %10d %9.1f %9.1f %9.1f %9.1f", entry.getKey(), calls,
+						h.getMean() / 1e3, h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3));
+			}
+		}
+		for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+			lines.add(String.format("%-28s %10d", entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, Distribution> entry : new TreeMap<String, Distribution>(distributions).entrySet()) {
+			Histogram h = new Histogram();
+			entry.getValue().recordTo(h);
+			lines.add(String.format("%-28s %10d %9.1f %9d %9d %9d", entry.getKey(), h.getCount(), h.getMean(),
+					h.getPercentile(50), h.getPercentile(99), h.getMax()));
+		}
+		return lines;
+	}
+
+	/* This method writes the report to out. */
+	public void report(Appendable out) throws IOException {
+		for (String line : getReportLines()) {
+			out.append(line).append('\n');
+		}
+	}
+
+	/*
+	 * A timer for one operation. It is used as
+	 *
+	 *     long start = TIMER.start();
+	 *     try { ... } finally { TIMER.stop(start); }
+	 */
+	public static final class Timer {
+
+		Timer(FacePamphletMetrics metrics, int sampleEvery) {
+			this.metrics = metrics;
+			this.sampleEvery = sampleEvery;
+		}
+
+		/*
+		 * This method returns the time the call starts at, or 0 if it is not
+		 * being timed.
+		 */
+		public long start() {
+			if (!metrics.enabled) {
+				return 0L;
+			}
+			calls.increment();
+			if (sampleEvery > 1 && (ThreadLocalRandom.current().nextInt() & (sampleEvery - 1)) != 0) {
+				return 0L;
+			}
+			return System.nanoTime();
+		}
+
+		/* This method records the latency of the call start returned start for. */
+		public void stop(long start) {
+			if (start != 0L) {
+				histogram.record(System.nanoTime() - start);
+			}
+		}
+
+		/* This method returns the number of calls made while enabled. */
+		public long getCount() {
+			return calls.sum();
+		}
+
+		/*
+		 * This method returns the latencies of the calls timed, in nanoseconds:
+		 * all of them, or a sample of about one in sampleEvery.
+		 */
+		public Histogram getHistogram() {
+			return histogram;
+		}
+
+		private final FacePamphletMetrics metrics;
+		private final int sampleEvery;
+		private final Histogram histogram = new Histogram();
+		private final LongAdder calls = new LongAdder();
+	}
+
+	/* A log-linear histogram of non-negative values, as described at the top. */
+	public static final class Histogram {
+
+		/* This method records value, as if it had happened count times. */
+		public void record(long value, int count) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets.addAndGet(bucketOf(value), count);
+			total.add(count);
+			sum.add(value * count);
+			long seen = max.get();
+			while (value > seen && !max.compareAndSet(seen, value)) {
+				seen = max.get();
+			}
+		}
+
+		/* This method records value once. */
+		public void record(long value) {
+			record(value, 1);
+		}
+
+		public long getCount() {
+			return total.sum();
+		}
+
+		public double getMean() {
+			long count = total.sum();
+			return count == 0 ? 0 : (double) sum.sum() / count;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/*
+		 * This method returns the value that percent of the recorded values are
+		 * at or below, to within the precision of a bucket.
+		 */
+		public long getPercentile(double percent) {
+			long count = total.sum();
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += buckets.get(b);
+				if (seen >= rank) {
+					return Math.min(highestIn(b), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for (int b = 0; b < BUCKETS; b++) {
+				buckets.set(b, 0);
+			}
+			total.reset();
+			sum.reset();
+			max.set(0);
+		}
+
+		/* Returns the bucket holding value. */
+		static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+					+ (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		}
+
+		/* Returns the largest value in bucket b. */
+		static long highestIn(int b) {
+			if (b < SUB_BUCKETS) {
+				return b;
+			}
+			int exponent = (b >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+			int shift = exponent - SUB_BUCKET_BITS;
+			long lowest = (1L << exponent) | ((long) (b & (SUB_BUCKETS - 1)) << shift);
+			return lowest + (1L << shift) - 1;
+		}
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder total = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+	}
+
+	/* Each power of two is split into SUB_BUCKETS buckets, for 64-bit values */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+
+	private static final String MBEAN_NAME = "FacePamphlet:type=Metrics";
+	private static final FacePamphletMetrics GLOBAL = new FacePamphletMetrics();
+
+	/* private instance variables */
+	private volatile boolean enabled = true;
+	private ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private ConcurrentHashMap<String, Distribution> distributions = new ConcurrentHashMap<String, Distribution>();
+}
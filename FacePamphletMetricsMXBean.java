@@ -0,0 +1,29 @@
+/*
+ * File: FacePamphletMetricsMXBean.java
+ * ------------------------------------
+ * This interface is what FacePamphletMetrics shows over JMX (see
+ * FacePamphletMetrics.registerMBean), for example in JConsole.
+ */
+
+import java.util.*;
+
+public interface FacePamphletMetricsMXBean {
+
+	/* Returns the text report (see FacePamphletMetrics.getReportLines). */
+	public String getReport();
+
+	/* Returns the number of calls of every timed operation. */
+	public Map<String, Long> getCounts();
+
+	/* Returns the 99th percentile latency, in nanoseconds, of every operation. */
+	public Map<String, Long> getP99Nanos();
+
+	/* Returns the current value of every gauge. */
+	public Map<String, Long> getGauges();
+
+	/* Returns true if the timers are recording. */
+	public boolean isEnabled();
+
+	/* Turns recording on or off. */
+	public void setEnabled(boolean enabled);
+}
@@ -0,0 +1,272 @@
+/*
+ * File: FacePamphletNameIndex.java
+ * --------------------------------
+ * This class keeps the names of every profile in sorted order so they
+ * can be looked up by prefix, for suggesting names as the user types.
+ * Names are sorted ignoring case (with case only breaking ties), so a
+ * case-insensitive prefix search finds its matches side by side, and a
+ * case-sensitive search filters the same run.
+ *
+ * Names are kept as their FacePamphletNameRegistry IDs, 4 bytes each,
+ * in sorted int arrays ("levels") rather than one: a new name goes into
+ * a small sorted level, and whenever two levels reach the same size
+ * they are merged into one twice as large, up to MAX_LEVEL_SIZE.
+ * Adding a name therefore costs O(log n) on average, and never more
+ * than one MAX_LEVEL_SIZE merge, instead of shifting a huge array; a
+ * search looks in each level.  Removing a name only clears its bit in a
+ * BitSet; the ID is dropped from its level at the next merge through
+ * it, or when removed names outnumber live ones.
+ *
+ * All methods are synchronized, so the index may be shared by threads.
+ */
+
+import java.util.*;
+
+public class FacePamphletNameIndex {
+
+	/* Creates an empty index of names from the given registry. */
+	public FacePamphletNameIndex(FacePamphletNameRegistry names) {
+		this.names = names;
+	}
+
+	/*
+	 * This method adds the given name to the index. It returns false if the
+	 * name was already in it.
+	 */
+	public synchronized boolean add(String name) {
+		int id = names.getId(name);
+		if (present.get(id)) {
+			return false;
+		}
+		present.set(id);
+		liveCount++;
+		if (stored.get(id)) {
+			// removed earlier but still in a level, so it can simply come back
+			garbageCount--;
+			return true;
+		}
+		stored.set(id);
+		insertSmall(id);
+		return true;
+	}
+
+	/*
+	 * This method removes the given name from the index. It returns false if
+	 * the name was not in it.
+	 */
+	public synchronized boolean remove(String name) {
+		int id = names.findId(name);
+		if (id < 0 || !present.get(id)) {
+			return false;
+		}
+		present.clear(id);
+		liveCount--;
+		garbageCount++;
+		if (garbageCount > liveCount + SMALL_LEVEL_SIZE) {
+			rebuild();
+		}
+		return true;
+	}
+
+	/* This method returns true if the given name is in the index. */
+	public synchronized boolean contains(String name) {
+		int id = names.findId(name);
+		return id >= 0 && present.get(id);
+	}
+
+	/* This method returns the number of names in the index. */
+	public synchronized int size() {
+		return liveCount;
+	}
+
+	/*
+	 * This method returns up to limit names in the index that start with
+	 * prefix, in sorted order. If ignoreCase is true, upper and lower case
+	 * letters in the prefix match either case.
+	 */
+	public synchronized List<String> findPrefix(String prefix, int limit, boolean ignoreCase) {
+		ArrayList<String> result = new ArrayList<String>();
+		if (limit <= 0) {
+			return result;
+		}
+
+		// One cursor per level, at the first name not before prefix //
+		int levelCount = levels.size() + 1;
+		int[][] arrays = new int[levelCount][];
+		int[] sizes = new int[levelCount];
+		int[] cursors = new int[levelCount];
+		for (int l = 0; l < levelCount; l++) {
+			arrays[l] = l == 0 ? small : levels.get(l - 1);
+			sizes[l] = l == 0 ? smallSize : arrays[l].length;
+			cursors[l] = lowerBound(arrays[l], sizes[l], prefix);
+		}
+
+		// Merge the levels until each has run past the names with prefix //
+		while (result.size() < limit) {
+			int best = -1;
+			String bestName = null;
+			for (int l = 0; l < levelCount; l++) {
+				while (cursors[l] < sizes[l] && !present.get(arrays[l][cursors[l]])) {
+					cursors[l]++;
+				}
+				if (cursors[l] == sizes[l]) {
+					continue;
+				}
+				String name = names.getName(arrays[l][cursors[l]]);
+				if (!name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+					// past the run of matching names in this level
+					cursors[l] = sizes[l];
+					continue;
+				}
+				if (best < 0 || compare(name, bestName) < 0) {
+					best = l;
+					bestName = name;
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			cursors[best]++;
+			if (ignoreCase || bestName.startsWith(prefix)) {
+				result.add(bestName);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Inserts id into the small level, keeping it sorted, and when it is full
+	 * moves it into the larger levels.
+	 */
+	private void insertSmall(int id) {
+		String name = names.getName(id);
+		int at = smallSize;
+		while (at > 0 && compare(names.getName(small[at - 1]), name) > 0) {
+			small[at] = small[at - 1];
+			at--;
+		}
+		small[at] = id;
+		smallSize++;
+		if (smallSize == SMALL_LEVEL_SIZE) {
+			int[] carry = Arrays.copyOf(small, smallSize);
+			smallSize = 0;
+			// Merge with each level no larger than carry, like adding 1 to a
+			// binary counter, but never past MAX_LEVEL_SIZE //
+			while (!levels.isEmpty()) {
+				int[] last = levels.get(levels.size() - 1);
+				if (last.length > carry.length || last.length + carry.length > MAX_LEVEL_SIZE) {
+					break;
+				}
+				carry = merge(levels.remove(levels.size() - 1), carry);
+			}
+			levels.add(carry);
+		}
+	}
+
+	/*
+	 * Merges two sorted levels into one, dropping IDs that have been removed
+	 * from the index.
+	 */
+	private int[] merge(int[] a, int[] b) {
+		int[] merged = new int[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < a.length || j < b.length) {
+			int id;
+			if (j == b.length || (i < a.length && compare(names.getName(a[i]), names.getName(b[j])) <= 0)) {
+				id = a[i++];
+			} else {
+				id = b[j++];
+			}
+			if (present.get(id)) {
+				merged[size++] = id;
+			} else {
+				stored.clear(id);
+				garbageCount--;
+			}
+		}
+		return size == merged.length ? merged : Arrays.copyOf(merged, size);
+	}
+
+	/*
+	 * Drops every removed ID from every level. Levels stay sorted when IDs
+	 * are taken out, so no names need comparing.
+	 */
+	private void rebuild() {
+		smallSize = dropRemoved(small, smallSize);
+		for (int l = levels.size() - 1; l >= 0; l--) {
+			int[] level = levels.get(l);
+			int size = dropRemoved(level, level.length);
+			if (size == 0) {
+				levels.remove(l);
+			} else {
+				levels.set(l, Arrays.copyOf(level, size));
+			}
+		}
+	}
+
+	/*
+	 * Moves the IDs still in the index to the front of array and returns how
+	 * many there are.
+	 */
+	private int dropRemoved(int[] array, int size) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (present.get(array[i])) {
+				array[kept++] = array[i];
+			} else {
+				stored.clear(array[i]);
+				garbageCount--;
+			}
+		}
+		return kept;
+	}
+
+	/*
+	 * Returns the position of the first name in the sorted array that is not
+	 * before prefix, ignoring case.
+	 */
+	private int lowerBound(int[] array, int size, String prefix) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (String.CASE_INSENSITIVE_ORDER.compare(names.getName(array[mid]), prefix) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/* The order names are kept in: ignoring case, then by case. */
+	private static int compare(String name, String other) {
+		int result = String.CASE_INSENSITIVE_ORDER.compare(name, other);
+		return result != 0 ? result : name.compareTo(other);
+	}
+
+	/* Size of the level new names are inserted into directly */
+	private static final int SMALL_LEVEL_SIZE = 256;
+
+	/*
+	 * Largest level made by merging, which bounds how long one add can take;
+	 * beyond this, full levels simply accumulate
+	 */
+	private static final int MAX_LEVEL_SIZE = 1 << 18;
+
+	/* private instance variables */
+	private final FacePamphletNameRegistry names;
+
+	/* Newest names, sorted, and the larger levels, largest first */
+	private int[] small = new int[SMALL_LEVEL_SIZE];
+	private int smallSize;
+	private ArrayList<int[]> levels = new ArrayList<int[]>();
+
+	/* IDs of names in the index, and IDs held in a level (live or removed) */
+	private BitSet present = new BitSet();
+	private BitSet stored = new BitSet();
+	private int liveCount;
+	private int garbageCount;
+}
@@ -0,0 +1,88 @@
+/*
+ * File: FacePamphletNameRegistry.java
+ * -----------------------------------
+ * This class interns profile names as small integer IDs, so that
+ * friendships can be stored as ints instead of repeating the name
+ * String on every edge.  IDs are handed out in order starting from 0
+ * and are never reused, so a name keeps its ID for the life of the
+ * registry.  The registry is safe to share between threads: lookups
+ * never block, and only the assignment of a new ID is synchronized.
+ *
+ * Each FacePamphletDatabase has a registry of its own (the shards of a
+ * FacePamphletShardedDatabase share one), which goes away with it, so
+ * names are only kept for as long as a database that used them.  A
+ * name is given an ID when a profile or friendship uses it; code that
+ * only looks a name up, which may be any string a user typed, uses
+ * findId so that the lookup does not add to the registry.
+ *
+ * Names are not released when their profiles are deleted: an old
+ * FacePamphletSnapshot may still name a deleted profile by its ID, and
+ * FacePamphletConcurrentDatabase picks locks by ID before it has them,
+ * so an ID given to a second name could be read as the wrong profile.
+ * A database that lives a long time while profiles come and go (such
+ * as FacePamphletServer's) therefore keeps about 120 bytes for every
+ * name it has ever used, counting the per-ID entries of its indexes;
+ * the "database.names" gauge shows how many.  Loading a database from
+ * FacePamphletStorage starts a new registry holding only the names the
+ * snapshot and log use, which is how the space comes back.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FacePamphletNameRegistry {
+
+	/*
+	 * This method returns the ID for the given name, assigning a new ID if the
+	 * name has not been seen before.
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = ids.get(name);
+			if (id == null) {
+				id = size;
+				String[] grown = names;
+				if (id == grown.length) {
+					grown = Arrays.copyOf(grown, grown.length * 2);
+				}
+				grown[id] = name;
+				// publish the name before the ID can be seen through ids //
+				names = grown;
+				size++;
+				ids.put(name, id);
+			}
+			return id;
+		}
+	}
+
+	/*
+	 * This method returns the ID for the given name, or -1 if the name has
+	 * never been registered. Unlike getId, it never assigns a new ID.
+	 */
+	public int findId(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	/* This method returns the name that was assigned the given ID. */
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/* This method returns the number of names registered so far. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/* private instance variables */
+	private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[16];
+	private int size;
+}
@@ -0,0 +1,334 @@
+/*
+ * File: FacePamphletPersistentMap.java
+ * ------------------------------------
+ * This class is an immutable map from int keys (profile IDs, see
+ * FacePamphletNameRegistry) to values.  Changing it with plus or minus
+ * returns a new map and leaves the old one as it was, so a map can be
+ * handed to other threads and read without any locking.
+ *
+ * The map is a hash array mapped trie: each node covers 5 bits of the
+ * key (starting from the lowest, which for the registry's densely
+ * numbered IDs spread evenly) and holds, in two bitmap-indexed arrays,
+ * the entries that end at it and the child nodes below it.  A change
+ * copies only the nodes on the path to its key, at most 7 of them and
+ * usually 3 or 4, and shares every other node with the old map.  Nodes
+ * are kept canonical (a child node always holds at least two entries),
+ * so removing entries shrinks the trie back down.
+ */
+
+import java.util.*;
+
+public final class FacePamphletPersistentMap<V> {
+
+	/* This method returns the empty map. */
+	@SuppressWarnings("unchecked")
+	public static <V> FacePamphletPersistentMap<V> empty() {
+		return (FacePamphletPersistentMap<V>) EMPTY;
+	}
+
+	private FacePamphletPersistentMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/* This method returns the number of entries in the map. */
+	public int size() {
+		return size;
+	}
+
+	/* This method returns the value for key, or null if it has none. */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Node node = root;
+		for (int shift = 0;; shift += BITS) {
+			int bit = bit(key, shift);
+			if ((node.dataMap & bit) != 0) {
+				int i = index(node.dataMap, bit);
+				return node.keys[i] == key ? (V) node.values[i] : null;
+			}
+			if ((node.nodeMap & bit) == 0) {
+				return null;
+			}
+			node = node.children[index(node.nodeMap, bit)];
+		}
+	}
+
+	/* This method returns true if the map has an entry for key. */
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/*
+	 * This method returns a map like this one but with key mapped to value,
+	 * which must not be null. If key already maps to that very value, the
+	 * method returns this map.
+	 */
+	public FacePamphletPersistentMap<V> plus(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null value for key " + key);
+		}
+		Node changed = put(root, key, value, 0);
+		if (changed == root) {
+			return this;
+		}
+		return new FacePamphletPersistentMap<V>(changed, containsKey(key) ? size : size + 1);
+	}
+
+	/*
+	 * This method returns a map like this one but without an entry for key. If
+	 * there is no such entry, the method returns this map.
+	 */
+	public FacePamphletPersistentMap<V> minus(int key) {
+		if (!containsKey(key)) {
+			return this;
+		}
+		if (size == 1) {
+			return empty();
+		}
+		return new FacePamphletPersistentMap<V>(remove(root, key, 0), size - 1);
+	}
+
+	/* This method returns the keys of the map, in no particular order. */
+	public PrimitiveIterator.OfInt keys() {
+		final Walker walker = new Walker(root);
+		return new PrimitiveIterator.OfInt() {
+			public boolean hasNext() {
+				return walker.hasNext();
+			}
+
+			public int nextInt() {
+				walker.next();
+				return walker.key;
+			}
+		};
+	}
+
+	/* This method returns the values of the map, in the same order as keys. */
+	public Iterator<V> values() {
+		final Walker walker = new Walker(root);
+		return new Iterator<V>() {
+			public boolean hasNext() {
+				return walker.hasNext();
+			}
+
+			@SuppressWarnings("unchecked")
+			public V next() {
+				walker.next();
+				return (V) walker.value;
+			}
+		};
+	}
+
+	/*
+	 * Returns node with key mapped to value, copying node and the nodes below
+	 * it on the way to key, or node itself if nothing changes.
+	 */
+	private static Node put(Node node, int key, Object value, int shift) {
+		int bit = bit(key, shift);
+		if ((node.dataMap & bit) != 0) {
+			int i = index(node.dataMap, bit);
+			if (node.keys[i] == key) {
+				if (node.values[i] == value) {
+					return node;
+				}
+				Object[] values = node.values.clone();
+				values[i] = value;
+				return new Node(node.dataMap, node.nodeMap, node.keys, values, node.children);
+			}
+			// Two keys share these bits, so they move down into a new child //
+			Node child = pair(node.keys[i], node.values[i], key, value, shift + BITS);
+			return withChild(withoutData(node, bit, i), bit, child);
+		}
+		if ((node.nodeMap & bit) != 0) {
+			int i = index(node.nodeMap, bit);
+			Node child = put(node.children[i], key, value, shift + BITS);
+			if (child == node.children[i]) {
+				return node;
+			}
+			Node[] children = node.children.clone();
+			children[i] = child;
+			return new Node(node.dataMap, node.nodeMap, node.keys, node.values, children);
+		}
+		return withData(node, bit, key, value);
+	}
+
+	/*
+	 * Returns node without key, which must be in it. A child left with a single
+	 * entry is folded back into its parent.
+	 */
+	private static Node remove(Node node, int key, int shift) {
+		int bit = bit(key, shift);
+		if ((node.dataMap & bit) != 0) {
+			return withoutData(node, bit, index(node.dataMap, bit));
+		}
+		int i = index(node.nodeMap, bit);
+		Node child = remove(node.children[i], key, shift + BITS);
+		if (child.nodeMap == 0 && child.keys.length == 1) {
+			Node parent = withoutChild(node, bit, i);
+			return withData(parent, bit, child.keys[0], child.values[0]);
+		}
+		Node[] children = node.children.clone();
+		children[i] = child;
+		return new Node(node.dataMap, node.nodeMap, node.keys, node.values, children);
+	}
+
+	/* Returns a node holding two entries whose keys agree below shift. */
+	private static Node pair(int key, Object value, int otherKey, Object otherValue, int shift) {
+		int bit = bit(key, shift);
+		int otherBit = bit(otherKey, shift);
+		if (bit == otherBit) {
+			Node child = pair(key, value, otherKey, otherValue, shift + BITS);
+			return new Node(0, bit, NO_KEYS, NO_VALUES, new Node[] { child });
+		}
+		if (Integer.compareUnsigned(bit, otherBit) < 0) {
+			return new Node(bit | otherBit, 0, new int[] { key, otherKey }, new Object[] { value, otherValue },
+					NO_CHILDREN);
+		}
+		return new Node(bit | otherBit, 0, new int[] { otherKey, key }, new Object[] { otherValue, value },
+				NO_CHILDREN);
+	}
+
+	/* Returns a copy of node with an entry added at bit. */
+	private static Node withData(Node node, int bit, int key, Object value) {
+		int i = index(node.dataMap, bit);
+		int count = node.keys.length;
+		int[] keys = new int[count + 1];
+		Object[] values = new Object[count + 1];
+		System.arraycopy(node.keys, 0, keys, 0, i);
+		System.arraycopy(node.values, 0, values, 0, i);
+		keys[i] = key;
+		values[i] = value;
+		System.arraycopy(node.keys, i, keys, i + 1, count - i);
+		System.arraycopy(node.values, i, values, i + 1, count - i);
+		return new Node(node.dataMap | bit, node.nodeMap, keys, values, node.children);
+	}
+
+	/* Returns a copy of node without its entry at bit, which is entry i. */
+	private static Node withoutData(Node node, int bit, int i) {
+		int count = node.keys.length;
+		int[] keys = new int[count - 1];
+		Object[] values = new Object[count - 1];
+		System.arraycopy(node.keys, 0, keys, 0, i);
+		System.arraycopy(node.values, 0, values, 0, i);
+		System.arraycopy(node.keys, i + 1, keys, i, count - i - 1);
+		System.arraycopy(node.values, i + 1, values, i, count - i - 1);
+		return new Node(node.dataMap & ~bit, node.nodeMap, keys, values, node.children);
+	}
+
+	/* Returns a copy of node with child added at bit. */
+	private static Node withChild(Node node, int bit, Node child) {
+		int i = index(node.nodeMap, bit);
+		int count = node.children.length;
+		Node[] children = new Node[count + 1];
+		System.arraycopy(node.children, 0, children, 0, i);
+		children[i] = child;
+		System.arraycopy(node.children, i, children, i + 1, count - i);
+		return new Node(node.dataMap, node.nodeMap | bit, node.keys, node.values, children);
+	}
+
+	/* Returns a copy of node without its child at bit, which is child i. */
+	private static Node withoutChild(Node node, int bit, int i) {
+		int count = node.children.length;
+		Node[] children = new Node[count - 1];
+		System.arraycopy(node.children, 0, children, 0, i);
+		System.arraycopy(node.children, i + 1, children, i, count - i - 1);
+		return new Node(node.dataMap, node.nodeMap & ~bit, node.keys, node.values, children);
+	}
+
+	/* Returns the bit for the 5 bits of key starting at shift. */
+	private static int bit(int key, int shift) {
+		return 1 << ((key >>> shift) & MASK);
+	}
+
+	/* Returns where the item for bit is among those in bitmap. */
+	private static int index(int bitmap, int bit) {
+		return Integer.bitCount(bitmap & (bit - 1));
+	}
+
+	/*
+	 * One node of the trie: the entries that end here, in bit order, and the
+	 * child nodes, in bit order. A bit is set in at most one of the maps.
+	 */
+	private static final class Node {
+
+		Node(int dataMap, int nodeMap, int[] keys, Object[] values, Node[] children) {
+			this.dataMap = dataMap;
+			this.nodeMap = nodeMap;
+			this.keys = keys;
+			this.values = values;
+			this.children = children;
+		}
+
+		final int dataMap;
+		final int nodeMap;
+		final int[] keys;
+		final Object[] values;
+		final Node[] children;
+	}
+
+	/* Visits every entry below a node, depth first, without recursion. */
+	private static final class Walker {
+
+		Walker(Node root) {
+			nodes[0] = root;
+			advance();
+		}
+
+		boolean hasNext() {
+			return depth >= 0;
+		}
+
+		/* Moves to the next entry, leaving it in key and value. */
+		void next() {
+			if (depth < 0) {
+				throw new NoSuchElementException();
+			}
+			Node node = nodes[depth];
+			key = node.keys[dataAt[depth]];
+			value = node.values[dataAt[depth]];
+			dataAt[depth]++;
+			advance();
+		}
+
+		/* Descends or climbs until an entry is next, or the walk is over. */
+		private void advance() {
+			while (depth >= 0) {
+				Node node = nodes[depth];
+				if (dataAt[depth] < node.keys.length) {
+					return;
+				}
+				if (childAt[depth] < node.children.length) {
+					Node child = node.children[childAt[depth]++];
+					depth++;
+					nodes[depth] = child;
+					dataAt[depth] = 0;
+					childAt[depth] = 0;
+				} else {
+					depth--;
+				}
+			}
+		}
+
+		int key;
+		Object value;
+		private Node[] nodes = new Node[MAX_DEPTH];
+		private int[] dataAt = new int[MAX_DEPTH];
+		private int[] childAt = new int[MAX_DEPTH];
+		private int depth;
+	}
+
+	/* Bits of the key covered by each level, and the deepest a trie can go */
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int MAX_DEPTH = (32 + BITS - 1) / BITS;
+
+	private static final int[] NO_KEYS = new int[0];
+	private static final Object[] NO_VALUES = new Object[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+	private static final FacePamphletPersistentMap<Object> EMPTY = new FacePamphletPersistentMap<Object>(
+			new Node(0, 0, NO_KEYS, NO_VALUES, NO_CHILDREN), 0);
+
+	/* private instance variables */
+	private final Node root;
+	private final int size;
+}
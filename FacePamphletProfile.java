@@ -4,12 +4,14 @@
  * ------------------------------
  * This class keeps track of all the information for one profile
  * in the FacePamphlet social network.  Each profile contains a
- * name, an image (which may not always be set), a status (what 
+ * name, an image file (which may not always be set), a status (what 
  * the person is currently doing, which may not always be set),
- * and a list of friends.
+ * and a list of friends.  The last few statuses (up to
+ * STATUS_HISTORY_DEPTH) are kept, with the time each was set, in a ring
+ * buffer that only grows as statuses are added.
  */
 
-import acm.graphics.*;
+import java.io.*;
 import java.util.*;
 
 public class FacePamphletProfile implements FacePamphletConstants {
@@ -22,25 +24,51 @@ public class FacePamphletProfile implements FacePamphletConstants {
 		profileName = name;
 	}
 
+	/*
+	 * This constructor creates a profile whose friends are given IDs by the
+	 * given registry, for a database to fill in without translating them
+	 * later (see setNameRegistry).
+	 */
+	FacePamphletProfile(String name, FacePamphletNameRegistry names) {
+		profileName = name;
+		this.names = names;
+	}
+
+	/*
+	 * This method returns a copy of the profile, with the same status history
+	 * and friends, that later changes to this profile do not affect. A copy
+	 * may be read on one thread while the profile changes on another.
+	 */
+	public FacePamphletProfile copy() {
+		FacePamphletProfile copy = new FacePamphletProfile(profileName, names);
+		copy.imageFile = imageFile;
+		copy.profileStatus = profileStatus;
+		copy.historyStatuses = historyStatuses.clone();
+		copy.historyTimes = historyTimes.clone();
+		copy.historyStart = historyStart;
+		copy.historySize = historySize;
+		copy.friendsVersion = friendsVersion;
+		copy.friends = friends.copy();
+		return copy;
+	}
+
 	/* This method returns the name associated with the profile. */
 	public String getName() {
 		return profileName;
 	}
 
 	/*
-	 * This method returns the image associated with the profile. If there is no
-	 * image associated with the profile, the method returns null.
+	 * This method returns the name of the file holding the profile's image, or
+	 * null if it has none. The image itself is loaded and cached by
+	 * FacePamphletImageCache.
 	 */
-	public GImage getImage() {
-		if (profileImage != null) {
-			return profileImage;
-		}
-		return null;
+	public String getImageFile() {
+		return imageFile;
 	}
 
-	/* This method sets the image associated with the profile. */
-	public void setImage(GImage image) {
-		profileImage = image;
+	/* This method sets the name of the file holding the profile's image. */
+	public void setImageFile(String file) {
+		imageFile = file;
 	}
 
 	/*
@@ -55,9 +83,76 @@ public class FacePamphletProfile implements FacePamphletConstants {
 		return "";
 	}
 
-	/* This method sets the status associated with the profile. */
+	/*
+	 * This method sets the status associated with the profile, and adds it to
+	 * the profile's status history with the current time.
+	 */
 	public void setStatus(String status) {
+		setStatus(status, System.currentTimeMillis());
+	}
+
+	/*
+	 * This method sets the status associated with the profile, and adds it to
+	 * the profile's status history as set at the given time (in milliseconds,
+	 * as from System.currentTimeMillis). It is used to restore statuses saved
+	 * earlier, which must be given oldest first.
+	 */
+	public void setStatus(String status, long time) {
 		profileStatus = status;
+		if (status == null || status.length() == 0) {
+			return;
+		}
+		if (historySize == historyStatuses.length && historySize < STATUS_HISTORY_DEPTH) {
+			// grow the ring, unwrapping it so the oldest entry is first
+			int capacity = Math.min(STATUS_HISTORY_DEPTH, Math.max(1, historySize * 2));
+			String[] statuses = new String[capacity];
+			long[] times = new long[capacity];
+			for (int i = 0; i < historySize; i++) {
+				statuses[i] = historyStatuses[(historyStart + i) % historySize];
+				times[i] = historyTimes[(historyStart + i) % historySize];
+			}
+			historyStatuses = statuses;
+			historyTimes = times;
+			historyStart = 0;
+		}
+		int slot = (historyStart + historySize) % historyStatuses.length;
+		historyStatuses[slot] = status;
+		historyTimes[slot] = time;
+		if (historySize < historyStatuses.length) {
+			historySize++;
+		} else {
+			// full: the new entry took the oldest one's place
+			historyStart = (historyStart + 1) % historyStatuses.length;
+		}
+	}
+
+	/* This method returns how many past statuses the profile has kept. */
+	public int getStatusHistorySize() {
+		return historySize;
+	}
+
+	/*
+	 * This method returns the index-th most recent status in the profile's
+	 * history, where index 0 is the newest.
+	 */
+	public String getPastStatus(int index) {
+		return historyStatuses[historySlot(index)];
+	}
+
+	/*
+	 * This method returns the time (in milliseconds, as from
+	 * System.currentTimeMillis) that the index-th most recent status was set.
+	 */
+	public long getPastStatusTime(int index) {
+		return historyTimes[historySlot(index)];
+	}
+
+	/* Returns where the index-th most recent status is in the ring. */
+	private int historySlot(int index) {
+		if (index < 0 || index >= historySize) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: " + historySize);
+		}
+		return (historyStart + historySize - 1 - index) % historyStatuses.length;
 	}
 
 	/*
@@ -69,11 +164,10 @@ public class FacePamphletProfile implements FacePamphletConstants {
 	 * list of friends a second time.)
 	 */
 	public boolean addFriend(String friend) {
-		if (!friends.contains(friend)) {
-			friends.add(friend);
-			return true;
+		if (names == null) {
+			names = new FacePamphletNameRegistry();
 		}
-		return false;
+		return friends.add(names.getId(friend));
 	}
 
 	/*
@@ -84,19 +178,81 @@ public class FacePamphletProfile implements FacePamphletConstants {
 	 * profile (in which case, the given friend name could not be removed.)
 	 */
 	public boolean removeFriend(String friend) {
-		if (friends.contains(friend)) {
-			friends.remove(friends.indexOf(friend));
-			return true;
-		}
-		return false;
+		int id = names != null ? names.findId(friend) : -1;
+		return id >= 0 && friends.remove(id);
 	}
 
 	/*
 	 * This method returns an iterator over the list of friends associated with
-	 * the profile.
+	 * the profile, in the order the friends were added.
 	 */
 	public Iterator<String> getFriends() {
-		return friends.iterator();
+		final PrimitiveIterator.OfInt it = friends.iterator();
+		return new Iterator<String>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public String next() {
+				return names.getName(it.nextInt());
+			}
+		};
+	}
+
+	/* This method returns the number of friends in the profile's list. */
+	public int getFriendCount() {
+		return friends.size();
+	}
+
+	/*
+	 * This method returns the name of the index-th friend in the profile's
+	 * list of friends, counting from 0 in the order the friends were added.
+	 */
+	public String getFriend(int index) {
+		return names.getName(friends.get(index));
+	}
+
+	/*
+	 * This method returns the set of friend IDs (see FacePamphletNameRegistry)
+	 * backing this profile's list of friends. It is used by
+	 * FacePamphletDatabase, which works with IDs rather than names.
+	 */
+	FacePamphletFriendSet getFriendIds() {
+		return friends;
+	}
+
+	/*
+	 * This method makes the profile's friend IDs come from the given registry,
+	 * the one of the database it is being added to, translating any friends
+	 * it already lists from the registry they were listed in.
+	 */
+	void setNameRegistry(FacePamphletNameRegistry registry) {
+		if (names == registry) {
+			return;
+		}
+		if (friends.size() > 0) {
+			FacePamphletFriendSet translated = new FacePamphletFriendSet();
+			PrimitiveIterator.OfInt it = friends.iterator();
+			while (it.hasNext()) {
+				translated.add(registry.getId(names.getName(it.nextInt())));
+			}
+			friends = translated;
+		}
+		names = registry;
+	}
+
+	/*
+	 * This method returns the value of FacePamphletDatabase's change counter
+	 * when the database last changed this profile's list of friends (see
+	 * FacePamphletRecommender).
+	 */
+	long getFriendsVersion() {
+		return friendsVersion;
+	}
+
+	/* This method records when the database changed the list of friends. */
+	void setFriendsVersion(long version) {
+		friendsVersion = version;
 	}
 
 	/*
@@ -104,10 +260,8 @@ public class FacePamphletProfile implements FacePamphletConstants {
 	 * contains a certain name
 	 */
 	public boolean containsFriend(String name) {
-		if (friends.contains(name)) {
-			return true;
-		}
-		return false;
+		int id = names != null ? names.findId(name) : -1;
+		return id >= 0 && friends.contains(id);
 	}
 
 	/*
@@ -121,32 +275,71 @@ public class FacePamphletProfile implements FacePamphletConstants {
 	 * string: "Alice (coding): Don, Chelsea, Bob"
 	 */
 	public String toString() {
-		String strFriends = formatArray(friends);
-
-		String strStatus = profileStatus;
-		if (strStatus == null) {
-			strStatus = "";
+		// sized for typical names, so it grows at most once or twice //
+		StringBuilder str = new StringBuilder(profileName.length() + 32 + friends.size() * FRIEND_TEXT_ESTIMATE);
+		try {
+			appendTo(str);
+		} catch (IOException ex) {
+			// a StringBuilder never throws //
+			throw new IllegalStateException(ex);
 		}
-
-		return profileName + " (" + strStatus + ") : " + strFriends;
+		return str.toString();
 	}
 
 	/*
-	 * This method returns an array as a string without brackets and with each
-	 * element separated by a comma and space.
+	 * This method writes the same text as toString straight to out, a piece
+	 * at a time, so that a profile with many friends can be logged or shown
+	 * without building the whole string first. Appending to a reused
+	 * StringBuilder creates no intermediate strings at all.
 	 */
-	private String formatArray(ArrayList<String> ar) {
-		String str = ar.toString();
-		str = str.replace("[", "");
-		str = str.replace("]", "");
-		str = str.trim();
-		return str;
+	public void appendTo(Appendable out) throws IOException {
+		out.append(profileName).append(" (");
+		if (profileStatus != null) {
+			out.append(profileStatus);
+		}
+		out.append(") : ");
+		PrimitiveIterator.OfInt it = friends.iterator();
+		boolean first = true;
+		while (it.hasNext()) {
+			if (!first) {
+				out.append(", ");
+			}
+			out.append(names.getName(it.nextInt()));
+			first = false;
+		}
 	}
 
 	/* private instance variable */
 	private String profileName;
-	private GImage profileImage;
+	private String imageFile;
 	private String profileStatus;
-	private ArrayList<String> friends = new ArrayList<String>();
+
+	/* Status history ring buffer: historySize entries from historyStart */
+	private String[] historyStatuses = NO_STATUSES;
+	private long[] historyTimes = NO_TIMES;
+	private int historyStart;
+	private int historySize;
+	private long friendsVersion;
+
+	/*
+	 * Friends are stored as interned IDs rather than names. The set keeps them
+	 * in the order they were added (which the canvas relies on) while making
+	 * add/remove/contains constant time.
+	 */
+	private FacePamphletFriendSet friends = new FacePamphletFriendSet();
+
+	/*
+	 * Where friend IDs come from: the registry of the database holding the
+	 * profile, one of the profile's own if it lists friends before being
+	 * added to a database, or null until then.
+	 */
+	private FacePamphletNameRegistry names;
+
+	/* Characters toString expects per friend, including the ", " */
+	private static final int FRIEND_TEXT_ESTIMATE = 12;
+
+	/* Shared empty history, so profiles without a status allocate nothing */
+	private static final String[] NO_STATUSES = new String[0];
+	private static final long[] NO_TIMES = new long[0];
 
 }
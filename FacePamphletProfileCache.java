@@ -0,0 +1,427 @@
+/*
+ * File: FacePamphletProfileCache.java
+ * -----------------------------------
+ * This class is a read-through cache in front of a slow
+ * FacePamphletProfileStore.  A lookup that finds its name in the cache
+ * never touches the store; one that does not loads the profile from the
+ * store and may keep it.  Names the store does not have are cached too
+ * (as negative entries), so looking up a missing name again is as cheap
+ * as a hit.  The cache is bounded by the bytes its profiles are
+ * estimated to take up (see weigh), not by how many it holds.
+ *
+ * Which profiles to keep is decided as in W-TinyLFU.  A FrequencySketch
+ * estimates how often every name has been looked up recently, counting
+ * all of them (cached or not) in a few kilobytes.  New entries go into
+ * a small LRU window, WINDOW_PERCENT of the bytes; entries pushed out
+ * of the window are only admitted to the main part of the cache if
+ * their frequency beats that of the entry main would evict for them, so
+ * a burst of one-off lookups cannot flush the profiles looked up all
+ * the time.  Main is a segmented LRU: entries start in probation and
+ * move to protected (PROTECTED_PERCENT of main) when looked up again.
+ *
+ * Profiles handed out by the cache are shared, so they must not be
+ * changed; a caller that changes a profile in the store should call
+ * invalidate with its name.  The cache may be used by many threads.
+ * Loads happen outside its lock, so a slow store holds up only the
+ * lookups waiting for it.
+ */
+
+import java.util.*;
+
+public class FacePamphletProfileCache implements FacePamphletProfileStore {
+
+	/* Creates a cache in front of store holding at most maxBytes of profiles. */
+	public FacePamphletProfileCache(FacePamphletProfileStore store, long maxBytes) {
+		this.store = store;
+		windowMax = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+		mainMax = maxBytes - windowMax;
+		protectedMax = mainMax * PROTECTED_PERCENT / 100;
+		sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2,
+				Math.max(MIN_SKETCH_ENTRIES, maxBytes / TYPICAL_ENTRY_BYTES)));
+	}
+
+	/*
+	 * This method returns the profile with the given name, from the cache if
+	 * it is there and from the store otherwise, or null if there is no such
+	 * profile.
+	 */
+	public FacePamphletProfile loadProfile(String name) {
+		long version;
+		synchronized (this) {
+			sketch.increment(name.hashCode());
+			Node node = nodes.get(name);
+			if (node != null) {
+				hits++;
+				touch(node);
+				return node.profile;
+			}
+			misses++;
+			version = invalidations;
+		}
+		long start = LOAD_TIMER.start();
+		FacePamphletProfile prof;
+		try {
+			prof = store.loadProfile(name);
+		} finally {
+			LOAD_TIMER.stop(start);
+		}
+		synchronized (this) {
+			// an invalidation during the load may mean prof is already stale //
+			if (version == invalidations && !nodes.containsKey(name)) {
+				add(new Node(name, prof, weigh(name, prof)));
+			}
+		}
+		return prof;
+	}
+
+	/*
+	 * This method forgets what the cache knows about the given name, so the
+	 * next lookup goes to the store. It should be called whenever the profile
+	 * is added, changed or deleted there.
+	 */
+	public synchronized void invalidate(String name) {
+		invalidations++;
+		Node node = nodes.remove(name);
+		if (node != null) {
+			unlink(node);
+		}
+	}
+
+	/* This method empties the cache. */
+	public synchronized void invalidateAll() {
+		invalidations++;
+		nodes.clear();
+		window.clear();
+		probation.clear();
+		protectedQueue.clear();
+		windowBytes = 0;
+		probationBytes = 0;
+		protectedBytes = 0;
+	}
+
+	/* This method returns the number of lookups answered from the cache. */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/* This method returns the number of lookups that went to the store. */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/* This method returns the fraction of lookups answered from the cache. */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/* This method returns the estimated bytes taken by cached entries. */
+	public synchronized long getWeightedSize() {
+		return windowBytes + probationBytes + protectedBytes;
+	}
+
+	/* This method returns the number of entries, negative ones included. */
+	public synchronized int getEntryCount() {
+		return nodes.size();
+	}
+
+	/* This method adds the cache's hits, misses and size to metrics. */
+	public void registerMetrics(FacePamphletMetrics metrics) {
+		metrics.registerGauge("cache.hits", new FacePamphletMetrics.Gauge() {
+			public long getValue() {
+				return getHitCount();
+			}
+		});
+		metrics.registerGauge("cache.misses", new FacePamphletMetrics.Gauge() {
+			public long getValue() {
+				return getMissCount();
+			}
+		});
+		metrics.registerGauge("cache.bytes", new FacePamphletMetrics.Gauge() {
+			public long getValue() {
+				return getWeightedSize();
+			}
+		});
+	}
+
+	/*
+	 * This method estimates the bytes an entry for prof (null for a missing
+	 * name) takes up: the entry and profile objects, the strings, and an int
+	 * per friend.
+	 */
+	static long weigh(String name, FacePamphletProfile prof) {
+		long bytes = ENTRY_OVERHEAD_BYTES + 2L * name.length();
+		if (prof != null) {
+			bytes += PROFILE_OVERHEAD_BYTES + 4L * prof.getFriendIds().size();
+			if (prof.getStatus() != null) {
+				bytes += STRING_OVERHEAD_BYTES + 2L * prof.getStatus().length();
+			}
+			if (prof.getImageFile() != null) {
+				bytes += STRING_OVERHEAD_BYTES + 2L * prof.getImageFile().length();
+			}
+		}
+		return bytes;
+	}
+
+	/* Moves a node that was looked up to where it belongs now. */
+	private void touch(Node node) {
+		if (node.queue == window) {
+			window.moveToBack(node);
+		} else if (node.queue == protectedQueue) {
+			protectedQueue.moveToBack(node);
+		} else {
+			// looked up again while on probation: promote it //
+			probation.remove(node);
+			probationBytes -= node.weight;
+			protectedQueue.addToBack(node);
+			protectedBytes += node.weight;
+			while (protectedBytes > protectedMax) {
+				Node demoted = protectedQueue.first();
+				protectedQueue.remove(demoted);
+				protectedBytes -= demoted.weight;
+				probation.addToBack(demoted);
+				probationBytes += demoted.weight;
+			}
+		}
+	}
+
+	/* Adds a new node to the window and evicts what no longer fits. */
+	private void add(Node node) {
+		nodes.put(node.name, node);
+		window.addToBack(node);
+		windowBytes += node.weight;
+		while (windowBytes > windowMax) {
+			Node candidate = window.first();
+			window.remove(candidate);
+			windowBytes -= candidate.weight;
+			probation.addToBack(candidate);
+			probationBytes += candidate.weight;
+			evictFromMain(candidate);
+		}
+	}
+
+	/*
+	 * Makes main fit again after candidate joined it: each time, the least
+	 * recently used entry (on probation if there is one) is evicted if the
+	 * candidate has been looked up more often, and the candidate otherwise.
+	 */
+	private void evictFromMain(Node candidate) {
+		while (probationBytes + protectedBytes > mainMax) {
+			Node victim = probation.first();
+			if (victim == candidate) {
+				victim = candidate.next != null ? candidate.next : protectedQueue.first();
+			}
+			if (victim == null
+					|| sketch.frequency(candidate.name.hashCode()) <= sketch.frequency(victim.name.hashCode())) {
+				evict(candidate);
+				return;
+			}
+			evict(victim);
+		}
+	}
+
+	private void evict(Node node) {
+		nodes.remove(node.name);
+		unlink(node);
+	}
+
+	/* Takes node out of whichever queue it is in. */
+	private void unlink(Node node) {
+		Queue queue = node.queue;
+		queue.remove(node);
+		if (queue == window) {
+			windowBytes -= node.weight;
+		} else if (queue == probation) {
+			probationBytes -= node.weight;
+		} else {
+			protectedBytes -= node.weight;
+		}
+	}
+
+	/* A cached name and its profile, or null if the store has no such name. */
+	private static final class Node {
+
+		Node(String name, FacePamphletProfile profile, long weight) {
+			this.name = name;
+			this.profile = profile;
+			this.weight = weight;
+		}
+
+		final String name;
+		final FacePamphletProfile profile;
+		final long weight;
+		Queue queue;
+		Node prev;
+		Node next;
+	}
+
+	/*
+	 * A doubly linked list of nodes, least recently used first. Each node is
+	 * in at most one queue, which it records.
+	 */
+	private static final class Queue {
+
+		Node first() {
+			return head;
+		}
+
+		void addToBack(Node node) {
+			node.queue = this;
+			node.prev = tail;
+			node.next = null;
+			if (tail != null) {
+				tail.next = node;
+			} else {
+				head = node;
+			}
+			tail = node;
+		}
+
+		void remove(Node node) {
+			if (node.prev != null) {
+				node.prev.next = node.next;
+			} else {
+				head = node.next;
+			}
+			if (node.next != null) {
+				node.next.prev = node.prev;
+			} else {
+				tail = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			node.queue = null;
+		}
+
+		void moveToBack(Node node) {
+			if (node != tail) {
+				remove(node);
+				addToBack(node);
+			}
+		}
+
+		void clear() {
+			head = null;
+			tail = null;
+		}
+
+		private Node head;
+		private Node tail;
+	}
+
+	/*
+	 * A count-min sketch of 4-bit counters, sixteen to a long, estimating how
+	 * often each hash has been seen. Each hash has a counter in DEPTH rows,
+	 * and its estimate is the smallest of them. Once as many increments as
+	 * SAMPLE_FACTOR times the width have been counted, every counter is
+	 * halved, so old popularity fades.
+	 */
+	static final class FrequencySketch {
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1)) << 1;
+			table = new long[width / 16 * DEPTH];
+			rowMask = width / 16 - 1;
+			sampleSize = SAMPLE_FACTOR * width;
+		}
+
+		/* Returns the estimated count of hash, from 0 to 15. */
+		int frequency(int hash) {
+			int min = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++) {
+				min = Math.min(min, get(row, hash));
+			}
+			return min;
+		}
+
+		/* Counts one more sighting of hash. */
+		void increment(int hash) {
+			boolean added = false;
+			for (int row = 0; row < DEPTH; row++) {
+				int index = index(row, hash);
+				int shift = shift(row, hash);
+				if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				halve();
+			}
+		}
+
+		private void halve() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & HALF_MASK;
+			}
+			additions /= 2;
+		}
+
+		private int get(int row, int hash) {
+			return (int) ((table[index(row, hash)] >>> shift(row, hash)) & MAX_COUNT);
+		}
+
+		/* Returns the long holding hash's counter in row. */
+		private int index(int row, int hash) {
+			return row * (rowMask + 1) + (mix(hash, row) & rowMask);
+		}
+
+		/* Returns where in that long the counter starts. */
+		private int shift(int row, int hash) {
+			return (mix(hash, row) >>> 28) << 2;
+		}
+
+		/* Spreads hash differently for each row. */
+		private static int mix(int hash, int row) {
+			int h = (hash + SEEDS[row]) * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int SAMPLE_FACTOR = 10;
+		private static final long HALF_MASK = 0x7777777777777777L;
+		private static final int[] SEEDS = { 0x3C6EF372, 0x61C88647, 0x7F4A7C15, 0x1B873593 };
+
+		private final long[] table;
+		private final int rowMask;
+		private final int sampleSize;
+		private int additions;
+	}
+
+	/* Share of the bytes for the window, and of main for protected entries */
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+
+	/*
+	 * Rough sizes (in bytes) of the parts of an entry, and a typical entry,
+	 * from which the sketch is sized
+	 */
+	private static final long ENTRY_OVERHEAD_BYTES = 96;
+	private static final long PROFILE_OVERHEAD_BYTES = 128;
+	private static final long STRING_OVERHEAD_BYTES = 40;
+	private static final long TYPICAL_ENTRY_BYTES = 256;
+	private static final int MIN_SKETCH_ENTRIES = 64;
+
+	private static final FacePamphletMetrics.Timer LOAD_TIMER = FacePamphletMetrics.getGlobal().timer(
+			"cache.load");
+
+	/* private instance variables */
+	private FacePamphletProfileStore store;
+	private long windowMax;
+	private long mainMax;
+	private long protectedMax;
+	private HashMap<String, Node> nodes = new HashMap<String, Node>();
+	private Queue window = new Queue();
+	private Queue probation = new Queue();
+	private Queue protectedQueue = new Queue();
+	private long windowBytes;
+	private long probationBytes;
+	private long protectedBytes;
+	private FrequencySketch sketch;
+	private long hits;
+	private long misses;
+
+	/* Goes up on every invalidation, so a load can tell if one happened */
+	private long invalidations;
+}
@@ -0,0 +1,17 @@
+/*
+ * File: FacePamphletProfileStore.java
+ * -----------------------------------
+ * This interface is a place profiles can be read from by name, such as
+ * a FacePamphletGraphFile on disk.  FacePamphletProfileCache keeps the
+ * profiles most worth keeping from a slow store in memory, and is a
+ * store itself, so it can stand wherever a store is expected.
+ */
+
+public interface FacePamphletProfileStore {
+
+	/*
+	 * Returns the profile with the given name, or null if there is none. Each
+	 * call may build a new FacePamphletProfile.
+	 */
+	public FacePamphletProfile loadProfile(String name);
+}
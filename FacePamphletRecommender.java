@@ -0,0 +1,294 @@
+/*
+ * File: FacePamphletRecommender.java
+ * ----------------------------------
+ * This class suggests "People you may know" for a profile: profiles
+ * that are not yet its friends, ranked by how many friends they share
+ * with it.  Ties go to the profile whose name was registered first.
+ *
+ * Walking two hops out from a profile can touch a huge part of the
+ * graph once popular profiles are involved, so the walk is capped: at
+ * most MAX_FRIENDS_SCANNED of the profile's friends are expanded, and
+ * at most MAX_FRIENDS_OF_FRIEND_SCANNED friends of each of those are
+ * counted, both taken evenly spaced from the friend lists.  A query
+ * therefore costs the same however large the hubs near it are; counts
+ * reached through a hub are sampled, which also keeps the followers of
+ * one celebrity from crowding out genuine mutual friends.  Only the
+ * best K candidates are kept, in a K-sized heap.
+ *
+ * Results are cached per profile, and a cached result is used again
+ * only while neither the profile's own list of friends nor the list of
+ * any friend it expanded has changed since (see
+ * FacePamphletDatabase.getFriendsVersion).
+ *
+ * Like FacePamphletDatabase, this class must not be used while another
+ * thread is changing the database; FacePamphlet runs it on its command
+ * queue.
+ */
+
+import java.util.*;
+
+public class FacePamphletRecommender {
+
+	/* Creates a recommender for the profiles in db. */
+	public FacePamphletRecommender(FacePamphletDatabase db) {
+		this.db = db;
+		names = db.getNameRegistry();
+	}
+
+	/*
+	 * This method returns the names of up to k profiles the named profile may
+	 * know, best first. It returns an empty list if there is no profile with
+	 * the given name.
+	 */
+	public List<String> recommend(String name, int k) {
+		ArrayList<String> result = new ArrayList<String>();
+		FacePamphletProfile prof = db.getProfile(name);
+		if (prof == null || k <= 0) {
+			return result;
+		}
+		int id = names.findId(name);
+		Recommendation cached = cache.get(id);
+		if (cached == null || cached.requested < k || !isCurrent(cached, prof)) {
+			long version = db.getFriendsVersion();
+			cached = new Recommendation(prof, version, k, findBest(id, prof, k));
+			cache.put(id, cached);
+			misses++;
+		} else {
+			hits++;
+		}
+		for (int i = 0; i < cached.ids.length && i < k; i++) {
+			result.add(names.getName(cached.ids[i]));
+		}
+		return result;
+	}
+
+	/* This method returns how many calls to recommend used a cached result. */
+	public long getCacheHits() {
+		return hits;
+	}
+
+	/* This method returns how many calls to recommend had to walk the graph. */
+	public long getCacheMisses() {
+		return misses;
+	}
+
+	/*
+	 * This method counts the mutual friends of the profile with ID id among
+	 * the sampled friends of its sampled friends, and returns the IDs of the
+	 * best k.
+	 */
+	private int[] findBest(int id, FacePamphletProfile prof, int k) {
+		FacePamphletFriendSet friends = prof.getFriendIds();
+		int step = sampleStep(friends.size(), MAX_FRIENDS_SCANNED);
+		counts.clear();
+		for (int i = 0; i < friends.size(); i += step) {
+			FacePamphletProfile friend = db.getProfile(names.getName(friends.get(i)));
+			if (friend == null) {
+				continue;
+			}
+			FacePamphletFriendSet friendsOfFriend = friend.getFriendIds();
+			int friendStep = sampleStep(friendsOfFriend.size(), MAX_FRIENDS_OF_FRIEND_SCANNED);
+			for (int j = 0; j < friendsOfFriend.size(); j += friendStep) {
+				int candidate = friendsOfFriend.get(j);
+				if (candidate != id && !friends.contains(candidate)) {
+					counts.increment(candidate);
+				}
+			}
+		}
+
+		// Keep the best k in a min-heap whose root is the weakest kept //
+		long[] heap = new long[Math.min(k, counts.size())];
+		int heapSize = 0;
+		for (int slot = 0; slot < counts.size(); slot++) {
+			long key = rank(counts.getKey(slot), counts.getCount(slot));
+			if (heapSize < heap.length) {
+				heap[heapSize++] = key;
+				siftUp(heap, heapSize - 1);
+			} else if (key > heap[0]) {
+				heap[0] = key;
+				siftDown(heap, heapSize);
+			}
+		}
+		int[] best = new int[heapSize];
+		while (heapSize > 0) {
+			best[--heapSize] = Integer.MAX_VALUE - (int) heap[0];
+			heap[0] = heap[heapSize];
+			siftDown(heap, heapSize);
+		}
+		return best;
+	}
+
+	/*
+	 * This method returns true if the profile and every friend findBest
+	 * expanded for it are unchanged since the given result was worked out.
+	 */
+	private boolean isCurrent(Recommendation cached, FacePamphletProfile prof) {
+		if (cached.profile != prof || prof.getFriendsVersion() > cached.version) {
+			return false;
+		}
+		// prof's list is unchanged, so sampling it picks the same friends //
+		FacePamphletFriendSet friends = prof.getFriendIds();
+		int step = sampleStep(friends.size(), MAX_FRIENDS_SCANNED);
+		for (int i = 0; i < friends.size(); i += step) {
+			FacePamphletProfile friend = db.getProfile(names.getName(friends.get(i)));
+			if (friend != null && friend.getFriendsVersion() > cached.version) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the distance between sampled entries of a list of the given size
+	 * so that at most max entries are visited.
+	 */
+	private static int sampleStep(int size, int max) {
+		return size <= max ? 1 : (size + max - 1) / max;
+	}
+
+	/*
+	 * Packs a candidate's count and ID into one long that orders candidates
+	 * by count, then by lower ID.
+	 */
+	private static long rank(int id, int count) {
+		return ((long) count << 32) | (Integer.MAX_VALUE - id);
+	}
+
+	/* Moves heap[i] up until its parent is no larger. */
+	private static void siftUp(long[] heap, int i) {
+		long key = heap[i];
+		while (i > 0 && heap[(i - 1) / 2] > key) {
+			heap[i] = heap[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		heap[i] = key;
+	}
+
+	/* Moves heap[0] down until neither child of it is smaller. */
+	private static void siftDown(long[] heap, int size) {
+		long key = heap[0];
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (heap[child] >= key) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = key;
+	}
+
+	/* A cached result of findBest. */
+	private static class Recommendation {
+
+		public Recommendation(FacePamphletProfile profile, long version, int requested, int[] ids) {
+			this.profile = profile;
+			this.version = version;
+			this.requested = requested;
+			this.ids = ids;
+		}
+
+		/* The profile it was worked out for, in case it is later replaced */
+		FacePamphletProfile profile;
+
+		/* Value of the database's change counter before it was worked out */
+		long version;
+
+		/* The k asked for, and the IDs found (fewer if there were fewer) */
+		int requested;
+		int[] ids;
+	}
+
+	/*
+	 * Mutual friend counts by candidate ID, in an open-addressed table that is
+	 * reused by every query. The caps on the walk bound how many candidates a
+	 * query can have, so the table never needs to grow, and clearing it only
+	 * touches the slots used last time.
+	 */
+	private static class CandidateCounts {
+
+		/* Adds one to the count for id. */
+		public void increment(int id) {
+			int mask = table.length - 1;
+			int slot = (id * 0x9E3779B9) >>> SHIFT;
+			while (table[slot] != 0) {
+				int entry = table[slot] - 1;
+				if (keys[entry] == id) {
+					counts[entry]++;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[size] = id;
+			counts[size] = 1;
+			table[slot] = ++size;
+		}
+
+		/* Returns the number of candidates counted. */
+		public int size() {
+			return size;
+		}
+
+		/* Returns the ID of the entry-th candidate counted. */
+		public int getKey(int entry) {
+			return keys[entry];
+		}
+
+		/* Returns the count of the entry-th candidate counted. */
+		public int getCount(int entry) {
+			return counts[entry];
+		}
+
+		/* Empties the table. */
+		public void clear() {
+			int mask = table.length - 1;
+			for (int i = 0; i < size; i++) {
+				int slot = (keys[i] * 0x9E3779B9) >>> SHIFT;
+				while (table[slot] != 0) {
+					table[slot] = 0;
+					slot = (slot + 1) & mask;
+				}
+			}
+			size = 0;
+		}
+
+		/* Most candidates one query can count */
+		private static final int CAPACITY = MAX_FRIENDS_SCANNED * MAX_FRIENDS_OF_FRIEND_SCANNED;
+
+		/* Table size is a power of two at least twice CAPACITY */
+		private static final int SHIFT = Integer.numberOfLeadingZeros(CAPACITY * 2 - 1);
+
+		private int[] table = new int[1 << (32 - SHIFT)];
+		private int[] keys = new int[CAPACITY];
+		private int[] counts = new int[CAPACITY];
+		private int size;
+	}
+
+	/* Most friends of the profile expanded by one query */
+	private static final int MAX_FRIENDS_SCANNED = 200;
+
+	/* Most friends counted for each friend expanded */
+	private static final int MAX_FRIENDS_OF_FRIEND_SCANNED = 200;
+
+	/* Number of profiles whose results are cached */
+	private static final int CACHE_SIZE = 1024;
+
+	/* private instance variables */
+	private FacePamphletDatabase db;
+	private FacePamphletNameRegistry names;
+	private CandidateCounts counts = new CandidateCounts();
+	private long hits;
+	private long misses;
+
+	/* Recent results by profile ID, least recently used first */
+	private LinkedHashMap<Integer, Recommendation> cache = new LinkedHashMap<Integer, Recommendation>(16, 0.75f,
+			true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, Recommendation> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+}
@@ -0,0 +1,557 @@
+/*
+ * File: FacePamphletServer.java
+ * -----------------------------
+ * This class serves a FacePamphletConcurrentDatabase over HTTP, so the
+ * social network can be used without the FacePamphlet window, by any
+ * number of clients at once.  It runs on its own as
+ *
+ *     java FacePamphletServer [port] [dataDirectory]
+ *
+ * and keeps the database in dataDirectory (see FacePamphletStorage) if
+ * one is given, or in memory only otherwise.  Requests and responses
+ * are JSON:
+ *
+ *     GET    /profiles?prefix=Al&limit=10   names starting with prefix
+ *     GET    /profiles/{name}               the profile, with its friends
+ *     POST   /profiles/{name}               add a profile
+ *     DELETE /profiles/{name}               delete a profile
+ *     PUT    /profiles/{name}/status        set {"status": "..."}
+ *     PUT    /profiles/{name}/friends/{f}   make name and f friends
+ *     DELETE /profiles/{name}/friends/{f}   end their friendship
+ *     GET    /metrics                       FacePamphletMetrics report, as text
+ *
+ * Requests are handled on the JDK's built-in HTTP server.  Each request
+ * gets a virtual thread of its own when the JVM has them (Java 21 and
+ * later); otherwise requests share a pool of REQUEST_THREADS threads,
+ * enough that requests waiting on the log's group commit do not hold
+ * up the rest.  With a data directory, the database is checkpointed
+ * every CHECKPOINT_INTERVAL_SECONDS (if anything changed) and when the
+ * server stops, so the log never grows for long.
+ *
+ * The database never forgets a profile name it has used, even once the
+ * profile is deleted (see FacePamphletNameRegistry), which costs about
+ * 120 bytes a name: a million profiles created and deleted take some
+ * 120MB.  The "database.names" gauge in /metrics counts them.  Restarting
+ * the server with a data directory reloads only the names still in use.
+ */
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FacePamphletServer implements FacePamphletConstants {
+
+	/* Starts a server and runs it until the JVM is stopped. */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		// deleted names stay registered until the next restart (see above) //
+		FacePamphletConcurrentDatabase db = new FacePamphletConcurrentDatabase();
+		db.registerMetrics(FacePamphletMetrics.getGlobal());
+		FacePamphletMetrics.getGlobal().registerMBean();
+		FacePamphletStorage storage = null;
+		if (args.length > 1) {
+			// automatic snapshots assume one writer, so the server checkpoints instead //
+			storage = new FacePamphletStorage(new File(args[1]), 0);
+			storage.load(db);
+		}
+		final FacePamphletServer server = new FacePamphletServer(db, storage, port);
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.stop();
+			}
+		});
+		System.out.println("FacePamphlet server listening on port " + server.getPort());
+	}
+
+	/*
+	 * Creates a server for db on the given port (0 picks a free one). If
+	 * storage is not null, it is checkpointed while the server runs and
+	 * checkpointed and closed when the server stops.
+	 */
+	public FacePamphletServer(FacePamphletConcurrentDatabase db, FacePamphletStorage storage, int port)
+			throws IOException {
+		this.db = db;
+		this.storage = storage;
+		server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		server.createContext("/profiles", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					route(exchange);
+				} catch (RuntimeException ex) {
+					// the details are for the server's log, not the client //
+					ex.printStackTrace();
+					send(exchange, 500, error("internal server error"));
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					byte[] bytes = FacePamphletMetrics.getGlobal().getReport().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+					exchange.sendResponseHeaders(200, bytes.length);
+					exchange.getResponseBody().write(bytes);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	/* This method starts accepting requests, and checkpointing if there is storage. */
+	public void start() {
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.start();
+		if (storage != null) {
+			checkpointer = Executors.newSingleThreadScheduledExecutor();
+			checkpointer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkpoint();
+				}
+			}, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	/*
+	 * This method writes a snapshot if anything has changed since the last
+	 * one. The database holds off every change while it is written.
+	 */
+	private void checkpoint() {
+		try {
+			if (storage.getChangesSinceCheckpoint() > 0) {
+				db.checkpoint(storage);
+			}
+		} catch (IOException ex) {
+			System.err.println("could not checkpoint the database: " + ex.getMessage());
+		}
+	}
+
+	/*
+	 * This method stops accepting requests, waits for those under way, and
+	 * checkpoints and closes the storage, if any.
+	 */
+	public synchronized void stop() {
+		if (executor == null) {
+			return;
+		}
+		server.stop(0);
+		executor.shutdown();
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+		}
+		try {
+			executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			if (storage != null) {
+				checkpointer.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				db.checkpoint(storage);
+				storage.close();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			System.err.println("could not save the database: " + ex.getMessage());
+		}
+		executor = null;
+		checkpointer = null;
+	}
+
+	/* This method returns the port the server listens on. */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/* Sends the request to the method that handles its path and method. */
+	private void route(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		List<String> path;
+		try {
+			path = splitPath(exchange.getRequestURI().getRawPath());
+		} catch (IllegalArgumentException ex) {
+			send(exchange, 400, error("badly encoded path"));
+			return;
+		}
+		if (path.isEmpty()) {
+			if (method.equals("GET")) {
+				findProfiles(exchange);
+			} else {
+				send(exchange, 405, error("use GET"));
+			}
+			return;
+		}
+		String name = path.get(0);
+		if (path.size() == 1) {
+			if (method.equals("GET")) {
+				lookupProfile(exchange, name);
+			} else if (method.equals("POST")) {
+				addProfile(exchange, name);
+			} else if (method.equals("DELETE")) {
+				deleteProfile(exchange, name);
+			} else {
+				send(exchange, 405, error("use GET, POST or DELETE"));
+			}
+		} else if (path.size() == 2 && path.get(1).equals("status")) {
+			if (method.equals("PUT")) {
+				changeStatus(exchange, name);
+			} else {
+				send(exchange, 405, error("use PUT"));
+			}
+		} else if (path.size() == 3 && path.get(1).equals("friends")) {
+			if (method.equals("PUT")) {
+				addFriend(exchange, name, path.get(2));
+			} else if (method.equals("DELETE")) {
+				removeFriend(exchange, name, path.get(2));
+			} else {
+				send(exchange, 405, error("use PUT or DELETE"));
+			}
+		} else {
+			send(exchange, 404, error("no such resource"));
+		}
+	}
+
+	private void findProfiles(HttpExchange exchange) throws IOException {
+		Map<String, String> query;
+		try {
+			query = parseQuery(exchange.getRequestURI().getRawQuery());
+		} catch (IllegalArgumentException ex) {
+			send(exchange, 400, error("badly encoded query"));
+			return;
+		}
+		String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+		int limit = DEFAULT_LIST_LIMIT;
+		if (query.containsKey("limit")) {
+			try {
+				limit = Math.min(MAX_LIST_LIMIT, Integer.parseInt(query.get("limit")));
+			} catch (NumberFormatException ex) {
+				send(exchange, 400, error("limit must be a number"));
+				return;
+			}
+		}
+		StringBuilder json = new StringBuilder("{\"names\": ");
+		appendArray(json, db.findProfileNames(prefix, limit, true));
+		send(exchange, 200, json.append("}").toString());
+	}
+
+	private void lookupProfile(HttpExchange exchange, String name) throws IOException {
+		FacePamphletProfile prof = db.getProfile(name);
+		if (prof == null) {
+			send(exchange, 404, error("no profile named " + name));
+			return;
+		}
+		StringBuilder json = new StringBuilder("{\"name\": ");
+		appendString(json, prof.getName());
+		json.append(", \"status\": ");
+		appendString(json, prof.getStatus());
+		json.append(", \"image\": ");
+		appendString(json, prof.getImageFile());
+		json.append(", \"friends\": ");
+		appendArray(json, db.getFriendNames(name));
+		send(exchange, 200, json.append("}").toString());
+	}
+
+	private void addProfile(HttpExchange exchange, String name) throws IOException {
+		if (name.length() == 0) {
+			send(exchange, 400, error("a profile needs a name"));
+		} else if (db.addProfileIfAbsent(new FacePamphletProfile(name))) {
+			send(exchange, 201, "{}");
+		} else {
+			send(exchange, 409, error("a profile named " + name + " already exists"));
+		}
+	}
+
+	private void deleteProfile(HttpExchange exchange, String name) throws IOException {
+		if (!db.containsProfile(name)) {
+			send(exchange, 404, error("no profile named " + name));
+			return;
+		}
+		db.deleteProfile(name);
+		send(exchange, 204, null);
+	}
+
+	private void changeStatus(HttpExchange exchange, String name) throws IOException {
+		String body = readBody(exchange);
+		if (body == null) {
+			send(exchange, 413, error("the body is longer than " + MAX_BODY_SIZE + " bytes"));
+			return;
+		}
+		String status = readJsonString(body, "status");
+		if (status == null) {
+			send(exchange, 400, error("expected {\"status\": \"...\"}"));
+		} else if (!db.containsProfile(name)) {
+			send(exchange, 404, error("no profile named " + name));
+		} else {
+			db.setStatus(name, status);
+			send(exchange, 204, null);
+		}
+	}
+
+	private void addFriend(HttpExchange exchange, String name, String friend) throws IOException {
+		if (name.equals(friend)) {
+			send(exchange, 400, error("a profile cannot befriend itself"));
+		} else if (!db.containsProfile(name) || !db.containsProfile(friend)) {
+			send(exchange, 404, error("both profiles must exist"));
+		} else {
+			send(exchange, db.addFriend(name, friend) ? 201 : 200, "{}");
+		}
+	}
+
+	private void removeFriend(HttpExchange exchange, String name, String friend) throws IOException {
+		if (db.removeFriend(name, friend)) {
+			send(exchange, 204, null);
+		} else {
+			send(exchange, 404, error(name + " and " + friend + " are not friends"));
+		}
+	}
+
+	/*
+	 * Sends a response with the given status code and JSON body (or no body if
+	 * json is null).
+	 */
+	private static void send(HttpExchange exchange, int code, String json) throws IOException {
+		if (json == null) {
+			exchange.sendResponseHeaders(code, -1);
+			return;
+		}
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/* Returns the JSON body of an error response. */
+	private static String error(String message) {
+		StringBuilder json = new StringBuilder("{\"error\": ");
+		appendString(json, message);
+		return json.append("}").toString();
+	}
+
+	/* Splits the part of path after /profiles into decoded segments. */
+	private static List<String> splitPath(String path) {
+		ArrayList<String> segments = new ArrayList<String>();
+		for (String segment : path.substring("/profiles".length()).split("/")) {
+			if (segment.length() > 0) {
+				segments.add(decode(segment));
+			}
+		}
+		return segments;
+	}
+
+	/* Parses a query string such as "prefix=Al&limit=10". */
+	private static Map<String, String> parseQuery(String query) {
+		HashMap<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				params.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+			}
+		}
+		return params;
+	}
+
+	/* Decodes %-escapes, throwing IllegalArgumentException if they are malformed. */
+	private static String decode(String text) {
+		return URLDecoder.decode(text, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Reads the request body as UTF-8 text, or returns null if it is longer
+	 * than MAX_BODY_SIZE.
+	 */
+	private static String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BODY_BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			if (body.size() + read > MAX_BODY_SIZE) {
+				return null;
+			}
+			body.write(buffer, 0, read);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * This method returns the string value of key in the flat JSON object
+	 * json, or null if it has no such string. Only what a request body needs
+	 * is understood: string values, with the usual escapes.
+	 */
+	static String readJsonString(String json, String key) {
+		int at = 0;
+		while (true) {
+			at = json.indexOf('"', at);
+			if (at < 0) {
+				return null;
+			}
+			StringBuilder token = new StringBuilder();
+			at = readJsonToken(json, at, token);
+			if (at < 0) {
+				return null;
+			}
+			int colon = skipSpaces(json, at);
+			if (colon < json.length() && json.charAt(colon) == ':') {
+				int value = skipSpaces(json, colon + 1);
+				if (token.toString().equals(key)) {
+					if (value >= json.length() || json.charAt(value) != '"') {
+						return null;
+					}
+					StringBuilder result = new StringBuilder();
+					return readJsonToken(json, value, result) < 0 ? null : result.toString();
+				}
+				at = value;
+			}
+		}
+	}
+
+	/*
+	 * Reads the JSON string starting with the quote at start into token and
+	 * returns the position after its closing quote, or -1 if it is malformed.
+	 */
+	private static int readJsonToken(String json, int start, StringBuilder token) {
+		for (int i = start + 1; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (c == '"') {
+				return i + 1;
+			}
+			if (c != '\\') {
+				token.append(c);
+				continue;
+			}
+			if (++i == json.length()) {
+				return -1;
+			}
+			char escaped = json.charAt(i);
+			switch (escaped) {
+			case 'n':
+				token.append('\n');
+				break;
+			case 't':
+				token.append('\t');
+				break;
+			case 'r':
+				token.append('\r');
+				break;
+			case 'b':
+				token.append('\b');
+				break;
+			case 'f':
+				token.append('\f');
+				break;
+			case 'u':
+				if (i + 4 >= json.length()) {
+					return -1;
+				}
+				int code = 0;
+				for (int j = i + 1; j <= i + 4; j++) {
+					// parseInt would also take a sign, and digit other scripts' digits //
+					char hex = json.charAt(j);
+					int digit = hex < 128 ? Character.digit(hex, 16) : -1;
+					if (digit < 0) {
+						return -1;
+					}
+					code = code * 16 + digit;
+				}
+				token.append((char) code);
+				i += 4;
+				break;
+			default:
+				token.append(escaped);
+			}
+		}
+		return -1;
+	}
+
+	private static int skipSpaces(String json, int at) {
+		while (at < json.length() && Character.isWhitespace(json.charAt(at))) {
+			at++;
+		}
+		return at;
+	}
+
+	/* Appends text to json as a JSON string, or null. */
+	static void appendString(StringBuilder json, String text) {
+		if (text == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c == '\n') {
+				json.append("\\n");
+			} else if (c < ' ') {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	/* Appends strings to json as a JSON array of strings. */
+	private static void appendArray(StringBuilder json, List<String> strings) {
+		json.append('[');
+		for (int i = 0; i < strings.size(); i++) {
+			if (i > 0) {
+				json.append(", ");
+			}
+			appendString(json, strings.get(i));
+		}
+		json.append(']');
+	}
+
+	/*
+	 * Returns an executor that runs each request on a virtual thread of its
+	 * own, if this JVM has them, or else on a fixed pool of threads.
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			return Executors.newFixedThreadPool(REQUEST_THREADS);
+		}
+	}
+
+	/* Port used when none is given */
+	private static final int DEFAULT_PORT = 8080;
+
+	/* Connections the OS may queue before they are accepted */
+	private static final int BACKLOG = 4096;
+
+	/* Request threads when virtual threads are not available */
+	private static final int REQUEST_THREADS = 64;
+
+	/* Names returned by a prefix search by default, and at most */
+	private static final int DEFAULT_LIST_LIMIT = 20;
+	private static final int MAX_LIST_LIMIT = 1000;
+
+	/* Request bodies are read in pieces of this size, up to the maximum */
+	private static final int BODY_BUFFER_SIZE = 1024;
+	private static final int MAX_BODY_SIZE = 64 * 1024;
+
+	/* How long stop waits for requests under way to finish */
+	private static final int STOP_TIMEOUT_SECONDS = 10;
+
+	/* How often a server with storage checkpoints it */
+	private static final int CHECKPOINT_INTERVAL_SECONDS = 60;
+
+	/* private instance variables */
+	private FacePamphletConcurrentDatabase db;
+	private FacePamphletStorage storage;
+	private HttpServer server;
+	private ExecutorService executor;
+	private ScheduledExecutorService checkpointer;
+}
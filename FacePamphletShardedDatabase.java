@@ -0,0 +1,279 @@
+/*
+ * File: FacePamphletShardedDatabase.java
+ * --------------------------------------
+ * This class keeps the profiles of FacePamphlet spread across a number
+ * of independent FacePamphletDatabase shards, each profile living in
+ * the shard chosen by a hash of its name.  Every shard has its own
+ * read/write lock, so lookups in one shard never wait for changes in
+ * another, and changes to profiles in different shards go ahead side
+ * by side.
+ *
+ * A friendship can join profiles in two different shards.  addFriend
+ * and removeFriend then hold the write locks of both shards (lower
+ * index first) and change each profile's half of the friendship in its
+ * own shard, so the pair is never seen half made.  deleteProfile holds
+ * the write lock of every shard, since the profiles listing the deleted
+ * one as a friend may live anywhere; deletes are expected to be rare.
+ * Locks are always taken in increasing shard order, so operations can
+ * never deadlock with each other.
+ *
+ * The shards are kept in memory only.
+ */
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class FacePamphletShardedDatabase {
+
+	/* Creates an empty database with the given number of shards. */
+	public FacePamphletShardedDatabase(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("need at least one shard, not " + shards);
+		}
+		this.shards = new FacePamphletDatabase[shards];
+		locks = new ReentrantReadWriteLock[shards];
+		// one registry, so a friend's ID is the same in every shard //
+		FacePamphletNameRegistry names = new FacePamphletNameRegistry();
+		for (int i = 0; i < shards; i++) {
+			this.shards[i] = new FacePamphletDatabase(names);
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/* This method returns the number of shards. */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/* This method returns the number of profiles across all shards. */
+	public int getProfileCount() {
+		int count = 0;
+		for (int i = 0; i < shards.length; i++) {
+			Lock lock = locks[i].readLock();
+			lock.lock();
+			try {
+				count += shards[i].getLoadedProfileCount();
+			} finally {
+				lock.unlock();
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * This method adds the given profile to its shard, replacing any profile
+	 * with the same name. As with FacePamphletDatabase.addProfile, the friends
+	 * the profile already lists are taken as they are.
+	 */
+	public void addProfile(FacePamphletProfile profile) {
+		int s = shardOf(profile.getName());
+		Lock lock = locks[s].writeLock();
+		lock.lock();
+		try {
+			shards[s].addProfile(profile);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * This method returns the profile with the given name, or null if there is
+	 * none. Its list of friends may be changed by other threads; read it
+	 * through getFriendNames instead.
+	 */
+	public FacePamphletProfile getProfile(String name) {
+		int s = shardOf(name);
+		Lock lock = locks[s].readLock();
+		lock.lock();
+		try {
+			return shards[s].getProfile(name);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* This method returns true if there is a profile with the given name. */
+	public boolean containsProfile(String name) {
+		int s = shardOf(name);
+		Lock lock = locks[s].readLock();
+		lock.lock();
+		try {
+			return shards[s].containsProfile(name);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * This method returns a copy of the named profile's list of friends, or an
+	 * empty list if there is no such profile.
+	 */
+	public List<String> getFriendNames(String name) {
+		ArrayList<String> result = new ArrayList<String>();
+		int s = shardOf(name);
+		Lock lock = locks[s].readLock();
+		lock.lock();
+		try {
+			FacePamphletProfile prof = shards[s].getProfile(name);
+			if (prof != null) {
+				Iterator<String> it = prof.getFriends();
+				while (it.hasNext()) {
+					result.add(it.next());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return result;
+	}
+
+	/*
+	 * This method returns up to limit names of profiles that start with
+	 * prefix, in alphabetical order, gathering the first limit from every
+	 * shard and merging them.
+	 */
+	public List<String> findProfileNames(String prefix, int limit, boolean ignoreCase) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (int i = 0; i < shards.length; i++) {
+			Lock lock = locks[i].readLock();
+			lock.lock();
+			try {
+				result.addAll(shards[i].findProfileNames(prefix, limit, ignoreCase));
+			} finally {
+				lock.unlock();
+			}
+		}
+		Collections.sort(result);
+		return result.size() > limit ? new ArrayList<String>(result.subList(0, limit)) : result;
+	}
+
+	/* This method sets the status of the named profile, if there is one. */
+	public void setStatus(String name, String status) {
+		int s = shardOf(name);
+		Lock lock = locks[s].writeLock();
+		lock.lock();
+		try {
+			shards[s].setStatus(name, status);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* This method sets the image file of the named profile, if there is one. */
+	public void setImage(String name, String file) {
+		int s = shardOf(name);
+		Lock lock = locks[s].writeLock();
+		lock.lock();
+		try {
+			shards[s].setImage(name, file);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * This method makes the profiles named name and friend friends with each
+	 * other. It returns true if the friendship was new and false if either
+	 * profile does not exist or they were already friends.
+	 */
+	public boolean addFriend(String name, String friend) {
+		int s = shardOf(name);
+		int friendShard = shardOf(friend);
+		if (s == friendShard) {
+			Lock lock = locks[s].writeLock();
+			lock.lock();
+			try {
+				return shards[s].addFriend(name, friend);
+			} finally {
+				lock.unlock();
+			}
+		}
+		lockPair(s, friendShard);
+		try {
+			if (!shards[s].containsProfile(name) || !shards[friendShard].containsProfile(friend)) {
+				return false;
+			}
+			boolean added = shards[s].addFriendLink(name, friend);
+			added |= shards[friendShard].addFriendLink(friend, name);
+			return added;
+		} finally {
+			unlockPair(s, friendShard);
+		}
+	}
+
+	/*
+	 * This method removes the friendship between the profiles named name and
+	 * friend from both lists of friends. It returns true if either list
+	 * changed.
+	 */
+	public boolean removeFriend(String name, String friend) {
+		int s = shardOf(name);
+		int friendShard = shardOf(friend);
+		if (s == friendShard) {
+			Lock lock = locks[s].writeLock();
+			lock.lock();
+			try {
+				return shards[s].removeFriend(name, friend);
+			} finally {
+				lock.unlock();
+			}
+		}
+		lockPair(s, friendShard);
+		try {
+			boolean removed = shards[s].removeFriendLink(name, friend);
+			removed |= shards[friendShard].removeFriendLink(friend, name);
+			return removed;
+		} finally {
+			unlockPair(s, friendShard);
+		}
+	}
+
+	/*
+	 * This method removes the named profile, and takes it out of the list of
+	 * friends of every profile in every shard. If there is no such profile,
+	 * nothing changes.
+	 */
+	public void deleteProfile(String name) {
+		int s = shardOf(name);
+		for (int i = 0; i < shards.length; i++) {
+			locks[i].writeLock().lock();
+		}
+		try {
+			if (!shards[s].containsProfile(name)) {
+				return;
+			}
+			for (int i = 0; i < shards.length; i++) {
+				if (i == s) {
+					shards[i].deleteProfile(name);
+				} else {
+					shards[i].removeFromFriendLists(name);
+				}
+			}
+		} finally {
+			for (int i = shards.length - 1; i >= 0; i--) {
+				locks[i].writeLock().unlock();
+			}
+		}
+	}
+
+	/* Returns the shard holding the profile with the given name. */
+	private int shardOf(String name) {
+		int h = name.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), shards.length);
+	}
+
+	/* Takes the write locks of two different shards, lower index first. */
+	private void lockPair(int a, int b) {
+		locks[Math.min(a, b)].writeLock().lock();
+		locks[Math.max(a, b)].writeLock().lock();
+	}
+
+	private void unlockPair(int a, int b) {
+		locks[Math.max(a, b)].writeLock().unlock();
+		locks[Math.min(a, b)].writeLock().unlock();
+	}
+
+	/* private instance variables */
+	private FacePamphletDatabase[] shards;
+	private ReentrantReadWriteLock[] locks;
+}
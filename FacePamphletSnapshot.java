@@ -0,0 +1,350 @@
+/*
+ * File: FacePamphletSnapshot.java
+ * -------------------------------
+ * This class is a read-only view of every profile in a
+ * FacePamphletDatabase as it was at one moment (see
+ * FacePamphletDatabase.snapshot).  A snapshot never changes, so it may
+ * be read by any number of threads, for as long as they like, without
+ * locking and without being disturbed by changes made to the database
+ * meanwhile; each change to the database is either wholly in a
+ * snapshot or not in it at all.
+ *
+ * A snapshot is a FacePamphletPersistentMap from profile ID to an
+ * immutable record of the profile.  A record's friends are a sorted int
+ * array of IDs while there are at most SMALL_FRIENDS of them, which is
+ * copied whole on a change, and a FacePamphletPersistentMap beyond
+ * that.  Each change to the database makes the next snapshot by
+ * copying only what is on the path to what changed, so taking a
+ * snapshot costs nothing; the database simply hands out the latest
+ * one.
+ */
+
+import java.util.*;
+
+public final class FacePamphletSnapshot {
+
+	private FacePamphletSnapshot(FacePamphletNameRegistry names, FacePamphletPersistentMap<ProfileState> profiles) {
+		this.names = names;
+		this.profiles = profiles;
+	}
+
+	/* This method returns the number of profiles in the snapshot. */
+	public int getProfileCount() {
+		return profiles.size();
+	}
+
+	/* This method returns true if there is a profile with the given name. */
+	public boolean containsProfile(String name) {
+		return find(name) != null;
+	}
+
+	/*
+	 * This method returns the status of the named profile ("" if it has none),
+	 * or null if there is no such profile.
+	 */
+	public String getStatus(String name) {
+		ProfileState state = find(name);
+		if (state == null) {
+			return null;
+		}
+		return state.status != null ? state.status : "";
+	}
+
+	/*
+	 * This method returns the image file of the named profile, or null if it
+	 * has none or there is no such profile.
+	 */
+	public String getImageFile(String name) {
+		ProfileState state = find(name);
+		return state != null ? state.imageFile : null;
+	}
+
+	/*
+	 * This method returns the number of friends of the named profile, or 0 if
+	 * there is no such profile.
+	 */
+	public int getFriendCount(String name) {
+		ProfileState state = find(name);
+		return state != null ? friendCount(state.friends) : 0;
+	}
+
+	/*
+	 * This method returns true if the named profile has friend in its list of
+	 * friends.
+	 */
+	public boolean containsFriend(String name, String friend) {
+		ProfileState state = find(name);
+		int friendId = names.findId(friend);
+		return state != null && friendId >= 0 && hasFriend(state.friends, friendId);
+	}
+
+	/*
+	 * This method returns the names of the named profile's friends, in no
+	 * particular order, or nothing if there is no such profile.
+	 */
+	public Iterator<String> getFriends(String name) {
+		ProfileState state = find(name);
+		return namesOf(friendIds(state != null ? state.friends : NO_FRIENDS));
+	}
+
+	/* This method returns the names of every profile, in no particular order. */
+	public Iterator<String> getProfileNames() {
+		return namesOf(profiles.keys());
+	}
+
+	/* This method returns an empty snapshot of profiles named in names. */
+	static FacePamphletSnapshot empty(FacePamphletNameRegistry names) {
+		return new FacePamphletSnapshot(names, FacePamphletPersistentMap.<ProfileState> empty());
+	}
+
+	/*
+	 * This method returns a snapshot like this one with a record of prof,
+	 * replacing any earlier record of a profile with the same name.
+	 */
+	FacePamphletSnapshot withProfile(FacePamphletProfile prof) {
+		Object friends;
+		FacePamphletFriendSet ids = prof.getFriendIds();
+		if (ids.size() <= SMALL_FRIENDS) {
+			int[] sorted = ids.toArray();
+			Arrays.sort(sorted);
+			friends = sorted;
+		} else {
+			FacePamphletPersistentMap<Boolean> map = FacePamphletPersistentMap.empty();
+			PrimitiveIterator.OfInt it = ids.iterator();
+			while (it.hasNext()) {
+				map = map.plus(it.nextInt(), Boolean.TRUE);
+			}
+			friends = map;
+		}
+		ProfileState state = new ProfileState(prof.getStatus(), prof.getImageFile(), friends);
+		return new FacePamphletSnapshot(names, profiles.plus(names.getId(prof.getName()), state));
+	}
+
+	/*
+	 * This method returns a snapshot like this one without the profile with ID
+	 * id, and with id taken out of the friends of the profiles in friendedBy.
+	 */
+	FacePamphletSnapshot withoutProfile(int id, int[] friendedBy) {
+		FacePamphletPersistentMap<ProfileState> changed = profiles.minus(id);
+		for (int other : friendedBy) {
+			ProfileState state = changed.get(other);
+			if (state != null) {
+				changed = changed.plus(other, state.withFriends(minusFriend(state.friends, id)));
+			}
+		}
+		return new FacePamphletSnapshot(names, changed);
+	}
+
+	/* This method returns a snapshot with the status of profile id changed. */
+	FacePamphletSnapshot withStatus(int id, String status) {
+		ProfileState state = profiles.get(id);
+		if (state == null) {
+			return this;
+		}
+		return new FacePamphletSnapshot(names, profiles.plus(id,
+				new ProfileState(status, state.imageFile, state.friends)));
+	}
+
+	/* This method returns a snapshot with the image of profile id changed. */
+	FacePamphletSnapshot withImageFile(int id, String file) {
+		ProfileState state = profiles.get(id);
+		if (state == null) {
+			return this;
+		}
+		return new FacePamphletSnapshot(names, profiles.plus(id,
+				new ProfileState(state.status, file, state.friends)));
+	}
+
+	/*
+	 * This method returns a snapshot in which the profiles with IDs id and
+	 * friendId each list the other as a friend (when they exist).
+	 */
+	FacePamphletSnapshot withFriendship(int id, int friendId) {
+		FacePamphletPersistentMap<ProfileState> changed = addFriend(profiles, id, friendId);
+		changed = addFriend(changed, friendId, id);
+		return changed == profiles ? this : new FacePamphletSnapshot(names, changed);
+	}
+
+	/* This method undoes withFriendship. */
+	FacePamphletSnapshot withoutFriendship(int id, int friendId) {
+		FacePamphletPersistentMap<ProfileState> changed = removeFriend(profiles, id, friendId);
+		changed = removeFriend(changed, friendId, id);
+		return changed == profiles ? this : new FacePamphletSnapshot(names, changed);
+	}
+
+	/*
+	 * This method returns a snapshot in which the profile with ID id lists
+	 * friendId as a friend, leaving friendId's own list alone.
+	 */
+	FacePamphletSnapshot withFriendLink(int id, int friendId) {
+		FacePamphletPersistentMap<ProfileState> changed = addFriend(profiles, id, friendId);
+		return changed == profiles ? this : new FacePamphletSnapshot(names, changed);
+	}
+
+	/* This method undoes withFriendLink. */
+	FacePamphletSnapshot withoutFriendLink(int id, int friendId) {
+		FacePamphletPersistentMap<ProfileState> changed = removeFriend(profiles, id, friendId);
+		return changed == profiles ? this : new FacePamphletSnapshot(names, changed);
+	}
+
+	/* Returns map with friendId added to the friends of profile id. */
+	private static FacePamphletPersistentMap<ProfileState> addFriend(FacePamphletPersistentMap<ProfileState> map,
+			int id, int friendId) {
+		ProfileState state = map.get(id);
+		if (state == null || hasFriend(state.friends, friendId)) {
+			return map;
+		}
+		return map.plus(id, state.withFriends(plusFriend(state.friends, friendId)));
+	}
+
+	/* Returns map with friendId taken out of the friends of profile id. */
+	private static FacePamphletPersistentMap<ProfileState> removeFriend(
+			FacePamphletPersistentMap<ProfileState> map, int id, int friendId) {
+		ProfileState state = map.get(id);
+		if (state == null || !hasFriend(state.friends, friendId)) {
+			return map;
+		}
+		return map.plus(id, state.withFriends(minusFriend(state.friends, friendId)));
+	}
+
+	/*
+	 * The methods below work on a record's friends, which are either a
+	 * sorted int[] or a FacePamphletPersistentMap<Boolean>.
+	 */
+
+	private static int friendCount(Object friends) {
+		if (friends instanceof int[]) {
+			return ((int[]) friends).length;
+		}
+		return asMap(friends).size();
+	}
+
+	private static boolean hasFriend(Object friends, int id) {
+		if (friends instanceof int[]) {
+			return Arrays.binarySearch((int[]) friends, id) >= 0;
+		}
+		return asMap(friends).containsKey(id);
+	}
+
+	/* Returns friends with id added, which must not be in it. */
+	private static Object plusFriend(Object friends, int id) {
+		if (!(friends instanceof int[])) {
+			return asMap(friends).plus(id, Boolean.TRUE);
+		}
+		int[] ids = (int[]) friends;
+		if (ids.length == SMALL_FRIENDS) {
+			FacePamphletPersistentMap<Boolean> map = FacePamphletPersistentMap.empty();
+			for (int friend : ids) {
+				map = map.plus(friend, Boolean.TRUE);
+			}
+			return map.plus(id, Boolean.TRUE);
+		}
+		int at = -Arrays.binarySearch(ids, id) - 1;
+		int[] changed = new int[ids.length + 1];
+		System.arraycopy(ids, 0, changed, 0, at);
+		changed[at] = id;
+		System.arraycopy(ids, at, changed, at + 1, ids.length - at);
+		return changed;
+	}
+
+	/*
+	 * Returns friends without id, which must be in it. A map that shrinks to
+	 * half of SMALL_FRIENDS goes back to being an array.
+	 */
+	private static Object minusFriend(Object friends, int id) {
+		if (!(friends instanceof int[])) {
+			FacePamphletPersistentMap<Boolean> map = asMap(friends).minus(id);
+			if (map.size() > SMALL_FRIENDS / 2) {
+				return map;
+			}
+			int[] ids = new int[map.size()];
+			PrimitiveIterator.OfInt it = map.keys();
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = it.nextInt();
+			}
+			Arrays.sort(ids);
+			return ids;
+		}
+		int[] ids = (int[]) friends;
+		int at = Arrays.binarySearch(ids, id);
+		int[] changed = new int[ids.length - 1];
+		System.arraycopy(ids, 0, changed, 0, at);
+		System.arraycopy(ids, at + 1, changed, at, ids.length - at - 1);
+		return changed;
+	}
+
+	private static PrimitiveIterator.OfInt friendIds(Object friends) {
+		if (!(friends instanceof int[])) {
+			return asMap(friends).keys();
+		}
+		final int[] ids = (int[]) friends;
+		return new PrimitiveIterator.OfInt() {
+			public boolean hasNext() {
+				return next < ids.length;
+			}
+
+			public int nextInt() {
+				if (next == ids.length) {
+					throw new NoSuchElementException();
+				}
+				return ids[next++];
+			}
+
+			private int next;
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private static FacePamphletPersistentMap<Boolean> asMap(Object friends) {
+		return (FacePamphletPersistentMap<Boolean>) friends;
+	}
+
+	/* Returns the record of the named profile, or null if there is none. */
+	private ProfileState find(String name) {
+		int id = names.findId(name);
+		return id >= 0 ? profiles.get(id) : null;
+	}
+
+	/* Returns the names of the profiles whose IDs ids produces. */
+	private Iterator<String> namesOf(final PrimitiveIterator.OfInt ids) {
+		return new Iterator<String>() {
+			public boolean hasNext() {
+				return ids.hasNext();
+			}
+
+			public String next() {
+				return names.getName(ids.nextInt());
+			}
+		};
+	}
+
+	/* What a snapshot records about one profile. */
+	private static final class ProfileState {
+
+		ProfileState(String status, String imageFile, Object friends) {
+			this.status = status;
+			this.imageFile = imageFile;
+			this.friends = friends;
+		}
+
+		/* Returns a copy of this record with the given friends. */
+		ProfileState withFriends(Object friends) {
+			return new ProfileState(status, imageFile, friends);
+		}
+
+		final String status;
+		final String imageFile;
+
+		/* Sorted int[] of friend IDs, or FacePamphletPersistentMap<Boolean> */
+		final Object friends;
+	}
+
+	/* Most friends a record keeps in an array rather than a map */
+	private static final int SMALL_FRIENDS = 32;
+
+	private static final int[] NO_FRIENDS = new int[0];
+
+	/* private instance variables */
+	private final FacePamphletPersistentMap<ProfileState> profiles;
+	private final FacePamphletNameRegistry names;
+}
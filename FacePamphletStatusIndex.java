@@ -0,0 +1,380 @@
+/*
+ * File: FacePamphletStatusIndex.java
+ * ----------------------------------
+ * This class is an inverted index over profile statuses, so profiles
+ * can be found by the words in their status.  A status is split into
+ * words (runs of letters and digits, compared ignoring case), and each
+ * word has a posting list of the statuses that contain it.
+ *
+ * Every status given to the index gets the next sequence number, and a
+ * posting list holds sequence numbers in increasing order, so new
+ * statuses are only ever appended to the end of a list.  The lists are
+ * stored compressed: in blocks of BLOCK_SIZE entries, each block giving
+ * its first sequence number in full and the rest as varint-encoded
+ * gaps, usually one byte each.  The block starts let a search skip to
+ * any sequence number, so a multi-word search leapfrogs through the
+ * lists from newest to oldest, skipping runs of entries that cannot
+ * match instead of checking each one.
+ *
+ * When a profile's status changes, the entries for its old status are
+ * not removed from the middle of their lists right away; they are dead
+ * as soon as the profile has a newer sequence number, and are counted
+ * so that a list is rewritten without them once they are half of it.
+ * Once dead statuses outnumber live ones (and MIN_DEAD_TO_RENUMBER),
+ * the live ones are numbered again from 1 in the same order and every
+ * list is rewritten, so the table from sequence number to profile only
+ * grows with the live statuses, and sequence numbers never run out.
+ *
+ * All methods are synchronized, so the index may be shared by threads.
+ */
+
+import java.util.*;
+
+public class FacePamphletStatusIndex {
+
+	/* Creates an empty index of the statuses of profiles in the given registry. */
+	public FacePamphletStatusIndex(FacePamphletNameRegistry names) {
+		this.names = names;
+	}
+
+	/*
+	 * This method records that the named profile's status changed from
+	 * oldStatus to newStatus (either may be null or empty). The index forgets
+	 * the old status and indexes the new one as the most recent.
+	 */
+	public synchronized void statusChanged(String name, String oldStatus, String newStatus) {
+		int id = names.getId(name);
+		if (id >= statusSeq.length) {
+			statusSeq = Arrays.copyOf(statusSeq, Math.max(id + 1, statusSeq.length * 2));
+		}
+		if (statusSeq[id] != 0) {
+			// the old entries are dead from here on, even to compact //
+			statusSeq[id] = 0;
+			liveCount--;
+			for (String word : tokenize(oldStatus)) {
+				Posting posting = postings.get(word);
+				if (posting != null && ++posting.dead * 2 > posting.count) {
+					compact(word, posting);
+				}
+			}
+		}
+		Set<String> words = tokenize(newStatus);
+		if (words.isEmpty()) {
+			return;
+		}
+		int dead = lastSeq - liveCount;
+		if (dead > liveCount && dead > MIN_DEAD_TO_RENUMBER) {
+			renumber();
+		}
+		int seq = ++lastSeq;
+		if (seq == seqOwner.length) {
+			seqOwner = Arrays.copyOf(seqOwner, seqOwner.length * 2);
+		}
+		seqOwner[seq] = id;
+		statusSeq[id] = seq;
+		liveCount++;
+		for (String word : words) {
+			Posting posting = postings.get(word);
+			if (posting == null) {
+				posting = new Posting();
+				postings.put(word, posting);
+			}
+			posting.append(seq);
+		}
+	}
+
+	/* This method returns true if the named profile's status is indexed. */
+	public synchronized boolean isIndexed(String name) {
+		int id = names.findId(name);
+		return id >= 0 && id < statusSeq.length && statusSeq[id] != 0;
+	}
+
+	/*
+	 * This method returns the names of up to limit profiles whose status
+	 * contains every word in query, those whose status changed most recently
+	 * first.
+	 */
+	public synchronized List<String> search(String query, int limit) {
+		ArrayList<String> result = new ArrayList<String>();
+		Set<String> words = tokenize(query);
+		if (words.isEmpty() || limit <= 0) {
+			return result;
+		}
+		ArrayList<Posting> lists = new ArrayList<Posting>();
+		for (String word : words) {
+			Posting posting = postings.get(word);
+			if (posting == null) {
+				return result;
+			}
+			lists.add(posting);
+		}
+		// Start with the shortest list, which makes the biggest jumps //
+		Collections.sort(lists, new Comparator<Posting>() {
+			public int compare(Posting a, Posting b) {
+				return Integer.compare(a.count, b.count);
+			}
+		});
+		Cursor[] cursors = new Cursor[lists.size()];
+		for (int i = 0; i < cursors.length; i++) {
+			cursors[i] = new Cursor(lists.get(i));
+		}
+
+		// Leapfrog from newest to oldest: each list in turn moves the candidate
+		// down to its own newest entry not after it, until all of them agree //
+		int candidate = Integer.MAX_VALUE;
+		int agreed = 0;
+		for (int i = 0; result.size() < limit; i = (i + 1) % cursors.length) {
+			int floor = cursors[i].floor(candidate);
+			if (floor < 0) {
+				break;
+			}
+			if (floor == candidate) {
+				agreed++;
+			} else {
+				candidate = floor;
+				agreed = 1;
+			}
+			if (agreed == cursors.length) {
+				if (isLive(candidate)) {
+					result.add(names.getName(seqOwner[candidate]));
+				}
+				candidate--;
+				agreed = 0;
+			}
+		}
+		return result;
+	}
+
+	/* This method returns the number of bytes taken by compressed postings. */
+	public synchronized long getPostingBytes() {
+		long bytes = 0;
+		for (Posting posting : postings.values()) {
+			bytes += posting.length;
+		}
+		return bytes;
+	}
+
+	/*
+	 * This method splits text into its distinct words: runs of letters and
+	 * digits, in lower case.
+	 */
+	static Set<String> tokenize(String text) {
+		LinkedHashSet<String> words = new LinkedHashSet<String>();
+		if (text == null) {
+			return words;
+		}
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (!inWord && start >= 0) {
+				words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/* Returns true if seq is still the current status of its profile. */
+	private boolean isLive(int seq) {
+		return statusSeq[seqOwner[seq]] == seq;
+	}
+
+	/* Rewrites the posting list for word without its dead entries. */
+	private void compact(String word, Posting posting) {
+		Posting live = new Posting();
+		int[] block = new int[BLOCK_SIZE];
+		for (int b = 0; b < posting.blocks; b++) {
+			int size = posting.decodeBlock(b, block);
+			for (int i = 0; i < size; i++) {
+				if (isLive(block[i])) {
+					live.append(block[i]);
+				}
+			}
+		}
+		if (live.count == 0) {
+			postings.remove(word);
+		} else {
+			postings.put(word, live);
+		}
+	}
+
+	/*
+	 * Numbers the live statuses 1, 2, ... in their old order, rewriting every
+	 * posting list with the new numbers and without its dead entries.
+	 */
+	private void renumber() {
+		int[] renumbered = new int[lastSeq + 1];
+		int next = 0;
+		for (int seq = 1; seq <= lastSeq; seq++) {
+			if (isLive(seq)) {
+				renumbered[seq] = ++next;
+			}
+		}
+		HashMap<String, Posting> rewritten = new HashMap<String, Posting>();
+		int[] block = new int[BLOCK_SIZE];
+		for (Map.Entry<String, Posting> entry : postings.entrySet()) {
+			Posting posting = entry.getValue();
+			Posting live = new Posting();
+			for (int b = 0; b < posting.blocks; b++) {
+				int size = posting.decodeBlock(b, block);
+				for (int i = 0; i < size; i++) {
+					if (renumbered[block[i]] != 0) {
+						live.append(renumbered[block[i]]);
+					}
+				}
+			}
+			if (live.count > 0) {
+				rewritten.put(entry.getKey(), live);
+			}
+		}
+		postings = rewritten;
+		int[] owners = new int[Math.max(16, Integer.highestOneBit(next) << 1)];
+		for (int id = 0; id < statusSeq.length; id++) {
+			if (statusSeq[id] != 0) {
+				statusSeq[id] = renumbered[statusSeq[id]];
+				owners[statusSeq[id]] = id;
+			}
+		}
+		seqOwner = owners;
+		lastSeq = next;
+	}
+
+	/*
+	 * The posting list of one word. Block b starts with blockFirst[b], and
+	 * the gaps to the rest of its entries are varints in data from
+	 * blockStart[b] up to the start of the next block.
+	 */
+	private static class Posting {
+
+		/* Adds seq, which must be larger than every entry so far. */
+		public void append(int seq) {
+			if (count % BLOCK_SIZE == 0) {
+				if (blocks == blockFirst.length) {
+					blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+					blockStart = Arrays.copyOf(blockStart, blocks * 2);
+				}
+				blockFirst[blocks] = seq;
+				blockStart[blocks] = length;
+				blocks++;
+			} else {
+				int gap = seq - last;
+				while (gap >= 0x80) {
+					write((byte) (gap | 0x80));
+					gap >>>= 7;
+				}
+				write((byte) gap);
+			}
+			last = seq;
+			count++;
+		}
+
+		/* Decodes block b into values and returns how many entries it has. */
+		public int decodeBlock(int b, int[] values) {
+			int end = b + 1 < blocks ? blockStart[b + 1] : length;
+			int at = blockStart[b];
+			int value = blockFirst[b];
+			int size = 0;
+			values[size++] = value;
+			while (at < end) {
+				int gap = 0;
+				int shift = 0;
+				byte next;
+				do {
+					next = data[at++];
+					gap |= (next & 0x7F) << shift;
+					shift += 7;
+				} while (next < 0);
+				value += gap;
+				values[size++] = value;
+			}
+			return size;
+		}
+
+		/* Returns the last block whose first entry is at most seq, or -1. */
+		public int findBlock(int seq) {
+			int low = 0;
+			int high = blocks - 1;
+			int found = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (blockFirst[mid] <= seq) {
+					found = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return found;
+		}
+
+		private void write(byte b) {
+			if (length == data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			data[length++] = b;
+		}
+
+		byte[] data = new byte[8];
+		int length;
+		int[] blockFirst = new int[1];
+		int[] blockStart = new int[1];
+		int blocks;
+		int count;
+		int dead;
+		int last;
+	}
+
+	/*
+	 * Finds entries in a posting list, remembering the last block it decoded,
+	 * since a search asks about ever older entries.
+	 */
+	private static class Cursor {
+
+		public Cursor(Posting posting) {
+			this.posting = posting;
+		}
+
+		/* Returns the largest entry that is at most seq, or -1 if there is none. */
+		public int floor(int seq) {
+			int b = posting.findBlock(seq);
+			if (b < 0) {
+				return -1;
+			}
+			if (b != decoded) {
+				size = posting.decodeBlock(b, values);
+				decoded = b;
+			}
+			int at = Arrays.binarySearch(values, 0, size, seq);
+			// the block's first entry is at most seq, so at is never -1 //
+			return values[at >= 0 ? at : -at - 2];
+		}
+
+		private Posting posting;
+		private int[] values = new int[BLOCK_SIZE];
+		private int size;
+		private int decoded = -1;
+	}
+
+	/* Number of entries in each block of a posting list */
+	private static final int BLOCK_SIZE = 128;
+
+	/* Fewest dead statuses worth renumbering for */
+	private static final int MIN_DEAD_TO_RENUMBER = 1024;
+
+	/* private instance variables */
+	private final FacePamphletNameRegistry names;
+	private HashMap<String, Posting> postings = new HashMap<String, Posting>();
+
+	/* Sequence number of each profile's indexed status (0 if none) */
+	private int[] statusSeq = new int[16];
+
+	/*
+	 * Profile ID each sequence number was given to, the last one given, and
+	 * how many of them are still a profile's status
+	 */
+	private int[] seqOwner = new int[16];
+	private int lastSeq;
+	private int liveCount;
+}
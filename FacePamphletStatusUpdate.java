@@ -0,0 +1,44 @@
+/*
+ * File: FacePamphletStatusUpdate.java
+ * -----------------------------------
+ * This class is one entry in a news feed: a status that a profile set,
+ * and when it was set.
+ */
+
+public class FacePamphletStatusUpdate {
+
+	/* Creates an entry for the status the named profile set at time. */
+	public FacePamphletStatusUpdate(String name, String status, long time) {
+		this.name = name;
+		this.status = status;
+		this.time = time;
+	}
+
+	/* This method returns the name of the profile that set the status. */
+	public String getName() {
+		return name;
+	}
+
+	/* This method returns the status. */
+	public String getStatus() {
+		return status;
+	}
+
+	/*
+	 * This method returns when the status was set, in milliseconds as from
+	 * System.currentTimeMillis.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/* This method returns the entry in the form "name: status". */
+	public String toString() {
+		return name + ": " + status;
+	}
+
+	/* private instance variables */
+	private String name;
+	private String status;
+	private long time;
+}
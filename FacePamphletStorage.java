@@ -0,0 +1,633 @@
+/*
+ * File: FacePamphletStorage.java
+ * ------------------------------
+ * This class makes a FacePamphletDatabase durable.  Every change made
+ * through the database (adding or deleting a profile, setting a status
+ * or image, adding or removing a friend) is appended to a write-ahead
+ * log before the call returns.  Writers that arrive while the log is
+ * being synced to disk are batched together and made durable by the
+ * next sync (group commit), so a busy database pays for one fsync per
+ * batch rather than one per change.
+ *
+ * Every so often the whole database is written out as a compacted
+ * snapshot and the log is emptied, so that loading the database only
+ * has to read the snapshot and replay the few changes made since.
+ * Every log record carries a sequence number, and the snapshot records
+ * the last sequence number it contains, so a crash between writing a
+ * snapshot and emptying the log never replays a change twice.
+ *
+ * An automatic snapshot is only taken once the database call that logged
+ * the last change is complete (see checkpointIfDue), so it never sees a
+ * change half made.  That is only safe while the database is changed by
+ * one thread at a time, so load turns automatic snapshots off for a
+ * FacePamphletConcurrentDatabase; its owner should call checkpoint while
+ * no other thread is changing it instead (as FacePamphletServer does).
+ *
+ * An added profile is logged with everything it holds (status, image
+ * and friends), so replaying the log rebuilds it exactly as the live
+ * database had it.  Statuses are logged and snapshotted with the times
+ * they were set, and snapshots and added profiles keep each profile's
+ * status history, so feeds come back in the same order after a restart.
+ * Logs and snapshots written before the times were kept (without the
+ * trailing times, or with the old snapshot magic number) still load;
+ * their statuses are stamped with the load time.
+ */
+
+import acm.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class FacePamphletStorage {
+
+	/*
+	 * Constructor This method opens (creating if needed) the log and snapshot
+	 * files in the given directory.
+	 */
+	public FacePamphletStorage(File directory) throws IOException {
+		this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+	}
+
+	/*
+	 * This constructor also sets how many changes are logged between automatic
+	 * snapshots. An interval of 0 turns automatic snapshots off.
+	 */
+	public FacePamphletStorage(File directory, int snapshotInterval) throws IOException {
+		directory.mkdirs();
+		logFile = new File(directory, LOG_FILE_NAME);
+		snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+		this.snapshotInterval = snapshotInterval;
+		logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		syncThread = new Thread(new Runnable() {
+			public void run() {
+				syncLoop();
+			}
+		}, "FacePamphletStorage sync");
+		syncThread.setDaemon(true);
+		syncThread.start();
+	}
+
+	/*
+	 * This method fills the given (empty) database from the latest snapshot and
+	 * the changes logged after it, then starts logging every further change
+	 * made to the database.
+	 */
+	public void load(FacePamphletDatabase db) throws IOException {
+		long lastSeq = 0;
+		if (snapshotFile.exists()) {
+			lastSeq = readSnapshot(db);
+		}
+		lastSeq = Math.max(lastSeq, replayLog(db, lastSeq));
+		synchronized (this) {
+			nextSeq = lastSeq + 1;
+			durableSeq = lastSeq;
+		}
+		database = db;
+		if (db instanceof FacePamphletConcurrentDatabase) {
+			// other threads may be halfway through changes at any moment //
+			snapshotInterval = 0;
+		}
+		db.setStorage(this);
+	}
+
+	/*
+	 * This method writes the whole database out as a new snapshot and empties
+	 * the log.
+	 */
+	public synchronized void checkpoint(FacePamphletDatabase db) throws IOException {
+		// once everything appended so far is durable, no sync is in flight //
+		while (durableSeq < nextSeq - 1) {
+			waitForSync(nextSeq - 1);
+		}
+		long lastSeq = nextSeq - 1;
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+			data.writeInt(SNAPSHOT_MAGIC);
+			data.writeLong(lastSeq);
+			writeSnapshotBody(data, db);
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logChannel.truncate(0);
+		logChannel.position(0);
+		logChannel.force(true);
+		sinceSnapshot = 0;
+	}
+
+	/* This method returns how many changes have been logged since the last snapshot. */
+	public synchronized int getChangesSinceCheckpoint() {
+		return sinceSnapshot;
+	}
+
+	/*
+	 * This method writes a snapshot if the automatic snapshot interval has
+	 * passed. It is called by the database once each change is complete,
+	 * never in the middle of one.
+	 */
+	void checkpointIfDue() {
+		try {
+			synchronized (this) {
+				if (snapshotInterval > 0 && sinceSnapshot >= snapshotInterval && database != null) {
+					checkpoint(database);
+				}
+			}
+		} catch (IOException ex) {
+			throw new ErrorException(ex);
+		}
+	}
+
+	/* This method syncs any buffered changes and closes the log. */
+	public void close() throws IOException {
+		synchronized (this) {
+			waitForSync(nextSeq - 1);
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncThread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		logChannel.close();
+	}
+
+	/*
+	 * The log methods below each add a record to the log and return its
+	 * sequence number without waiting for it to be synced. The caller must
+	 * pass the number to awaitDurable before telling anyone the change is
+	 * made, having first let go of any lock other writers need.
+	 */
+
+	/* Logs that a profile was added, with its status, image and friends. */
+	long logAddProfile(FacePamphletProfile prof) {
+		return append(ADD_PROFILE, prof.getName(), null, prof);
+	}
+
+	/* Logs that a profile was deleted. */
+	long logDeleteProfile(String name) {
+		return append(DELETE_PROFILE, name, null, null);
+	}
+
+	/* Logs that a profile's status was set at the given time. */
+	long logSetStatus(String name, String status, long time) {
+		return append(SET_STATUS, name, status, null, time);
+	}
+
+	/* Logs that a profile's image file was set. */
+	long logSetImage(String name, String file) {
+		return append(SET_IMAGE, name, file, null);
+	}
+
+	/* Logs that two profiles became friends. */
+	long logAddFriend(String name, String friend) {
+		return append(ADD_FRIEND, name, friend, null);
+	}
+
+	/* Logs that two profiles stopped being friends. */
+	long logRemoveFriend(String name, String friend) {
+		return append(REMOVE_FRIEND, name, friend, null);
+	}
+
+	/*
+	 * This method waits until the record with the given sequence number has
+	 * been synced to disk, along with every record before it.
+	 */
+	synchronized void awaitDurable(long seq) {
+		try {
+			waitForSync(seq);
+		} catch (IOException ex) {
+			throw new ErrorException(ex);
+		}
+	}
+
+	/* This method returns the sequence number of the last record logged. */
+	synchronized long getLastSequence() {
+		return nextSeq - 1;
+	}
+
+	/*
+	 * This method adds one record to the log buffer for the sync thread to
+	 * write, and returns its sequence number. Storage failures are reported
+	 * as an ErrorException, since the database methods that call this one
+	 * do not declare IOException.
+	 */
+	private synchronized long append(byte type, String a, String b, FacePamphletProfile prof) {
+		return append(type, a, b, prof, 0L);
+	}
+
+	/* As above, with the time a SET_STATUS record carries. */
+	private synchronized long append(byte type, String a, String b, FacePamphletProfile prof, long time) {
+		try {
+			if (closed) {
+				throw new IOException("storage is closed");
+			}
+			long seq = nextSeq++;
+			byte[] payload = encode(type, seq, a, b, prof, time);
+			crc.reset();
+			crc.update(payload, 0, payload.length);
+			ensureBuffer(RECORD_HEADER_SIZE + payload.length);
+			buffer.putInt(payload.length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload);
+			notifyAll();
+			sinceSnapshot++;
+			return seq;
+		} catch (IOException ex) {
+			throw new ErrorException(ex);
+		}
+	}
+
+	/*
+	 * This method blocks (releasing the monitor) until the record with the
+	 * given sequence number has been synced to disk.
+	 */
+	private void waitForSync(long seq) throws IOException {
+		while (durableSeq < seq) {
+			if (syncFailure != null) {
+				throw syncFailure;
+			}
+			try {
+				wait();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/*
+	 * Body of the sync thread: repeatedly takes everything appended since the
+	 * last sync, writes it to the log, forces it to disk, and wakes the
+	 * writers waiting on it.
+	 */
+	private void syncLoop() {
+		ByteBuffer batch = ByteBuffer.allocate(BUFFER_SIZE);
+		while (true) {
+			long batchSeq;
+			synchronized (this) {
+				while (buffer.position() == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				if (buffer.position() == 0) {
+					return;
+				}
+				// swap buffers so writers can keep appending during the sync //
+				ByteBuffer full = buffer;
+				buffer = batch;
+				batch = full;
+				batchSeq = nextSeq - 1;
+			}
+			try {
+				batch.flip();
+				while (batch.hasRemaining()) {
+					logChannel.write(batch);
+				}
+				logChannel.force(false);
+				batch.clear();
+				if (batch.capacity() > BUFFER_SIZE) {
+					batch = ByteBuffer.allocate(BUFFER_SIZE);
+				}
+				synchronized (this) {
+					durableSeq = batchSeq;
+					notifyAll();
+				}
+			} catch (IOException ex) {
+				synchronized (this) {
+					syncFailure = ex;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/* Grows the append buffer, if needed, to fit n more bytes. */
+	private void ensureBuffer(int n) {
+		if (buffer.remaining() < n) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+
+	/*
+	 * Encodes one log record (without its length and checksum header). An
+	 * ADD_PROFILE record goes on with the rest of prof (see readProfile), and
+	 * a SET_STATUS record with the time the status was set.
+	 */
+	private byte[] encode(byte type, long seq, String a, String b, FacePamphletProfile prof, long time)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeByte(type);
+		data.writeLong(seq);
+		data.writeUTF(a);
+		writeNullable(data, b);
+		if (prof != null) {
+			writeNullable(data, prof.getStatus().length() > 0 ? prof.getStatus() : null);
+			writeNullable(data, prof.getImageFile());
+			data.writeInt(prof.getFriendCount());
+			Iterator<String> it = prof.getFriends();
+			while (it.hasNext()) {
+				data.writeUTF(it.next());
+			}
+			writeHistory(data, prof);
+		}
+		if (type == SET_STATUS) {
+			data.writeLong(time);
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Reads the profile at the end of an ADD_PROFILE record, giving its
+	 * friends IDs from names. Records logged before status times were kept
+	 * end after the friends.
+	 */
+	private static FacePamphletProfile readProfile(DataInputStream data, String name, FacePamphletNameRegistry names)
+			throws IOException {
+		FacePamphletProfile prof = new FacePamphletProfile(name, names);
+		String status = readNullable(data);
+		prof.setImageFile(readNullable(data));
+		int count = data.readInt();
+		for (int i = 0; i < count; i++) {
+			prof.addFriend(data.readUTF());
+		}
+		if (data.available() > 0) {
+			readHistory(data, prof, status);
+		} else if (status != null) {
+			prof.setStatus(status);
+		}
+		return prof;
+	}
+
+	/*
+	 * This method writes every profile in db. Names are written once, in a
+	 * table that lists the profiles first and then any other names that
+	 * appear in lists of friends; friends are then written as indexes into
+	 * that table, which keeps the snapshot small and quick to read back.
+	 */
+	private void writeSnapshotBody(DataOutputStream data, FacePamphletDatabase db) throws IOException {
+		db.loadAllProfiles();
+		FacePamphletNameRegistry names = db.getNameRegistry();
+		int[] tableIndex = new int[names.size()];
+		ArrayList<String> table = new ArrayList<String>();
+		for (FacePamphletProfile prof : db.friendsDatabase.values()) {
+			tableIndex[names.getId(prof.getName())] = table.size() + 1;
+			table.add(prof.getName());
+		}
+		int profiles = table.size();
+		for (FacePamphletProfile prof : db.friendsDatabase.values()) {
+			PrimitiveIterator.OfInt it = prof.getFriendIds().iterator();
+			while (it.hasNext()) {
+				int id = it.nextInt();
+				if (tableIndex[id] == 0) {
+					tableIndex[id] = table.size() + 1;
+					table.add(names.getName(id));
+				}
+			}
+		}
+		data.writeInt(profiles);
+		data.writeInt(table.size());
+		for (String name : table) {
+			data.writeUTF(name);
+		}
+		for (FacePamphletProfile prof : db.friendsDatabase.values()) {
+			writeNullable(data, prof.getStatus().length() > 0 ? prof.getStatus() : null);
+			writeNullable(data, prof.getImageFile());
+			writeHistory(data, prof);
+			FacePamphletFriendSet friends = prof.getFriendIds();
+			data.writeInt(friends.size());
+			PrimitiveIterator.OfInt it = friends.iterator();
+			while (it.hasNext()) {
+				data.writeInt(tableIndex[it.nextInt()] - 1);
+			}
+		}
+	}
+
+	/*
+	 * This method reads the snapshot into db and returns the sequence number
+	 * of the last change it contains.
+	 */
+	private long readSnapshot(FacePamphletDatabase db) throws IOException {
+		DataInputStream data = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE));
+		try {
+			int magic = data.readInt();
+			if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_WITHOUT_TIMES) {
+				throw new IOException(snapshotFile + " is not a FacePamphlet snapshot");
+			}
+			long lastSeq = data.readLong();
+			FacePamphletNameRegistry names = db.getNameRegistry();
+			int profiles = data.readInt();
+			String[] table = new String[data.readInt()];
+			int[] ids = new int[table.length];
+			for (int i = 0; i < table.length; i++) {
+				table[i] = data.readUTF();
+				ids[i] = names.getId(table[i]);
+			}
+			for (int i = 0; i < profiles; i++) {
+				FacePamphletProfile prof = new FacePamphletProfile(table[i], names);
+				String status = readNullable(data);
+				String file = readNullable(data);
+				if (file != null) {
+					prof.setImageFile(file);
+				}
+				if (magic == SNAPSHOT_MAGIC) {
+					readHistory(data, prof, status);
+				} else if (status != null) {
+					prof.setStatus(status);
+				}
+				FacePamphletFriendSet friends = prof.getFriendIds();
+				int count = data.readInt();
+				for (int j = 0; j < count; j++) {
+					friends.add(ids[data.readInt()]);
+				}
+				db.addProfile(prof);
+			}
+			return lastSeq;
+		} finally {
+			data.close();
+		}
+	}
+
+	/*
+	 * This method applies every complete log record newer than afterSeq to db
+	 * and returns the last sequence number seen. A torn record at the end of
+	 * the log (left by a crash in the middle of a write) is cut off.
+	 */
+	private long replayLog(FacePamphletDatabase db, long afterSeq) throws IOException {
+		long lastSeq = afterSeq;
+		long goodLength = 0;
+		long logSize = logChannel.size();
+		logChannel.position(0);
+		DataInputStream data = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(logChannel), BUFFER_SIZE));
+		while (true) {
+			byte[] payload;
+			try {
+				int length = data.readInt();
+				int checksum = data.readInt();
+				// a record cannot be longer than the rest of the log //
+				if (length <= 0 || length > logSize - goodLength - RECORD_HEADER_SIZE) {
+					break;
+				}
+				payload = new byte[length];
+				data.readFully(payload);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+			} catch (EOFException ex) {
+				break;
+			}
+			goodLength += RECORD_HEADER_SIZE + payload.length;
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = record.readByte();
+			long seq = record.readLong();
+			String a = record.readUTF();
+			String b = readNullable(record);
+			if (seq > afterSeq) {
+				if (type == ADD_PROFILE) {
+					db.addProfile(readProfile(record, a, db.getNameRegistry()));
+				} else if (type == SET_STATUS && record.available() > 0) {
+					db.setStatus(a, b, record.readLong());
+				} else {
+					apply(db, type, a, b);
+				}
+				lastSeq = seq;
+			}
+		}
+		logChannel.truncate(goodLength);
+		logChannel.position(goodLength);
+		return lastSeq;
+	}
+
+	/* Applies one logged change to db. */
+	private void apply(FacePamphletDatabase db, byte type, String a, String b) {
+		switch (type) {
+		case ADD_EMPTY_PROFILE:
+			db.addProfile(new FacePamphletProfile(a));
+			break;
+		case DELETE_PROFILE:
+			db.deleteProfile(a);
+			break;
+		case SET_STATUS:
+			db.setStatus(a, b);
+			break;
+		case SET_IMAGE:
+			db.setImage(a, b);
+			break;
+		case ADD_FRIEND:
+			db.addFriend(a, b);
+			break;
+		case REMOVE_FRIEND:
+			db.removeFriend(a, b);
+			break;
+		}
+	}
+
+	/* Writes prof's status history, oldest first, each status with its time. */
+	private static void writeHistory(DataOutputStream data, FacePamphletProfile prof) throws IOException {
+		int size = prof.getStatusHistorySize();
+		data.writeInt(size);
+		for (int i = size - 1; i >= 0; i--) {
+			data.writeUTF(prof.getPastStatus(i));
+			data.writeLong(prof.getPastStatusTime(i));
+		}
+	}
+
+	/*
+	 * Reads a history written by writeHistory into prof, then sets its
+	 * current status (which is null if it was empty) without adding to the
+	 * history again.
+	 */
+	private static void readHistory(DataInputStream data, FacePamphletProfile prof, String status)
+			throws IOException {
+		int size = data.readInt();
+		for (int i = 0; i < size; i++) {
+			String past = data.readUTF();
+			prof.setStatus(past, data.readLong());
+		}
+		if (status == null) {
+			prof.setStatus("");
+		} else if (size == 0) {
+			prof.setStatus(status);
+		}
+	}
+
+	/* Writes a string that may be null. */
+	private static void writeNullable(DataOutputStream data, String str) throws IOException {
+		data.writeBoolean(str != null);
+		if (str != null) {
+			data.writeUTF(str);
+		}
+	}
+
+	/* Reads a string written by writeNullable. */
+	private static String readNullable(DataInputStream data) throws IOException {
+		if (data.readBoolean()) {
+			return data.readUTF();
+		}
+		return null;
+	}
+
+	/* Log record types (ADD_EMPTY_PROFILE, holding only a name, is no longer written) */
+	private static final byte ADD_EMPTY_PROFILE = 1;
+	private static final byte DELETE_PROFILE = 2;
+	private static final byte SET_STATUS = 3;
+	private static final byte SET_IMAGE = 4;
+	private static final byte ADD_FRIEND = 5;
+	private static final byte REMOVE_FRIEND = 6;
+	private static final byte ADD_PROFILE = 7;
+
+	/* File names used inside the storage directory */
+	private static final String LOG_FILE_NAME = "facepamphlet.log";
+	private static final String SNAPSHOT_FILE_NAME = "facepamphlet.snapshot";
+
+	/* Marks the start of a snapshot file ("FPST") */
+	private static final int SNAPSHOT_MAGIC = 0x46505354;
+
+	/* Marks the start of a snapshot written before status times were kept ("FPSN") */
+	private static final int SNAPSHOT_MAGIC_WITHOUT_TIMES = 0x4650534E;
+
+	/* Each log record starts with its length and a CRC32 of its payload */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/* Size of the buffers used for reading and writing */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* Number of changes logged between automatic snapshots by default */
+	private static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+
+	/* private instance variables */
+	private File logFile;
+	private File snapshotFile;
+	private FileChannel logChannel;
+	private Thread syncThread;
+	private FacePamphletDatabase database;
+	private int snapshotInterval;
+	private int sinceSnapshot;
+	private long nextSeq = 1;
+	private long durableSeq;
+	private boolean closed;
+	private IOException syncFailure;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private CRC32 crc = new CRC32();
+}
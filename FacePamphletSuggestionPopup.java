@@ -0,0 +1,110 @@
+/*
+ * File: FacePamphletSuggestionPopup.java
+ * --------------------------------------
+ * This class suggests profile names below a text field as the user
+ * types into it.  Each change to the field looks up the names starting
+ * with its text (ignoring case) on the command queue, and the matches
+ * are shown in a popup menu; choosing one fills it into the field.
+ * The popup never takes the keyboard focus, so typing carries on as
+ * normal while it is showing.
+ */
+
+import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+public class FacePamphletSuggestionPopup implements FacePamphletConstants {
+
+	/*
+	 * Creates a popup that suggests names from db for field, looking them up
+	 * on commands. Lookups for the same field are coalesced under key, so
+	 * fast typing only looks up the latest text.
+	 */
+	public FacePamphletSuggestionPopup(JTextField field, FacePamphletDatabase db,
+			FacePamphletCommandQueue commands, String key) {
+		this.field = field;
+		this.db = db;
+		this.commands = commands;
+		this.key = key;
+		popup.setFocusable(false);
+		field.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent e) {
+				textChanged();
+			}
+
+			public void removeUpdate(DocumentEvent e) {
+				textChanged();
+			}
+
+			public void changedUpdate(DocumentEvent e) {
+				// attribute changes do not change the text
+			}
+		});
+	}
+
+	/* This method hides the popup, for example once the field's text is used. */
+	public void hide() {
+		popup.setVisible(false);
+	}
+
+	/* Looks up suggestions for the field's new text. */
+	private void textChanged() {
+		if (filling) {
+			return;
+		}
+		final String prefix = field.getText();
+		if (prefix.length() == 0) {
+			hide();
+			return;
+		}
+		commands.submit(key, new Callable<List<String>>() {
+			public List<String> call() {
+				return db.findProfileNames(prefix, SUGGESTION_COUNT, true);
+			}
+		}, new FacePamphletCommandQueue.ResultHandler<List<String>>() {
+			public void handleResult(List<String> suggestions) {
+				// the text may have changed again while this was looked up
+				if (prefix.equals(field.getText()) && field.isShowing()) {
+					show(suggestions);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Shows the given names in the popup, or hides it if there are none (or
+	 * the only one is already in the field).
+	 */
+	private void show(List<String> suggestions) {
+		popup.setVisible(false);
+		popup.removeAll();
+		if (suggestions.isEmpty() || (suggestions.size() == 1 && suggestions.get(0).equals(field.getText()))) {
+			return;
+		}
+		for (final String name : suggestions) {
+			JMenuItem item = new JMenuItem(name);
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					filling = true;
+					field.setText(name);
+					filling = false;
+					hide();
+				}
+			});
+			popup.add(item);
+		}
+		popup.show(field, 0, field.getHeight());
+	}
+
+	/* private instance variables */
+	private JTextField field;
+	private FacePamphletDatabase db;
+	private FacePamphletCommandQueue commands;
+	private String key;
+	private JPopupMenu popup = new JPopupMenu();
+
+	/* True while a chosen suggestion is being put into the field */
+	private boolean filling;
+}
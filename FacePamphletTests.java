@@ -0,0 +1,272 @@
+/*
+ * File: FacePamphletTests.java
+ * ----------------------------
+ * This class checks behaviour that has broken before and is easy to
+ * break again.  Like FacePamphletBenchmark it runs on its own, without
+ * any window and without a test framework, from the directory holding
+ * the images folder:
+ *
+ *     java FacePamphletTests
+ *
+ * Each test is a method that throws an ErrorException describing the
+ * first thing it finds wrong.  Every test is run, each one's result is
+ * printed, and the program exits with status 1 if any failed.
+ */
+
+import acm.graphics.*;
+import acm.util.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FacePamphletTests {
+
+	/* Runs every test and reports the results. */
+	public static void main(String[] args) {
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		FacePamphletTests tests = new FacePamphletTests();
+		tests.run("imageCacheLoadsFromImagesDirectory", new Test() {
+			public void run() throws Exception {
+				imageCacheLoadsFromImagesDirectory();
+			}
+		});
+		tests.run("removeFriendOnGraphFile", new Test() {
+			public void run() throws Exception {
+				removeFriendOnGraphFile(0);
+			}
+		});
+		tests.run("removeFriendOnCachedGraphFile", new Test() {
+			public void run() throws Exception {
+				removeFriendOnGraphFile(PROFILE_CACHE_BYTES);
+			}
+		});
+		tests.run("graphFileReadsAreNotKept", new Test() {
+			public void run() throws Exception {
+				graphFileReadsAreNotKept();
+			}
+		});
+		tests.run("coalescedCommandKeepsItsTurn", new Test() {
+			public void run() throws Exception {
+				coalescedCommandKeepsItsTurn();
+			}
+		});
+		tests.run("jsonEscapesNeedFourHexDigits", new Test() {
+			public void run() throws Exception {
+				jsonEscapesNeedFourHexDigits();
+			}
+		});
+		tests.run("serverRejectsLongBodies", new Test() {
+			public void run() throws Exception {
+				serverRejectsLongBodies();
+			}
+		});
+		System.out.println(tests.passed + " passed, " + tests.failed + " failed");
+		System.exit(tests.failed > 0 ? 1 : 0);
+	}
+
+	/* One test, which throws if it finds anything wrong. */
+	private interface Test {
+		public void run() throws Exception;
+	}
+
+	/* Runs test and prints whether it passed. */
+	private void run(String name, Test test) {
+		try {
+			test.run();
+			passed++;
+			System.out.println("ok     " + name);
+		} catch (Throwable ex) {
+			failed++;
+			System.out.println("FAILED " + name + ": " + ex);
+		}
+	}
+
+	/* Throws an ErrorException with message if condition is false. */
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new ErrorException(message);
+		}
+	}
+
+	/*
+	 * A bare file name such as the bundled "AaronB.jpg" must be found in the
+	 * images directory, as GImage finds it.
+	 */
+	private static void imageCacheLoadsFromImagesDirectory() throws InterruptedException {
+		FacePamphletImageCache cache = new FacePamphletImageCache();
+		final CountDownLatch done = new CountDownLatch(1);
+		final GImage[] loaded = new GImage[1];
+		cache.loadImage("AaronB.jpg", new FacePamphletImageCache.ImageListener() {
+			public void imageLoaded(String file, GImage image) {
+				loaded[0] = image;
+				done.countDown();
+			}
+
+			public void imageFailed(String file) {
+				done.countDown();
+			}
+		});
+		check(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "the image did not finish loading");
+		check(loaded[0] != null, "AaronB.jpg was not found in images");
+	}
+
+	/*
+	 * Removing a friendship between two profiles of a graph file that have
+	 * not been read yet must remove it from both, and must be remembered by
+	 * the database (the file itself is never written). With cacheBytes 0 the
+	 * database reads the file directly; otherwise through a profile cache.
+	 */
+	private static void removeFriendOnGraphFile(long cacheBytes) throws IOException {
+		File file = writeGraphFile();
+		try {
+			FacePamphletGraphFile graph = new FacePamphletGraphFile(file);
+			FacePamphletDatabase db = cacheBytes > 0 ? new FacePamphletDatabase(graph, cacheBytes)
+					: new FacePamphletDatabase(graph);
+			check(db.removeFriend("A", "B"), "removeFriend(A, B) returned false");
+			check(!db.getProfile("A").getFriendIds().contains(db.getNameRegistry().getId("B")),
+					"A still lists B");
+			check(db.getProfile("B").getFriendCount() == 0, "B still lists A");
+			check(db.getProfile("A").getFriendCount() == 1, "A lost its other friend");
+			check(!db.removeFriend("A", "B"), "a second removeFriend(A, B) returned true");
+		} finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * A command that replaces a waiting one with the same key must still run
+	 * after the commands submitted between them: here the second status
+	 * change must come after the delete and add, or it would be lost.
+	 */
+	private static void coalescedCommandKeepsItsTurn() throws InterruptedException {
+		FacePamphletCommandQueue queue = new FacePamphletCommandQueue(new FacePamphletCommandQueue.FailureHandler() {
+			public void handleFailure(Exception ex) {
+			}
+		});
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		// hold the worker so the rest wait together //
+		queue.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				release.await();
+				return null;
+			}
+		}, null);
+		queue.submit("status X", record(ran, "status 1", null), null);
+		queue.submit(record(ran, "delete", null), null);
+		queue.submit(record(ran, "add", null), null);
+		queue.submit("status X", record(ran, "status 2", done), null);
+		release.countDown();
+		check(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "the commands did not finish");
+		check(ran.equals(Arrays.asList("delete", "add", "status 2")), "commands ran as " + ran);
+		check(queue.getCoalescedCount() == 1, "coalesced " + queue.getCoalescedCount() + " commands");
+	}
+
+	/* Returns a command that adds name to ran and then counts down done, if any. */
+	private static Callable<Object> record(final List<String> ran, final String name, final CountDownLatch done) {
+		return new Callable<Object>() {
+			public Object call() {
+				ran.add(name);
+				if (done != null) {
+					done.countDown();
+				}
+				return null;
+			}
+		};
+	}
+
+	/*
+	 * Profiles of a graph file that are only read must be left to the profile
+	 * cache rather than kept by the database, yet must not list friends
+	 * deleted since.
+	 */
+	private static void graphFileReadsAreNotKept() throws IOException {
+		File file = writeGraphFile();
+		try {
+			FacePamphletDatabase db = new FacePamphletDatabase(new FacePamphletGraphFile(file), PROFILE_CACHE_BYTES);
+			for (int i = 0; i < 3; i++) {
+				check(db.getProfile("A").getFriendCount() == 2, "A does not list B and C");
+			}
+			check(db.getLoadedProfileCount() == 0, "the database kept a profile it only read");
+			check(db.getProfileCache().getHitCount() >= 2, "A was not read from the cache");
+			db.deleteProfile("C");
+			check(db.getProfile("C") == null, "C was not deleted");
+			check(db.getProfile("A").getFriendCount() == 1, "A still lists the deleted C");
+			check(db.getProfile("A").containsFriend("B"), "A lost B");
+			check(db.getLoadedProfileCount() == 0, "the database kept a profile it only read");
+		} finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Returns a new temporary graph file holding profiles A, B and C, where A
+	 * is friends with B and C.
+	 */
+	private static File writeGraphFile() throws IOException {
+		FacePamphletDatabase source = new FacePamphletDatabase();
+		source.addProfile(new FacePamphletProfile("A"));
+		source.addProfile(new FacePamphletProfile("B"));
+		source.addProfile(new FacePamphletProfile("C"));
+		source.addFriend("A", "B");
+		source.addFriend("A", "C");
+		File file = File.createTempFile("facepamphlet", ".graph");
+		FacePamphletGraphFile.write(source, file);
+		return file;
+	}
+
+	/* A backslash-u escape in a request body must be four hex digits. */
+	private static void jsonEscapesNeedFourHexDigits() {
+		check("A\u00e9".equals(FacePamphletServer.readJsonString("{\"status\": \"\\u0041\\u00E9\"}", "status")),
+				"\\u0041\\u00E9 was not read as A\u00e9");
+		check(FacePamphletServer.readJsonString("{\"status\": \"\\u+041\"}", "status") == null,
+				"a signed escape was accepted");
+		check(FacePamphletServer.readJsonString("{\"status\": \"\\u-041\"}", "status") == null,
+				"a signed escape was accepted");
+		check(FacePamphletServer.readJsonString("{\"status\": \"\\u004\"}", "status") == null,
+				"a short escape was accepted");
+	}
+
+	/* A request body too long to read must be refused, not cut short. */
+	private static void serverRejectsLongBodies() throws IOException {
+		FacePamphletConcurrentDatabase db = new FacePamphletConcurrentDatabase();
+		db.addProfile(new FacePamphletProfile("A"));
+		FacePamphletServer server = new FacePamphletServer(db, null, 0);
+		server.start();
+		try {
+			URL url = new URL("http://localhost:" + server.getPort() + "/profiles/A/status");
+			StringBuilder status = new StringBuilder();
+			while (status.length() < LONG_BODY_CHARS) {
+				status.append("long status ");
+			}
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestMethod("PUT");
+			connection.setDoOutput(true);
+			OutputStream out = connection.getOutputStream();
+			out.write(("{\"status\": \"" + status + "\"}").getBytes("UTF-8"));
+			out.close();
+			int code = connection.getResponseCode();
+			check(code == 413, "a long body got " + code);
+			check(db.getProfile("A").getStatus().length() == 0, "the status was set from a cut-off body");
+		} finally {
+			server.stop();
+		}
+	}
+
+	/* Characters in a request body longer than the server accepts */
+	private static final int LONG_BODY_CHARS = 100 * 1024;
+
+	/* Bytes given to the profile cache in tests that use one */
+	private static final long PROFILE_CACHE_BYTES = 1 << 20;
+
+	/* How long a test waits for work done on another thread */
+	private static final int TIMEOUT_SECONDS = 10;
+
+	/* private instance variables */
+	private int passed;
+	private int failed;
+}